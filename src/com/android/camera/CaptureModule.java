@@ -213,6 +213,8 @@ public class CaptureModule implements CameraModule, PhotoController,
     private SettingsManager mSettingsManager;
     private long SECONDARY_SERVER_MEM;
     private boolean mLongshotActive = false;
+    // Longshot images are saved in order on the burst lane.
+    private Object mLongshotSession;
     private CameraCharacteristics mMainCameraCharacteristics;
     private int mDisplayRotation;
     private int mDisplayOrientation;
@@ -762,6 +764,14 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     }
 
+    public ArrayList<ImageFilter> createSnapshotFilters() {
+        if(mFrameProcessor == null) {
+            return new ArrayList<ImageFilter>();
+        } else {
+            return mFrameProcessor.createSnapshotFilters();
+        }
+    }
+
     private void applyFaceDetect(CaptureRequest.Builder builder, int id) {
         if(id == getMainCameraId()) {
             builder.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE,
@@ -1195,51 +1205,7 @@ public class CaptureModule implements CameraModule, PhotoController,
 
                 if (mLongshotActive) {
                     Log.d(TAG, "captureStillPicture capture longshot " + id);
-                    List<CaptureRequest> burstList = new ArrayList<>();
-                    for (int i = 0; i < PersistUtil.getLongshotShotLimit(); i++) {
-                        burstList.add(captureBuilder.build());
-                    }
-                    mCaptureSession[id].captureBurst(burstList, new
-                            CameraCaptureSession.CaptureCallback() {
-
-                                @Override
-                                public void onCaptureCompleted(CameraCaptureSession session,
-                                                               CaptureRequest request,
-                                                               TotalCaptureResult result) {
-                                    Log.d(TAG, "captureStillPicture Longshot onCaptureCompleted: " + id);
-                                    if (mLongshotActive) {
-                                        mActivity.runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                mUI.doShutterAnimation();
-                                            }
-                                        });
-                                    }
-                                }
-
-                                @Override
-                                public void onCaptureFailed(CameraCaptureSession session,
-                                                            CaptureRequest request,
-                                                            CaptureFailure result) {
-                                    Log.d(TAG, "captureStillPicture Longshot onCaptureFailed: " + id);
-                                    if (mLongshotActive) {
-                                        mActivity.runOnUiThread(new Runnable() {
-                                            @Override
-                                            public void run() {
-                                                mUI.doShutterAnimation();
-                                            }
-                                        });
-                                    }
-                                }
-
-                                @Override
-                                public void onCaptureSequenceCompleted(CameraCaptureSession session, int
-                                        sequenceId, long frameNumber) {
-                                    Log.d(TAG, "captureStillPicture Longshot onCaptureSequenceCompleted: " + id);
-                                    mLongshotActive = false;
-                                    unlockFocus(id);
-                                }
-                            }, mCaptureCallbackHandler);
+                    captureLongshotBurst(id, captureBuilder, PersistUtil.getLongshotShotLimit());
                 } else {
                     if(isMpoOn()) {
                         mCaptureStartTime = System.currentTimeMillis();
@@ -1423,9 +1389,16 @@ public class CaptureModule implements CameraModule, PhotoController,
                                     ExifInterface exif = Exif.getExif(bytes);
                                     int orientation = Exif.getOrientation(exif);
 
-                                    mActivity.getMediaSaveService().addImage(bytes, title, date,
-                                            null, image.getWidth(), image.getHeight(), orientation, null,
-                                            mOnMediaSavedListener, mContentResolver, "jpeg");
+                                    if (mLongshotActive) {
+                                        mActivity.getMediaSaveService().addImage(bytes, title, date,
+                                                null, image.getWidth(), image.getHeight(), orientation,
+                                                null, mOnMediaSavedListener, mContentResolver, "jpeg",
+                                                SaveScheduler.Lane.BURST, mLongshotSession);
+                                    } else {
+                                        mActivity.getMediaSaveService().addImage(bytes, title, date,
+                                                null, image.getWidth(), image.getHeight(), orientation,
+                                                null, mOnMediaSavedListener, mContentResolver, "jpeg");
+                                    }
 
                                     if(mLongshotActive) {
                                         mLastJpegData = bytes;
@@ -1447,6 +1420,88 @@ public class CaptureModule implements CameraModule, PhotoController,
         }
     }
 
+    /* Captures the longshot in bursts the save queue can admit, so the capture rate follows
+       the save rate instead of running into a full queue. */
+    private void captureLongshotBurst(final int id, final CaptureRequest.Builder captureBuilder,
+                                      final int remaining) {
+        MediaSaveService saveService = mActivity.getMediaSaveService();
+        final int shots = (saveService == null) ? remaining
+                : saveService.getAdmissibleShots(mJpegFileSizeEstimation, remaining);
+        if (shots == 0) {
+            long delay = saveService.getAdmissionDelayMs(mJpegFileSizeEstimation);
+            Log.d(TAG, "captureLongshotBurst wait " + delay + "ms, " + remaining + " left");
+            mCaptureCallbackHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (mLongshotActive) {
+                        captureLongshotBurst(id, captureBuilder, remaining);
+                    } else {
+                        unlockFocus(id);
+                    }
+                }
+            }, delay);
+            return;
+        }
+        List<CaptureRequest> burstList = new ArrayList<>();
+        for (int i = 0; i < shots; i++) {
+            burstList.add(captureBuilder.build());
+        }
+        try {
+            mCaptureSession[id].captureBurst(burstList, new
+                    CameraCaptureSession.CaptureCallback() {
+
+                        @Override
+                        public void onCaptureCompleted(CameraCaptureSession session,
+                                                       CaptureRequest request,
+                                                       TotalCaptureResult result) {
+                            Log.d(TAG, "captureStillPicture Longshot onCaptureCompleted: " + id);
+                            if (mLongshotActive) {
+                                mActivity.runOnUiThread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        mUI.doShutterAnimation();
+                                    }
+                                });
+                            }
+                        }
+
+                        @Override
+                        public void onCaptureFailed(CameraCaptureSession session,
+                                                    CaptureRequest request,
+                                                    CaptureFailure result) {
+                            Log.d(TAG, "captureStillPicture Longshot onCaptureFailed: " + id);
+                            if (mLongshotActive) {
+                                mActivity.runOnUiThread(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        mUI.doShutterAnimation();
+                                    }
+                                });
+                            }
+                        }
+
+                        @Override
+                        public void onCaptureSequenceCompleted(CameraCaptureSession session, int
+                                sequenceId, long frameNumber) {
+                            Log.d(TAG, "captureStillPicture Longshot onCaptureSequenceCompleted: " + id);
+                            if (mLongshotActive && remaining > shots) {
+                                captureLongshotBurst(id, captureBuilder, remaining - shots);
+                                return;
+                            }
+                            mLongshotActive = false;
+                            unlockFocus(id);
+                        }
+                    }, mCaptureCallbackHandler);
+        } catch (CameraAccessException e) {
+            Log.e(TAG, "captureLongshotBurst failed", e);
+            mLongshotActive = false;
+            unlockFocus(id);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "captureLongshotBurst session closed", e);
+            mLongshotActive = false;
+        }
+    }
+
     private void createVideoSnapshotImageReader() {
         if (mVideoSnapshotImageReader != null) {
             mVideoSnapshotImageReader.close();
@@ -2899,6 +2954,7 @@ public class CaptureModule implements CameraModule, PhotoController,
             }
 
             Log.d(TAG, "Start Longshot");
+            mLongshotSession = new Object();
             mLongshotActive = true;
             takePicture();
         }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ *     Redistribution and use in source and binary forms, with or without
+ *     modification, are permitted provided that the following conditions are
+ *     met:
+ *         * Redistributions of source code must retain the above copyright
+ *           notice, this list of conditions and the following disclaimer.
+ *         * Redistributions in binary form must reproduce the above
+ *           copyright notice, this list of conditions and the following
+ *           disclaimer in the documentation and/or other materials provided
+ *           with the distribution.
+ *         * Neither the name of The Linux Foundation nor the names of its
+ *           contributors may be used to endorse or promote products derived
+ *           from this software without specific prior written permission.
+ *
+ *     THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ *     WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ *     MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ *     ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ *     BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *     CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *     SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ *     BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ *     WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ *     OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ *     IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.util.Log;
+
+import com.android.camera.util.LatencyHistogram;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/*
+ * Writes image files through a FileChannel. The header and payload buffers are written
+ * with one gather write, so the image doesn't have to be copied into a single array first.
+ * Each write chooses its durability: no sync, fdatasync of the file, or an fsync of the
+ * batch once every N files so bursts don't stall on each one. Throughput and per-write
+ * latency are recorded for the save path.
+ */
+public class ImageFileWriter {
+    private static final String TAG = "ImageFileWriter";
+
+    public enum SyncPolicy {
+        // Leave it to the kernel writeback.
+        NONE,
+        // fdatasync before the write returns.
+        PER_FILE,
+        // Keep the file open and fsync the batch every N files.
+        EVERY_N
+    }
+
+    private final int mSyncEvery;
+    private final LatencyHistogram mLatency = new LatencyHistogram("file write");
+    // Files written with EVERY_N that are not synced yet.
+    private final ArrayList<FileOutputStream> mUnsynced = new ArrayList<FileOutputStream>();
+    private long mBytes;
+    private long mWriteNs;
+    private long mFiles;
+    private long mErrors;
+
+    public ImageFileWriter(int syncEvery) {
+        if (syncEvery <= 0) {
+            throw new IllegalArgumentException("Invalid sync batch " + syncEvery);
+        }
+        mSyncEvery = syncEvery;
+    }
+
+    public long write(String path, byte[] data, SyncPolicy policy) throws IOException {
+        return write(path, new ByteBuffer[] { ByteBuffer.wrap(data) }, policy);
+    }
+
+    /* Writes the remaining bytes of the buffers in order and returns the file size. */
+    public long write(String path, ByteBuffer[] buffers, SyncPolicy policy) throws IOException {
+        long start = System.nanoTime();
+        long total = 0;
+        for (ByteBuffer buffer : buffers) {
+            total += buffer.remaining();
+        }
+        FileOutputStream out = new FileOutputStream(path);
+        boolean keepOpen = false;
+        try {
+            long written = 0;
+            while (written < total) {
+                written += out.getChannel().write(buffers);
+            }
+            if (policy == SyncPolicy.PER_FILE) {
+                out.getChannel().force(false);
+            }
+            keepOpen = (policy == SyncPolicy.EVERY_N);
+        } catch (IOException e) {
+            synchronized (this) {
+                mErrors++;
+            }
+            throw e;
+        } finally {
+            if (!keepOpen) {
+                out.close();
+            }
+        }
+        ArrayList<FileOutputStream> batch = null;
+        synchronized (this) {
+            if (keepOpen) {
+                mUnsynced.add(out);
+                if (mUnsynced.size() >= mSyncEvery) {
+                    batch = new ArrayList<FileOutputStream>(mUnsynced);
+                    mUnsynced.clear();
+                }
+            }
+        }
+        if (batch != null) {
+            syncAndClose(batch);
+        }
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            mBytes += total;
+            mWriteNs += elapsed;
+            mFiles++;
+        }
+        mLatency.record(elapsed / 1000000);
+        return total;
+    }
+
+    /* Syncs and closes the files of an unfinished EVERY_N batch, e.g. when a burst ends. */
+    public void syncPending() {
+        ArrayList<FileOutputStream> batch;
+        synchronized (this) {
+            if (mUnsynced.isEmpty()) {
+                return;
+            }
+            batch = new ArrayList<FileOutputStream>(mUnsynced);
+            mUnsynced.clear();
+        }
+        syncAndClose(batch);
+    }
+
+    private void syncAndClose(ArrayList<FileOutputStream> batch) {
+        for (FileOutputStream out : batch) {
+            try {
+                out.getChannel().force(true);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to sync file", e);
+                synchronized (this) {
+                    mErrors++;
+                }
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to close file after sync", e);
+                }
+            }
+        }
+    }
+
+    // Write throughput over the time spent writing, in bytes per second.
+    public synchronized long getBytesPerSecond() {
+        return (mWriteNs == 0) ? 0 : mBytes * 1000000000L / mWriteNs;
+    }
+
+    public synchronized long getFileCount() {
+        return mFiles;
+    }
+
+    public synchronized long getErrorCount() {
+        return mErrors;
+    }
+
+    public synchronized int getUnsyncedCount() {
+        return mUnsynced.size();
+    }
+
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    public synchronized void resetStats() {
+        mBytes = 0;
+        mWriteNs = 0;
+        mFiles = 0;
+        mErrors = 0;
+        mLatency.reset();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "files=" + mFiles + " errors=" + mErrors + " bytes/s=" + getBytesPerSecond()
+                + " " + mLatency;
+    }
+}
@@ -20,6 +20,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.nio.ByteOrder;
+import java.util.concurrent.Executor;
 
 import android.app.Service;
 import android.content.ContentResolver;
@@ -29,9 +30,10 @@ import android.graphics.BitmapFactory;
 import android.graphics.Rect;
 import android.location.Location;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.provider.MediaStore.Video;
 import android.util.Log;
 
@@ -39,6 +41,7 @@ import com.android.camera.exif.ExifInterface;
 import com.android.camera.mpo.MpoData;
 import com.android.camera.mpo.MpoImageData;
 import com.android.camera.mpo.MpoInterface;
+import com.android.camera.util.PersistUtil;
 import com.android.camera.util.XmpUtil;
 import org.codeaurora.snapcam.filter.GDepth;
 import org.codeaurora.snapcam.filter.GImage;
@@ -51,16 +54,19 @@ import com.adobe.xmp.XMPMeta;
 public class MediaSaveService extends Service {
     public static final String VIDEO_BASE_URI = "content://media/external/video/media";
 
-    // The memory limit for unsaved image is 50MB.
-    private static final int SAVE_TASK_MEMORY_LIMIT_IN_MB =
-                                   android.os.SystemProperties.getInt("persist.vendor.camera.perf.memlimit", 60);
-    private static final int SAVE_TASK_MEMORY_LIMIT = SAVE_TASK_MEMORY_LIMIT_IN_MB * 1024 * 1024;
     private static final String TAG = "CAM_" + MediaSaveService.class.getSimpleName();
+    private static final long PENDING_SWEEP_MARGIN_MS = 5000;
+    // Burst inserts arriving within the window are published with one applyBatch.
+    private static final long INSERT_BATCH_WINDOW_MS = 200;
+    private static final int INSERT_BATCH_MAX = 16;
 
     private final IBinder mBinder = new LocalBinder();
     private Listener mListener;
-    // Memory used by the total queued save request, in bytes.
-    private long mMemoryUse;
+    private SaveScheduler mScheduler;
+    private MediaStoreBatcher mBatcher;
+    // Saves that name no session keep their order within these.
+    private final Object mPhotoSession = new Object();
+    private final Object mVideoSession = new Object();
 
     public interface Listener {
         public void onQueueStatus(boolean full);
@@ -88,15 +94,109 @@ public class MediaSaveService extends Service {
 
     @Override
     public void onDestroy() {
+        mScheduler.shutdown();
+        mBatcher.flush();
     }
 
     @Override
     public void onCreate() {
-        mMemoryUse = 0;
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        Executor mainExecutor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mainHandler.post(command);
+            }
+        };
+        // The memory limit for unsaved images, in MB.
+        mScheduler = new SaveScheduler(PersistUtil.getSaveWorkerCount(),
+                PersistUtil.getMemoryLimit() * 1024L * 1024L, mainExecutor);
+        mBatcher = new MediaStoreBatcher(INSERT_BATCH_WINDOW_MS, INSERT_BATCH_MAX, mainExecutor);
+        // Burst files synced in batches are finished once the queue drains.
+        mScheduler.setIdleCallback(new Runnable() {
+            @Override
+            public void run() {
+                Storage.getFileWriter().syncPending();
+            }
+        });
+        // Saves of this process start after the cutoff, allowing for coarse file times.
+        final long sweepCutoff = System.currentTimeMillis() - PENDING_SWEEP_MARGIN_MS;
+        mScheduler.submit(SaveScheduler.Lane.DEBUG, null, 0, new SaveScheduler.Job() {
+            @Override
+            public void run() {
+                Storage.sweepPendingFiles(sweepCutoff);
+            }
+
+            @Override
+            public void onDone() {
+            }
+        });
+        mScheduler.setQueueListener(new SaveScheduler.QueueListener() {
+            @Override
+            public void onQueueStatus(boolean full) {
+                if (full) {
+                    onQueueFull();
+                } else {
+                    onQueueAvailable();
+                }
+            }
+        });
     }
 
     public boolean isQueueFull() {
-        return (mMemoryUse >= SAVE_TASK_MEMORY_LIMIT);
+        return mScheduler.isQueueFull();
+    }
+
+    // Bytes held by the queued saves.
+    public long getQueueBytes() {
+        return mScheduler.getMemoryUse();
+    }
+
+    public long getPeakQueueBytes() {
+        return mScheduler.getPeakMemoryUse();
+    }
+
+    /*
+     * Burst capture calls this before each shot with the expected size of the shot. 0 means
+     * capture now, otherwise wait that long and ask again so the capture rate follows the
+     * save rate instead of filling the queue.
+     */
+    public long getAdmissionDelayMs(long expectedBytes) {
+        return mScheduler.getAdmissionDelayMs(expectedBytes);
+    }
+
+    // Burst shots that can be captured now without waiting, at most max.
+    public int getAdmissibleShots(long expectedBytes, int max) {
+        return mScheduler.getAdmissibleCount(expectedBytes, max);
+    }
+
+    /*
+     * Burst shots are synced in batches so a slow card doesn't stall every shot. A single
+     * photo is left to writeback like before, unless syncing it is turned on with
+     * persist.vendor.camera.save.sync_single. Debug images are never synced.
+     */
+    private static ImageFileWriter.SyncPolicy getSyncPolicy(SaveScheduler.Lane lane) {
+        switch (lane) {
+            case BURST:
+                return ImageFileWriter.SyncPolicy.EVERY_N;
+            case SINGLE:
+                return PersistUtil.isSaveSyncSingleEnabled()
+                        ? ImageFileWriter.SyncPolicy.PER_FILE : ImageFileWriter.SyncPolicy.NONE;
+            default:
+                return ImageFileWriter.SyncPolicy.NONE;
+        }
+    }
+
+    private static long sizeOf(byte[] buffer) {
+        return (buffer == null) ? 0 : buffer.length;
+    }
+
+    private static long sizeOf(String string) {
+        // Java strings hold UTF-16 chars.
+        return (string == null) ? 0 : 2L * string.length();
+    }
+
+    private static long sizeOf(ExifInterface exif) {
+        return (exif == null) ? 0 : sizeOf(exif.getThumbnailBytes());
     }
 
     public void addMpoImage(final byte[] csImage,
@@ -114,32 +214,31 @@ public class MediaSaveService extends Service {
                 width, height, title, date, loc, orientation, l,
                 resolver, pictureFormat);
 
-        long size = (csImage == null ? 0
-                : csImage.length)
-                + bayerImg.length + monoImg.length;
-        mMemoryUse += size;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        mScheduler.submit(SaveScheduler.Lane.SINGLE, mPhotoSession, t.retainedBytes(), t);
     }
 
     public void addImage(final byte[] data, String title, long date, Location loc,
             int width, int height, int orientation, ExifInterface exif,
             OnMediaSavedListener l, ContentResolver resolver, String pictureFormat) {
+        addImage(data, title, date, loc, width, height, orientation, exif, l, resolver,
+                pictureFormat, SaveScheduler.Lane.SINGLE, mPhotoSession);
+    }
+
+    /* Saves of one session are stored in the order they are added. */
+    public void addImage(final byte[] data, String title, long date, Location loc,
+            int width, int height, int orientation, ExifInterface exif,
+            OnMediaSavedListener l, ContentResolver resolver, String pictureFormat,
+            SaveScheduler.Lane lane, Object session) {
         if (isQueueFull()) {
             Log.e(TAG, "Cannot add image when the queue is full");
             return;
         }
         ImageSaveTask t = new ImageSaveTask(data, title, date,
                 (loc == null) ? null : new Location(loc),
-                width, height, orientation, exif, resolver, l, pictureFormat);
+                width, height, orientation, exif, resolver, l, pictureFormat,
+                getSyncPolicy(lane), lane == SaveScheduler.Lane.BURST);
 
-        mMemoryUse += data.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        mScheduler.submit(lane, session, t.retainedBytes(), t);
     }
 
     public void addXmpImage(byte[] mainImage, GImage bayer, GDepth gDepth,
@@ -152,13 +251,10 @@ public class MediaSaveService extends Service {
         }
         XmpImageSaveTask t = new XmpImageSaveTask(mainImage, bayer, gDepth,
                 title, date,  (loc == null) ? null : new Location(loc),
-                width, height, orientation, exif, resolver, l, pictureFormat);
+                width, height, orientation, exif, resolver, l, pictureFormat,
+                getSyncPolicy(SaveScheduler.Lane.SINGLE));
 
-        mMemoryUse += mainImage.length;
-        if (isQueueFull()) {
-            onQueueFull();
-        }
-        t.execute();
+        mScheduler.submit(SaveScheduler.Lane.SINGLE, mPhotoSession, t.retainedBytes(), t);
     }
     public void addImage(final byte[] data, String title, long date, Location loc,
                          int orientation, ExifInterface exif,
@@ -179,7 +275,8 @@ public class MediaSaveService extends Service {
             OnMediaSavedListener l, ContentResolver resolver) {
         // We don't set a queue limit for video saving because the file
         // is already in the storage. Only updating the database.
-        new VideoSaveTask(path, duration, values, l, resolver).execute();
+        mScheduler.submit(SaveScheduler.Lane.VIDEO, mVideoSession, 0,
+                new VideoSaveTask(path, duration, values, l, resolver));
     }
 
     public void setListener(Listener l) {
@@ -196,7 +293,7 @@ public class MediaSaveService extends Service {
         if (mListener != null) mListener.onQueueStatus(false);
     }
 
-    private class MpoSaveTask extends AsyncTask<Void, Void, Uri> {
+    private class MpoSaveTask implements SaveScheduler.Job {
         private byte[] csImage;
         private byte[] bayerImage;
         private byte[] monoImage;
@@ -208,6 +305,7 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        private Uri uri;
 
         public MpoSaveTask(byte[] csImage, byte[] bayerImg,
                 byte[] monoImg, int width, int height, String title, long date,
@@ -228,7 +326,7 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        public void run() {
             // encode jpeg and add exif for all images
             MpoData mpo = new MpoData();
             MpoImageData bayer = new MpoImageData(bayerImage,
@@ -251,32 +349,42 @@ public class MediaSaveService extends Service {
 
             // combine to single mpo
             String path = Storage.generateFilepath(title, pictureFormat);
-            int size = MpoInterface.writeMpo(mpo, path);
+            int size;
+            if (Storage.isStagingEnabled()) {
+                size = MpoInterface.writeMpo(mpo, Storage.getPendingPath(path));
+                if (!Storage.commitPendingFile(path)) {
+                    new File(Storage.getPendingPath(path)).delete();
+                }
+            } else {
+                size = MpoInterface.writeMpo(mpo, path);
+            }
             // Try to get the real image size after add exif.
             File f = new File(path);
             if (f.exists() && f.isFile()) {
                 size = (int) f.length();
+                uri = Storage.addImage(resolver, title, date, loc, orientation,
+                        size, path, width, height, pictureFormat);
+            } else if (!Storage.isStagingEnabled()) {
+                uri = Storage.addImage(resolver, title, date, loc, orientation,
+                        size, path, width, height, pictureFormat);
             }
-            return Storage.addImage(resolver, title, date, loc, orientation,
-                    size, path, width, height, pictureFormat);
+            csImage = null;
+            bayerImage = null;
+            monoImage = null;
+        }
+
+        long retainedBytes() {
+            return sizeOf(csImage) + sizeOf(bayerImage) + sizeOf(monoImage);
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
+        public void onDone() {
             if (listener != null)
                 listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            long size = (csImage == null ? 0
-                    : csImage.length)
-                    + bayerImage.length
-                    + monoImage.length;
-            mMemoryUse -= size;
-            if (isQueueFull() != previouslyFull)
-                onQueueAvailable();
         }
     }
 
-    private class ImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class ImageSaveTask implements SaveScheduler.Job {
         private byte[] data;
         private String title;
         private long date;
@@ -287,10 +395,15 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        private ImageFileWriter.SyncPolicy syncPolicy;
+        // Published through the batcher, which also calls the listener.
+        private boolean batchInsert;
+        private Uri uri;
 
         public ImageSaveTask(byte[] data, String title, long date, Location loc,
                              int width, int height, int orientation, ExifInterface exif,
-                             ContentResolver resolver, OnMediaSavedListener listener, String pictureFormat) {
+                             ContentResolver resolver, OnMediaSavedListener listener, String pictureFormat,
+                             ImageFileWriter.SyncPolicy syncPolicy, boolean batchInsert) {
             this.data = data;
             this.title = title;
             this.date = date;
@@ -302,15 +415,12 @@ public class MediaSaveService extends Service {
             this.resolver = resolver;
             this.listener = listener;
             this.pictureFormat = pictureFormat;
+            this.syncPolicy = syncPolicy;
+            this.batchInsert = batchInsert;
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
-        }
-
-        @Override
-        protected Uri doInBackground(Void... v) {
+        public void run() {
             if (width == 0 || height == 0) {
                 // Decode bounds
                 BitmapFactory.Options options = new BitmapFactory.Options();
@@ -319,20 +429,35 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            if (batchInsert) {
+                ContentValues values = Storage.writeImage(title, date, loc, orientation, exif,
+                        data, width, height, pictureFormat, syncPolicy);
+                mBatcher.add(resolver, values, new MediaStoreBatcher.Callback() {
+                    @Override
+                    public void onInserted(Uri uri) {
+                        if (listener != null) listener.onMediaSaved(uri);
+                    }
+                });
+            } else {
+                uri = Storage.addImage(
+                        resolver, title, date, loc, orientation, exif, data, width, height,
+                        pictureFormat, syncPolicy);
+            }
+            data = null;
+            exif = null;
+        }
+
+        long retainedBytes() {
+            return sizeOf(data) + sizeOf(exif);
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
-            if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
+        public void onDone() {
+            if (!batchInsert && listener != null) listener.onMediaSaved(uri);
         }
     }
 
-    private class XmpImageSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class XmpImageSaveTask implements SaveScheduler.Job {
         private byte[] mainImage;
         private GImage bayer;
         private GDepth gDepth;
@@ -346,12 +471,15 @@ public class MediaSaveService extends Service {
         private ContentResolver resolver;
         private OnMediaSavedListener listener;
         private String pictureFormat;
+        private ImageFileWriter.SyncPolicy syncPolicy;
+        private Uri uri;
 
         public XmpImageSaveTask(byte[] mainImage, GImage bayer, GDepth gDepth,
                                 String title, long date, Location loc,
                                 int width, int height, int orientation,
                                 ExifInterface exif, ContentResolver resolver,
-                                OnMediaSavedListener listener, String pictureFormat) {
+                                OnMediaSavedListener listener, String pictureFormat,
+                                ImageFileWriter.SyncPolicy syncPolicy) {
             this.mainImage = mainImage;
             this.gDepth = gDepth;
             this.bayer = bayer;
@@ -365,16 +493,12 @@ public class MediaSaveService extends Service {
             this.resolver = resolver;
             this.listener = listener;
             this.pictureFormat = pictureFormat;
+            this.syncPolicy = syncPolicy;
         }
 
         @Override
-        protected void onPreExecute() {
-            // do nothing.
+        public void run() {
             Log.d(TAG,"start XmpImageSaveTask");
-        }
-
-        @Override
-        protected Uri doInBackground(Void... v) {
             data = embedGDepthAndBayerInClearSight(mainImage);
             if ( data == null ) {
                 data = mainImage;
@@ -389,17 +513,27 @@ public class MediaSaveService extends Service {
                 width = options.outWidth;
                 height = options.outHeight;
             }
-            return Storage.addImage(
-                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat);
+            uri = Storage.addImage(
+                    resolver, title, date, loc, orientation, exif, data, width, height, pictureFormat,
+                    syncPolicy);
+            mainImage = null;
+            bayer = null;
+            gDepth = null;
+            data = null;
+            exif = null;
+        }
+
+        // The embedded image is built and dropped within run().
+        long retainedBytes() {
+            return sizeOf(mainImage) + sizeOf(exif)
+                    + ((bayer == null) ? 0 : sizeOf(bayer.getData()))
+                    + ((gDepth == null) ? 0 : sizeOf(gDepth.getData()));
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
+        public void onDone() {
             Log.d(TAG,"XmpImageSaveTask end");
             if (listener != null) listener.onMediaSaved(uri);
-            boolean previouslyFull = isQueueFull();
-            mMemoryUse -= data.length;
-            if (isQueueFull() != previouslyFull) onQueueAvailable();
         }
 
 
@@ -461,12 +595,13 @@ public class MediaSaveService extends Service {
         }
     }
 
-    private class VideoSaveTask extends AsyncTask <Void, Void, Uri> {
+    private class VideoSaveTask implements SaveScheduler.Job {
         private String path;
         private long duration;
         private ContentValues values;
         private OnMediaSavedListener listener;
         private ContentResolver resolver;
+        private Uri uri;
 
         public VideoSaveTask(String path, long duration, ContentValues values,
                 OnMediaSavedListener l, ContentResolver r) {
@@ -478,10 +613,10 @@ public class MediaSaveService extends Service {
         }
 
         @Override
-        protected Uri doInBackground(Void... v) {
+        public void run() {
             values.put(Video.Media.SIZE, new File(path).length());
             values.put(Video.Media.DURATION, duration);
-            Uri uri = null;
+            uri = null;
             try {
                 Uri videoTable = Uri.parse(VIDEO_BASE_URI);
                 uri = resolver.insert(videoTable, values);
@@ -504,11 +639,10 @@ public class MediaSaveService extends Service {
             } finally {
                 Log.v(TAG, "Current video URI: " + uri);
             }
-            return uri;
         }
 
         @Override
-        protected void onPostExecute(Uri uri) {
+        public void onDone() {
             if (listener != null) listener.onMediaSaved(uri);
         }
     }
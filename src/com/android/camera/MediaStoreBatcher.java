@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ *     Redistribution and use in source and binary forms, with or without
+ *     modification, are permitted provided that the following conditions are
+ *     met:
+ *         * Redistributions of source code must retain the above copyright
+ *           notice, this list of conditions and the following disclaimer.
+ *         * Redistributions in binary form must reproduce the above
+ *           copyright notice, this list of conditions and the following
+ *           disclaimer in the documentation and/or other materials provided
+ *           with the distribution.
+ *         * Neither the name of The Linux Foundation nor the names of its
+ *           contributors may be used to endorse or promote products derived
+ *           from this software without specific prior written permission.
+ *
+ *     THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ *     WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ *     MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ *     ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ *     BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *     CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *     SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ *     BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ *     WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ *     OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ *     IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Coalesces MediaStore inserts that arrive within a short window into one applyBatch, so a
+ * burst costs one provider round trip per batch instead of one per image. Batches are
+ * published on one thread in arrival order and the callbacks of a batch are delivered in
+ * order on the callback executor, so each image still hears about its own uri in order.
+ */
+public class MediaStoreBatcher {
+    private static final String TAG = "MediaStoreBatcher";
+    private static final long PUBLISHER_KEEP_ALIVE_MS = 1000;
+
+    public interface Callback {
+        public void onInserted(Uri uri);
+    }
+
+    private static class Pending {
+        final ContentValues values;
+        final Callback callback;
+
+        Pending(ContentValues values, Callback callback) {
+            this.values = values;
+            this.callback = callback;
+        }
+    }
+
+    private final long mWindowMs;
+    private final int mMaxBatch;
+    private final Executor mCallbackExecutor;
+    private final ScheduledThreadPoolExecutor mPublisher;
+    private final Object mLock = new Object();
+    private ContentResolver mResolver;
+    private ArrayList<Pending> mPending = new ArrayList<Pending>();
+    private ScheduledFuture<?> mWindowFlush;
+    private long mBatches;
+    private long mInserted;
+
+    public MediaStoreBatcher(long windowMs, int maxBatch, Executor callbackExecutor) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("Invalid batch size " + maxBatch);
+        }
+        mWindowMs = windowMs;
+        mMaxBatch = maxBatch;
+        mCallbackExecutor = callbackExecutor;
+        mPublisher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread("MediaStoreBatcher") {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                };
+            }
+        });
+        //The thread goes away between bursts, so the batcher needs no shutdown.
+        mPublisher.setKeepAliveTime(PUBLISHER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+        mPublisher.allowCoreThreadTimeOut(true);
+    }
+
+    /* The window starts with the first insert of a batch, a full batch goes out at once.
+       Null values insert nothing and call back with a null uri, in order with the rest. */
+    public void add(ContentResolver resolver, ContentValues values, Callback callback) {
+        synchronized (mLock) {
+            if (!mPending.isEmpty() && resolver != mResolver) {
+                publishLocked();
+            }
+            mResolver = resolver;
+            mPending.add(new Pending(values, callback));
+            if (mPending.size() >= mMaxBatch) {
+                publishLocked();
+            } else if (mPending.size() == 1) {
+                mWindowFlush = mPublisher.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, mWindowMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /* Publishes what is pending without waiting for the window. */
+    public void flush() {
+        synchronized (mLock) {
+            if (!mPending.isEmpty()) {
+                publishLocked();
+            }
+        }
+    }
+
+    public long getBatchCount() {
+        synchronized (mLock) {
+            return mBatches;
+        }
+    }
+
+    public long getInsertCount() {
+        synchronized (mLock) {
+            return mInserted;
+        }
+    }
+
+    private void publishLocked() {
+        if (mWindowFlush != null) {
+            mWindowFlush.cancel(false);
+            mWindowFlush = null;
+        }
+        final ContentResolver resolver = mResolver;
+        final ArrayList<Pending> batch = mPending;
+        mPending = new ArrayList<Pending>();
+        mBatches++;
+        mInserted += batch.size();
+        //One thread keeps the batches, and so their callbacks, in arrival order.
+        mPublisher.execute(new Runnable() {
+            @Override
+            public void run() {
+                publish(resolver, batch);
+            }
+        });
+    }
+
+    private void publish(ContentResolver resolver, final ArrayList<Pending> batch) {
+        ArrayList<ContentValues> values = new ArrayList<ContentValues>(batch.size());
+        for (Pending p : batch) {
+            if (p.values != null) {
+                values.add(p.values);
+            }
+        }
+        Uri[] inserted = values.isEmpty() ? new Uri[0] : Storage.insertImages(resolver, values);
+        final Uri[] uris = new Uri[batch.size()];
+        for (int i = 0, j = 0; i < batch.size(); i++) {
+            if (batch.get(i).values != null) {
+                uris[i] = inserted[j++];
+            }
+        }
+        Log.v(TAG, "Published " + values.size() + " images");
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < batch.size(); i++) {
+                    Callback callback = batch.get(i).callback;
+                    if (callback != null) {
+                        callback.onInserted(uris[i]);
+                    }
+                }
+            }
+        });
+    }
+}
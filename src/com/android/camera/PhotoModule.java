@@ -258,6 +258,8 @@ public class PhotoModule
     private static final int LONGSHOT_CANCEL_THRESHOLD = 40 * 1024 * 1024;
     private long SECONDARY_SERVER_MEM;
     private boolean mLongshotActive = false;
+    // Longshot images are saved in order on the burst lane.
+    private Object mLongshotSession;
 
     // We use a queue to generated names of the images to be used later
     // when the image is ready to be saved.
@@ -1092,37 +1094,60 @@ public class PhotoModule
             mShutterCallbackTime = System.currentTimeMillis();
             mShutterLag = mShutterCallbackTime - mCaptureStartTime;
             Log.e(TAG, "[KPI Perf] PROFILE_SHUTTER_LAG mShutterLag = " + mShutterLag + "ms");
-            synchronized(mCameraDevice) {
+            takeNextLongshot();
+        }
+    }
 
-                if (mCameraState != LONGSHOT ||
-                    !mLongshotActive) {
-                    return;
-                }
+    private final Runnable mNextLongshot = new Runnable() {
+        @Override
+        public void run() {
+            takeNextLongshot();
+        }
+    };
 
-                if(isLongshotNeedCancel()) {
-                    return;
-                }
+    private void takeNextLongshot() {
+        if (mCameraDevice == null) {
+            return;
+        }
+        synchronized(mCameraDevice) {
 
-                if(mLongShotCaptureCount == mLongShotCaptureCountLimit) {
-                    mLongshotActive = false;
-                    return;
-                }
+            if (mCameraState != LONGSHOT ||
+                !mLongshotActive) {
+                return;
+            }
 
-                mUI.doShutterAnimation();
+            if(isLongshotNeedCancel()) {
+                return;
+            }
 
-                Location loc = getLocationAccordPictureFormat(mParameters.get(KEY_PICTURE_FORMAT));
+            if(mLongShotCaptureCount == mLongShotCaptureCountLimit) {
+                mLongshotActive = false;
+                return;
+            }
 
-                mLongShotCaptureCount++;
-                if (mLongshotSave) {
-                    mCameraDevice.takePicture(mHandler,
-                            new LongshotShutterCallback(),
-                            mRawPictureCallback, mPostViewPictureCallback,
-                            new LongshotPictureCallback(loc));
-                } else {
-                    mCameraDevice.takePicture(mHandler,new LongshotShutterCallback(),
-                            mRawPictureCallback, mPostViewPictureCallback,
-                            new JpegPictureCallback(loc));
-                }
+            // Slow down to the save rate before the queue fills up.
+            MediaSaveService saveService = mActivity.getMediaSaveService();
+            long delay = (saveService == null) ? 0
+                    : saveService.getAdmissionDelayMs(mJpegFileSizeEstimation);
+            if (delay > 0) {
+                mHandler.postDelayed(mNextLongshot, delay);
+                return;
+            }
+
+            mUI.doShutterAnimation();
+
+            Location loc = getLocationAccordPictureFormat(mParameters.get(KEY_PICTURE_FORMAT));
+
+            mLongShotCaptureCount++;
+            if (mLongshotSave) {
+                mCameraDevice.takePicture(mHandler,
+                        new LongshotShutterCallback(),
+                        mRawPictureCallback, mPostViewPictureCallback,
+                        new LongshotPictureCallback(loc));
+            } else {
+                mCameraDevice.takePicture(mHandler,new LongshotShutterCallback(),
+                        mRawPictureCallback, mPostViewPictureCallback,
+                        new JpegPictureCallback(loc));
             }
         }
     }
@@ -1384,7 +1409,8 @@ public class PhotoModule
                 String pictureFormat = mParameters.get(KEY_PICTURE_FORMAT);
                 mActivity.getMediaSaveService().addImage(
                        null, title, date, mLocation, s.width, s.height,
-                       0, null, mOnMediaSavedListener, mContentResolver, pictureFormat);
+                       0, null, mOnMediaSavedListener, mContentResolver, pictureFormat,
+                       SaveScheduler.Lane.BURST, mLongshotSession);
             } else {
                 Log.e(TAG, "Failed to move jpeg file");
             }
@@ -1589,10 +1615,18 @@ public class PhotoModule
                             exif.setTag(directionTag);
                         }
                         String mPictureFormat = mParameters.get(KEY_PICTURE_FORMAT);
-                            mActivity.getMediaSaveService().addImage(
-                                    jpegData, title, date, mLocation, width, height,
-                                    orientation, exif, mOnMediaSavedListener,
-                                    mContentResolver, mPictureFormat);
+                            if (mLongshotActive) {
+                                mActivity.getMediaSaveService().addImage(
+                                        jpegData, title, date, mLocation, width, height,
+                                        orientation, exif, mOnMediaSavedListener,
+                                        mContentResolver, mPictureFormat,
+                                        SaveScheduler.Lane.BURST, mLongshotSession);
+                            } else {
+                                mActivity.getMediaSaveService().addImage(
+                                        jpegData, title, date, mLocation, width, height,
+                                        orientation, exif, mOnMediaSavedListener,
+                                        mContentResolver, mPictureFormat);
+                            }
                             if (mRefocus && mReceivedSnapNum == 7) {
                                  mUI.showRefocusToast(mRefocus);
                             }
@@ -2630,6 +2664,7 @@ public class PhotoModule
                 if(isLongshotNeedCancel()) {
                     return;
                 }
+                mLongshotSession = new Object();
                 mLongshotActive = true;
                 setCameraState(PhotoController.LONGSHOT);
                 mFocusManager.doSnap();
@@ -0,0 +1,346 @@
+/*
+ * Copyright (c) 2016, The Linux Foundation. All rights reserved.
+ *
+ *     Redistribution and use in source and binary forms, with or without
+ *     modification, are permitted provided that the following conditions are
+ *     met:
+ *         * Redistributions of source code must retain the above copyright
+ *           notice, this list of conditions and the following disclaimer.
+ *         * Redistributions in binary form must reproduce the above
+ *           copyright notice, this list of conditions and the following
+ *           disclaimer in the documentation and/or other materials provided
+ *           with the distribution.
+ *         * Neither the name of The Linux Foundation nor the names of its
+ *           contributors may be used to endorse or promote products derived
+ *           from this software without specific prior written permission.
+ *
+ *     THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+ *     WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+ *     MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ *     ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+ *     BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ *     CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ *     SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+ *     BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+ *     WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ *     OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+ *     IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+/*
+ * Runs media saves on its own worker threads. Jobs are queued in priority lanes and the
+ * jobs of one capture session run one at a time in submission order, so a slow video
+ * insert no longer holds back photos. Memory of the queued jobs is accounted here and
+ * the queue reports full past the limit. Burst capture asks for an admission delay before
+ * each shot so it slows down to the drain rate instead of running into a full queue.
+ */
+public class SaveScheduler {
+    private static final String TAG = "SaveScheduler";
+    //Shots are admitted without delay while the queue stays below this share of the limit.
+    private static final float ADMISSION_HEADROOM = 0.8f;
+    private static final long MIN_ADMISSION_DELAY_MS = 10;
+    private static final long MAX_ADMISSION_DELAY_MS = 500;
+    private static final double DRAIN_RATE_WEIGHT = 0.25;
+
+    /* In priority order, a worker takes the first lane with a session ready. */
+    public enum Lane {
+        BURST,
+        SINGLE,
+        VIDEO,
+        DEBUG
+    }
+
+    public interface Job {
+        /* Runs on a worker thread, the charged buffers are released when it returns */
+        public void run();
+        /* Runs on the callback executor, in session order */
+        public void onDone();
+    }
+
+    public interface QueueListener {
+        public void onQueueStatus(boolean full);
+    }
+
+    private static class Entry {
+        final Lane lane;
+        final long bytes;
+        final Job job;
+
+        Entry(Lane lane, long bytes, Job job) {
+            this.lane = lane;
+            this.bytes = bytes;
+            this.job = job;
+        }
+    }
+
+    private static class Session {
+        final Object key;
+        final ArrayDeque<Entry> pending = new ArrayDeque<Entry>();
+        boolean running;
+        boolean queued;
+
+        Session(Object key) {
+            this.key = key;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final long mMemoryLimit;
+    private final Executor mCallbackExecutor;
+    private final HashMap<Object, Session> mSessions = new HashMap<Object, Session>();
+    private final ArrayList<ArrayDeque<Session>> mReady = new ArrayList<ArrayDeque<Session>>();
+    private final Thread[] mWorkers;
+    private QueueListener mListener;
+    private Runnable mIdleCallback;
+    // Memory used by the queued and running jobs, in bytes.
+    private long mMemoryUse;
+    private long mPeakMemoryUse;
+    // Smoothed rate the workers release memory at, 0 until measured.
+    private double mDrainBytesPerMs;
+    private long mLastReleaseNs;
+    private boolean mShutdown;
+
+    public SaveScheduler(int workerCount, long memoryLimit, Executor callbackExecutor) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("Invalid worker count " + workerCount);
+        }
+        mMemoryLimit = memoryLimit;
+        mCallbackExecutor = callbackExecutor;
+        for (int i = 0; i < Lane.values().length; i++) {
+            mReady.add(new ArrayDeque<Session>());
+        }
+        mWorkers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            mWorkers[i] = new Thread(new Worker(), "SaveWorker-" + i);
+            mWorkers[i].start();
+        }
+    }
+
+    public void setQueueListener(QueueListener listener) {
+        synchronized (mLock) {
+            mListener = listener;
+        }
+    }
+
+    /* Runs on a worker whenever the last queued job has finished. */
+    public void setIdleCallback(Runnable callback) {
+        synchronized (mLock) {
+            mIdleCallback = callback;
+        }
+    }
+
+    public boolean isQueueFull() {
+        synchronized (mLock) {
+            return mMemoryUse >= mMemoryLimit;
+        }
+    }
+
+    public long getMemoryUse() {
+        synchronized (mLock) {
+            return mMemoryUse;
+        }
+    }
+
+    public long getPeakMemoryUse() {
+        synchronized (mLock) {
+            return mPeakMemoryUse;
+        }
+    }
+
+    public void resetPeakMemoryUse() {
+        synchronized (mLock) {
+            mPeakMemoryUse = mMemoryUse;
+        }
+    }
+
+    public long getMemoryLimit() {
+        return mMemoryLimit;
+    }
+
+    /* Shots of bytesPerShot that fit below the headroom now, at most max. */
+    public int getAdmissibleCount(long bytesPerShot, int max) {
+        if (bytesPerShot <= 0) {
+            return max;
+        }
+        synchronized (mLock) {
+            long room = (long) (mMemoryLimit * ADMISSION_HEADROOM) - mMemoryUse;
+            return (int) Math.max(0, Math.min(max, room / bytesPerShot));
+        }
+    }
+
+    /* How long to wait before capturing a shot that will charge expectedBytes. 0 admits it
+       now, otherwise ask again after the delay. The delay is the time the workers need to
+       drain the excess over the headroom at the measured rate. */
+    public long getAdmissionDelayMs(long expectedBytes) {
+        synchronized (mLock) {
+            long excess = mMemoryUse + expectedBytes - (long) (mMemoryLimit * ADMISSION_HEADROOM);
+            if (excess <= 0) {
+                return 0;
+            }
+            if (mDrainBytesPerMs <= 0) {
+                return MAX_ADMISSION_DELAY_MS;
+            }
+            long delay = (long) Math.ceil(excess / mDrainBytesPerMs);
+            return Math.max(MIN_ADMISSION_DELAY_MS, Math.min(MAX_ADMISSION_DELAY_MS, delay));
+        }
+    }
+
+    public int getWorkerCount() {
+        return mWorkers.length;
+    }
+
+    /* A null session orders the job with no other job. Jobs of one session run in
+       submission order whatever their lanes are. Returns false after shutdown. */
+    public boolean submit(Lane lane, Object session, long bytes, Job job) {
+        QueueListener fullListener = null;
+        synchronized (mLock) {
+            if (mShutdown) {
+                Log.e(TAG, "Save submitted after shutdown");
+                return false;
+            }
+            Object key = (session == null) ? new Object() : session;
+            Session s = mSessions.get(key);
+            if (s == null) {
+                s = new Session(key);
+                mSessions.put(key, s);
+            }
+            s.pending.add(new Entry(lane, bytes, job));
+            boolean wasFull = mMemoryUse >= mMemoryLimit;
+            if (mMemoryUse == 0) {
+                //Idle time doesn't count against the drain rate.
+                mLastReleaseNs = System.nanoTime();
+            }
+            mMemoryUse += bytes;
+            mPeakMemoryUse = Math.max(mPeakMemoryUse, mMemoryUse);
+            if (!wasFull && mMemoryUse >= mMemoryLimit) {
+                fullListener = mListener;
+            }
+            if (!s.running && !s.queued) {
+                enqueueLocked(s);
+                mLock.notify();
+            }
+        }
+        if (fullListener != null) {
+            fullListener.onQueueStatus(true);
+        }
+        return true;
+    }
+
+    /* Queued jobs still run, the workers exit once the lanes are empty. */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void enqueueLocked(Session s) {
+        mReady.get(s.pending.peek().lane.ordinal()).add(s);
+        s.queued = true;
+    }
+
+    private Session pollReadyLocked() {
+        for (ArrayDeque<Session> lane : mReady) {
+            Session s = lane.poll();
+            if (s != null) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /* Runs on a worker once the job dropped its buffers, listeners hear on the callback
+       executor. */
+    private void release(long bytes) {
+        final QueueListener availableListener;
+        synchronized (mLock) {
+            boolean wasFull = mMemoryUse >= mMemoryLimit;
+            mMemoryUse -= bytes;
+            long now = System.nanoTime();
+            double elapsedMs = (now - mLastReleaseNs) / 1000000.0;
+            if (bytes > 0 && elapsedMs > 0) {
+                double rate = bytes / elapsedMs;
+                mDrainBytesPerMs = (mDrainBytesPerMs <= 0) ? rate
+                        : mDrainBytesPerMs + DRAIN_RATE_WEIGHT * (rate - mDrainBytesPerMs);
+            }
+            mLastReleaseNs = now;
+            availableListener = (wasFull && mMemoryUse < mMemoryLimit) ? mListener : null;
+        }
+        if (availableListener != null) {
+            mCallbackExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    availableListener.onQueueStatus(false);
+                }
+            });
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            //Same as the AsyncTask pool the saves used to run on.
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                final Session session;
+                final Entry entry;
+                synchronized (mLock) {
+                    Session s;
+                    while ((s = pollReadyLocked()) == null) {
+                        if (mShutdown) {
+                            return;
+                        }
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    session = s;
+                    session.queued = false;
+                    session.running = true;
+                    entry = session.pending.poll();
+                }
+                try {
+                    entry.job.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Save job failed", e);
+                }
+                release(entry.bytes);
+                //Posted before the next job of the session can start.
+                mCallbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        entry.job.onDone();
+                    }
+                });
+                Runnable idleCallback = null;
+                synchronized (mLock) {
+                    session.running = false;
+                    if (session.pending.isEmpty()) {
+                        mSessions.remove(session.key);
+                        if (mSessions.isEmpty()) {
+                            idleCallback = mIdleCallback;
+                        }
+                    } else {
+                        enqueueLocked(session);
+                        mLock.notify();
+                    }
+                }
+                if (idleCallback != null) {
+                    idleCallback.run();
+                }
+            }
+        }
+    }
+}
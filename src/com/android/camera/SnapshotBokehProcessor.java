@@ -38,7 +38,6 @@ import android.graphics.Paint;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.YuvImage;
 import android.hardware.camera2.*;
 import android.hardware.camera2.params.Face;
 import android.hardware.camera2.params.InputConfiguration;
@@ -76,6 +75,7 @@ import java.util.TimeZone;
 
 import com.android.camera.PhotoModule.NamedImages.NamedEntity;
 import com.android.camera.imageprocessor.filter.ImageFilter;
+import com.android.camera.imageprocessor.TiledJpegEncoder;
 import com.android.camera.util.CameraUtil;
 
 import org.codeaurora.snapcam.filter.ClearSightNativeEngine;
@@ -838,36 +838,33 @@ public class SnapshotBokehProcessor {
         return outputStream.toByteArray();
     }
 
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
-    }
-
     private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
-        im.compressToJpeg(resultImage.outRoi, 75, bos);
-        byte[] bytes = bos.getArray();
-        bytes = addExifTags(bytes, orientation);
-        return bytes;
+        Rect roi = resultImage.outRoi;
+        return TiledJpegEncoder.getInstance().encode(resultImage.outBuffer.array(),
+                resultImage.width, resultImage.height, resultImage.stride, resultImage.stride,
+                roi.left, roi.top, roi.right, roi.bottom, 75, getExifSegment(orientation));
     }
 
     public byte[] addExifTags(byte[] jpeg, int orientationInDegree) {
         ExifInterface exif = new ExifInterface();
         exif.addOrientationTag(orientationInDegree);
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
         try {
-            exif.writeExif(jpeg, jpegOut);
+            return exif.insertExif(jpeg);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write EXIF", e);
+        }
+        return jpeg;
+    }
+
+    private byte[] getExifSegment(int orientationInDegree) {
+        ExifInterface exif = new ExifInterface();
+        exif.addOrientationTag(orientationInDegree);
+        try {
+            return exif.getExifSegment();
         } catch (IOException e) {
             Log.e(TAG, "Could not write EXIF", e);
         }
-        return jpegOut.toByteArray();
+        return null;
     }
 
     public static float byte2float(byte[] b, int index) {
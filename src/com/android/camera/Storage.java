@@ -17,9 +17,12 @@
 package com.android.camera;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.location.Location;
@@ -27,6 +30,7 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.StatFs;
+import android.provider.MediaStore;
 import android.provider.MediaStore.Images;
 import android.provider.MediaStore.Images.ImageColumns;
 import android.provider.MediaStore.MediaColumns;
@@ -35,6 +39,7 @@ import android.util.Log;
 import com.android.camera.data.LocalData;
 import com.android.camera.exif.ExifInterface;
 import com.android.camera.util.ApiHelper;
+import com.android.camera.util.PersistUtil;
 
 public class Storage {
     private static final String TAG = "CameraStorage";
@@ -45,6 +50,8 @@ public class Storage {
     public static final String DIRECTORY = DCIM + "/Camera";
     public static final String RAW_DIRECTORY = DCIM + "/Camera/raw";
     public static final String JPEG_POSTFIX = ".jpg";
+    // Files are written under this suffix and renamed once complete.
+    public static final String PENDING_POSTFIX = ".pending";
 
     // Match the code in MediaProvider.computeBucketValues().
     public static final String BUCKET_ID =
@@ -56,6 +63,9 @@ public class Storage {
     public static final long LOW_STORAGE_THRESHOLD_BYTES = 60 * 1024 * 1024;
 
     private static boolean sSaveSDCard = false;
+    private static final boolean sStaging = PersistUtil.isSaveStagingEnabled();
+    private static final ImageFileWriter sFileWriter =
+            new ImageFileWriter(PersistUtil.getSaveSyncEvery());
 
     public static boolean isSaveSDCard() {
         return sSaveSDCard;
@@ -74,12 +84,22 @@ public class Storage {
         }
     }
 
+    public static ImageFileWriter getFileWriter() {
+        return sFileWriter;
+    }
+
     public static int writeFile(String path, byte[] jpeg, ExifInterface exif,
             String mimeType) {
+        return writeFile(path, jpeg, exif, mimeType, ImageFileWriter.SyncPolicy.NONE);
+    }
+
+    // The exif header and the image are gather-written, returns the file size or 0.
+    public static int writeFile(String path, byte[] jpeg, ExifInterface exif,
+            String mimeType, ImageFileWriter.SyncPolicy syncPolicy) {
         if (exif != null && (mimeType == null ||
             mimeType.equalsIgnoreCase("jpeg"))) {
             try {
-                return exif.writeExif(jpeg, path);
+                return (int) sFileWriter.write(path, exif.getExifBuffers(jpeg), syncPolicy);
             } catch (Exception e) {
                 Log.e(TAG, "Failed to write data", e);
             }
@@ -88,25 +108,96 @@ public class Storage {
                  File dir = new File(RAW_DIRECTORY);
                  dir.mkdirs();
             }
-            writeFile(path, jpeg);
-            return jpeg.length;
+            if (writeFile(path, jpeg, syncPolicy)) {
+                return jpeg.length;
+            }
         }
         return 0;
     }
 
-    public static void writeFile(String path, byte[] data) {
-        FileOutputStream out = null;
+    public static String getPendingPath(String path) {
+        return path + PENDING_POSTFIX;
+    }
+
+    /*
+     * Writes the image to the pending sibling of path and renames it over path once it is
+     * complete, so a crash never leaves a truncated image under the final name. Returns the
+     * file size, or 0 with path untouched when the write failed.
+     */
+    public static int writeFileStaged(String path, byte[] jpeg, ExifInterface exif,
+            String mimeType, ImageFileWriter.SyncPolicy syncPolicy) {
+        if (!sStaging || jpeg == null) {
+            return writeFile(path, jpeg, exif, mimeType, syncPolicy);
+        }
+        String pendingPath = getPendingPath(path);
+        int size = writeFile(pendingPath, jpeg, exif, mimeType, syncPolicy);
+        if (size == 0 || !commitPendingFile(path)) {
+            new File(pendingPath).delete();
+            return 0;
+        }
+        return size;
+    }
+
+    // Renames the pending sibling of path to path, atomic within a file system.
+    public static boolean commitPendingFile(String path) {
+        if (new File(getPendingPath(path)).renameTo(new File(path))) {
+            return true;
+        }
+        Log.e(TAG, "Failed to rename pending file to " + path);
+        return false;
+    }
+
+    public static boolean isStagingEnabled() {
+        return sStaging;
+    }
+
+    /*
+     * Deletes pending files left behind by a save that never finished, e.g. when the process
+     * died mid-burst. Only files modified before cutoffMs are removed so saves running now
+     * are left alone. Returns the number of files deleted.
+     */
+    public static int sweepPendingFiles(long cutoffMs) {
+        ArrayList<File> dirs = new ArrayList<File>();
+        dirs.add(new File(DIRECTORY));
+        dirs.add(new File(RAW_DIRECTORY));
+        if (SDCard.instance().isWriteable()) {
+            dirs.add(new File(SDCard.instance().getDirectory()));
+        }
+        int deleted = 0;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.getName().endsWith(PENDING_POSTFIX) && file.isFile()
+                        && file.lastModified() < cutoffMs) {
+                    if (file.delete()) {
+                        deleted++;
+                    } else {
+                        Log.e(TAG, "Failed to delete pending file " + file);
+                    }
+                }
+            }
+        }
+        if (deleted > 0) {
+            Log.i(TAG, "Deleted " + deleted + " orphaned pending files");
+        }
+        return deleted;
+    }
+
+    public static boolean writeFile(String path, byte[] data) {
+        return writeFile(path, data, ImageFileWriter.SyncPolicy.NONE);
+    }
+
+    public static boolean writeFile(String path, byte[] data,
+            ImageFileWriter.SyncPolicy syncPolicy) {
         try {
-            out = new FileOutputStream(path);
-            out.write(data);
+            sFileWriter.write(path, data, syncPolicy);
+            return true;
         } catch (Exception e) {
             Log.e(TAG, "Failed to write data", e);
-        } finally {
-            try {
-                out.close();
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to close file after write", e);
-            }
+            return false;
         }
     }
 
@@ -114,16 +205,34 @@ public class Storage {
     public static Uri addImage(ContentResolver resolver, String title, long date,
             Location location, int orientation, ExifInterface exif, byte[] jpeg, int width,
             int height, String mimeType) {
+        return addImage(resolver, title, date, location, orientation, exif, jpeg, width,
+                height, mimeType, ImageFileWriter.SyncPolicy.NONE);
+    }
 
+    public static Uri addImage(ContentResolver resolver, String title, long date,
+            Location location, int orientation, ExifInterface exif, byte[] jpeg, int width,
+            int height, String mimeType, ImageFileWriter.SyncPolicy syncPolicy) {
+        ContentValues values = writeImage(title, date, location, orientation, exif, jpeg,
+                width, height, mimeType, syncPolicy);
+        return (values == null) ? null : insertImage(resolver, values);
+    }
+
+    // Writes the image and returns the values to publish it with, or null if there is
+    // nothing complete to index.
+    public static ContentValues writeImage(String title, long date, Location location,
+            int orientation, ExifInterface exif, byte[] jpeg, int width, int height,
+            String mimeType, ImageFileWriter.SyncPolicy syncPolicy) {
         String path = generateFilepath(title, mimeType);
-        int size = writeFile(path, jpeg, exif, mimeType);
+        int size = writeFileStaged(path, jpeg, exif, mimeType, syncPolicy);
         // Try to get the real image size after add exif.
         File f = new File(path);
         if (f.exists() && f.isFile()) {
             size = (int) f.length();
+        } else if (sStaging) {
+            return null;
         }
-        return addImage(resolver, title, date, location, orientation,
-                size, path, width, height, mimeType);
+        return getContentValuesForData(title, date, location, orientation, size, path,
+                width, height, mimeType);
     }
 
     // Get a ContentValues object for the given photo data
@@ -174,7 +283,7 @@ public class Storage {
             Location location, int orientation, ExifInterface exif, byte[] jpeg, int width,
             int height, String mimeType) {
         String path = generateFilepath(title, mimeType);
-        writeFile(path, jpeg, exif, mimeType);
+        writeFileStaged(path, jpeg, exif, mimeType, ImageFileWriter.SyncPolicy.NONE);
         updateImage(imageUri, resolver, title, date, location, orientation, jpeg.length, path,
                 width, height, mimeType);
     }
@@ -292,6 +401,38 @@ public class Storage {
         }
     }
 
+    /*
+     * Inserts the images with one applyBatch round trip, the uris come back in order with
+     * null for the ones that failed. MediaProvider applies a batch in one transaction, so
+     * when it fails nothing was inserted and each image is inserted on its own.
+     */
+    public static Uri[] insertImages(ContentResolver resolver, List<ContentValues> values) {
+        Uri[] uris = new Uri[values.size()];
+        if (values.size() == 1) {
+            uris[0] = insertImage(resolver, values.get(0));
+            return uris;
+        }
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(values.size());
+        for (ContentValues v : values) {
+            ops.add(ContentProviderOperation.newInsert(Images.Media.EXTERNAL_CONTENT_URI)
+                    .withValues(v).build());
+        }
+        try {
+            ContentProviderResult[] results = resolver.applyBatch(MediaStore.AUTHORITY, ops);
+            for (int i = 0; i < uris.length && i < results.length; i++) {
+                uris[i] = results[i].uri;
+            }
+            return uris;
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to batch write MediaStore, inserting one by one" + th);
+        }
+        for (int i = 0; i < uris.length; i++) {
+            uris[i] = insertImage(resolver, values.get(i));
+        }
+        return uris;
+    }
+
     private static Uri insertImage(ContentResolver resolver, ContentValues values) {
         Uri uri = null;
         try {
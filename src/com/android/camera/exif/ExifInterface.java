@@ -800,9 +800,123 @@ public class ExifInterface {
         if (jpeg == null || exifOutStream == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        OutputStream s = getExifWriterStream(exifOutStream);
-        s.write(jpeg, 0, jpeg.length);
-        s.flush();
+        writeExifSpliced(jpeg, exifOutStream);
+        exifOutStream.flush();
+    }
+
+    /**
+     * Builds the APP1 segment, marker and length included, holding the exif
+     * tags of this ExifInterface object. It can be placed right after the SOI
+     * marker of a jpeg image by the encoder, so the image data doesn't have
+     * to be copied again to add the exif header.
+     *
+     * @return the APP1 segment.
+     * @throws IOException
+     */
+    public byte[] getExifSegment() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExifOutputStream s = (ExifOutputStream) getExifWriterStream(out);
+        s.writeExifSegment();
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a jpeg image with the tags from this ExifInterface object,
+     * removing prior exif tags. The image data is copied only once.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @return a new byte array containing the jpeg image with exif tags.
+     * @throws IOException
+     */
+    public byte[] insertExif(byte[] jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        byte[] app1 = getExifSegment();
+        int[] old = getJpegExifRange(jpeg);
+        byte[] out = new byte[app1.length + jpeg.length - (old[1] - old[0])];
+        int pos = 0;
+        System.arraycopy(jpeg, 0, out, pos, 2);
+        pos += 2;
+        System.arraycopy(app1, 0, out, pos, app1.length);
+        pos += app1.length;
+        System.arraycopy(jpeg, 2, out, pos, old[0] - 2);
+        pos += old[0] - 2;
+        System.arraycopy(jpeg, old[1], out, pos, jpeg.length - old[1]);
+        return out;
+    }
+
+    /**
+     * Returns a jpeg image with the tags from this ExifInterface object as
+     * four buffers: SOI, the APP1 segment, the segments before the prior
+     * APP1 segment and the rest of the image. All but the APP1 segment wrap
+     * the given array, so a gather write stores the image without copying it.
+     *
+     * @param jpeg a byte array containing a jpeg compressed image.
+     * @return the buffers to write in order.
+     * @throws IOException
+     */
+    public ByteBuffer[] getExifBuffers(byte[] jpeg) throws IOException {
+        if (jpeg == null) {
+            throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
+        }
+        byte[] app1 = getExifSegment();
+        int[] old = getJpegExifRange(jpeg);
+        return new ByteBuffer[] {
+                ByteBuffer.wrap(jpeg, 0, 2),
+                ByteBuffer.wrap(app1),
+                ByteBuffer.wrap(jpeg, 2, old[0] - 2),
+                ByteBuffer.wrap(jpeg, old[1], jpeg.length - old[1])
+        };
+    }
+
+    /**
+     * Writes the jpeg image with the APP1 segment straight from the given
+     * array, the same output ExifOutputStream produces.
+     */
+    private int writeExifSpliced(byte[] jpeg, OutputStream out) throws IOException {
+        byte[] app1 = getExifSegment();
+        int[] old = getJpegExifRange(jpeg);
+        out.write(jpeg, 0, 2);
+        out.write(app1);
+        out.write(jpeg, 2, old[0] - 2);
+        out.write(jpeg, old[1], jpeg.length - old[1]);
+        return app1.length + jpeg.length - (old[1] - old[0]);
+    }
+
+    /**
+     * Returns the start and end offsets of the first APP1 segment before
+     * SOF, which is replaced by the new exif header. Both are 2 if there is
+     * none. Like ExifOutputStream, the other segments are kept.
+     */
+    private static int[] getJpegExifRange(byte[] jpeg) throws IOException {
+        if (jpeg.length < 2 || readJpegShort(jpeg, 0) != JpegHeader.SOI) {
+            throw new IOException("Not a valid jpeg image, cannot write exif");
+        }
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            short marker = readJpegShort(jpeg, pos);
+            if ((marker & 0xff00) != 0xff00 || marker == JpegHeader.EOI
+                    || marker == JpegHeader.SOS || JpegHeader.isSofMarker(marker)) {
+                break;
+            }
+            int length = readJpegShort(jpeg, pos + 2) & 0xffff;
+            if (marker == JpegHeader.APP1) {
+                if (length < 2 || pos + 2 + length > jpeg.length) {
+                    throw new IOException("Invalid APP1 segment, cannot write exif");
+                }
+                return new int[] { pos, pos + 2 + length };
+            }
+            if (length < 2) {
+                break;
+            }
+            pos += 2 + length;
+        }
+        return new int[] { 2, 2 };
+    }
+
+    private static short readJpegShort(byte[] jpeg, int pos) {
+        return (short) (((jpeg[pos] & 0xff) << 8) | (jpeg[pos + 1] & 0xff));
     }
 
     /**
@@ -856,17 +970,17 @@ public class ExifInterface {
         if (jpeg == null || exifOutFileName == null) {
             throw new IllegalArgumentException(NULL_ARGUMENT_STRING);
         }
-        ExifOutputStream s = null;
+        OutputStream s = null;
+        int size;
         try {
-            s = (ExifOutputStream) getExifWriterStream(exifOutFileName);
-            s.write(jpeg, 0, jpeg.length);
-            s.flush();
+            s = new FileOutputStream(exifOutFileName);
+            size = writeExifSpliced(jpeg, s);
         } catch (IOException e) {
             closeSilently(s);
             throw e;
         }
         s.close();
-        return s.size();
+        return size;
     }
 
     /**
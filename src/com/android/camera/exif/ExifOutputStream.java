@@ -214,6 +214,15 @@ class ExifOutputStream extends FilterOutputStream {
         write(buffer, 0, buffer.length);
     }
 
+    /**
+     * Writes only the APP1 segment holding the Exif header, without any image
+     * data, and flushes it to the wrapped stream.
+     */
+    protected void writeExifSegment() throws IOException {
+        writeExifData();
+        out.flush();
+    }
+
     private void writeExifData() throws IOException {
         if (mExifData == null) {
             return;
@@ -0,0 +1,161 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+/* Picks the quality level of a preview effect from the time it takes per frame. A level
+   runs the effect at 1/scale of the resolution on one frame out of period. When the cost
+   per frame stays over the budget the policy steps down a level, and it steps back up
+   once the level above is predicted to fit with headroom for a while. Cost is assumed to
+   follow the number of pixels. Not thread safe, feed it from the thread running the effect. */
+public class AdaptiveQualityPolicy {
+
+    public static final class Level {
+        public final int scale;
+        public final int period;
+
+        public Level(int scale, int period) {
+            if (scale < 1 || period < 1) {
+                throw new IllegalArgumentException("Invalid level " + scale + "/" + period);
+            }
+            this.scale = scale;
+            this.period = period;
+        }
+
+        @Override
+        public String toString() {
+            return "1/" + scale + " res, 1/" + period + " frames";
+        }
+    }
+
+    //From best to cheapest.
+    public static final Level[] DEFAULT_LEVELS = {
+            new Level(1, 1),
+            new Level(2, 1),
+            new Level(2, 2),
+            new Level(4, 2)
+    };
+
+    //Processed frames in a row over budget before stepping down.
+    private static final int DOWN_SAMPLES = 3;
+    //Processed frames in a row with headroom before stepping up, slower to avoid flapping.
+    private static final int UP_SAMPLES = 30;
+    //Share of the budget the level above has to be predicted to fit in.
+    private static final double UP_HEADROOM = 0.75;
+    //Weight of a new sample in the smoothed cost.
+    private static final double SMOOTHING = 0.25;
+
+    private final Level[] mLevels;
+    private final long mBudgetNs;
+    private int mLevel;
+    private double mCostNs = -1;
+    private int mOverCount;
+    private int mUnderCount;
+    private long mFrameCount;
+    private int mChangeCount;
+
+    public AdaptiveQualityPolicy(long budgetNs) {
+        this(DEFAULT_LEVELS, budgetNs);
+    }
+
+    public AdaptiveQualityPolicy(Level[] levels, long budgetNs) {
+        if (levels.length == 0 || budgetNs <= 0) {
+            throw new IllegalArgumentException("Needs levels and a budget");
+        }
+        mLevels = levels.clone();
+        mBudgetNs = budgetNs;
+    }
+
+    public Level getLevel() {
+        return mLevels[mLevel];
+    }
+
+    public int getLevelIndex() {
+        return mLevel;
+    }
+
+    public int getChangeCount() {
+        return mChangeCount;
+    }
+
+    public long getCostNs() {
+        return mCostNs < 0 ? 0 : (long) mCostNs;
+    }
+
+    /* Called once per frame, false if the frame is to be skipped at the current level. */
+    public boolean shouldProcess() {
+        return mFrameCount++ % mLevels[mLevel].period == 0;
+    }
+
+    /* Reports the time the effect took on a processed frame. */
+    public void onProcessed(long costNs) {
+        mCostNs = mCostNs < 0 ? costNs : mCostNs + SMOOTHING * (costNs - mCostNs);
+        Level level = mLevels[mLevel];
+        if (mCostNs / level.period > mBudgetNs) {
+            mUnderCount = 0;
+            if (++mOverCount >= DOWN_SAMPLES && mLevel < mLevels.length - 1) {
+                setLevel(mLevel + 1);
+            }
+            return;
+        }
+        mOverCount = 0;
+        if (mLevel == 0) {
+            return;
+        }
+        if (predictCost(mLevel - 1) / mLevels[mLevel - 1].period < mBudgetNs * UP_HEADROOM) {
+            if (++mUnderCount >= UP_SAMPLES) {
+                setLevel(mLevel - 1);
+            }
+        } else {
+            mUnderCount = 0;
+        }
+    }
+
+    private double predictCost(int level) {
+        double from = mLevels[mLevel].scale;
+        double to = mLevels[level].scale;
+        return mCostNs * (from * from) / (to * to);
+    }
+
+    private void setLevel(int level) {
+        //Start the new level from the predicted cost rather than the old one.
+        mCostNs = predictCost(level);
+        mLevel = level;
+        mOverCount = 0;
+        mUnderCount = 0;
+        mFrameCount = 0;
+        mChangeCount++;
+    }
+
+    @Override
+    public String toString() {
+        return "level " + mLevel + " (" + mLevels[mLevel] + ") cost=" + getCostNs() / 1000
+                + "us budget=" + mBudgetNs / 1000 + "us changes=" + mChangeCount;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import com.android.camera.imageprocessor.filter.YuvFrame;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* Lock-free bookkeeping of the captures in flight. Images go into the filling slot, and a
+ * slot stays active until it is completed or cancelled. Every image has exactly one owner:
+ * whoever takes it out of its slot first closes it, so it is never closed twice. Once an
+ * image is wrapped in a frame, the frame owns it and closes it when its last holder lets go. */
+public abstract class CapturePipeline<T, S extends CapturePipeline.Slot<T>> {
+
+    public static class Slot<T> {
+        final AtomicReferenceArray<T> mImages;
+        final AtomicInteger mNumAdded = new AtomicInteger();   //Places taken
+        final AtomicInteger mNumFilled = new AtomicInteger();  //Images actually put in
+        final AtomicInteger mNumClosed = new AtomicInteger();
+        final AtomicReferenceArray<YuvFrame> mFrames;
+        volatile boolean mCancelled;
+
+        public Slot(int numImages) {
+            mImages = new AtomicReferenceArray<T>(numImages);
+            mFrames = new AtomicReferenceArray<YuvFrame>(numImages);
+        }
+
+        /* The slot holds one reference to the frame wrapping the image at index. */
+        public void setFrame(int index, YuvFrame frame) {
+            mFrames.set(index, frame);
+        }
+
+        public int size() {
+            return mImages.length();
+        }
+
+        /* Returns the image, or null once it is closed or if it has not arrived yet */
+        public T getImage(int index) {
+            return mImages.get(index);
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        //Images still held, including the ones not yet arrived.
+        public int getReservedImageNum() {
+            return size() - mNumClosed.get();
+        }
+    }
+
+    /* Where an image ended up. isLast is set for the image that completed the slot. */
+    public static final class Added<S> {
+        public final S slot;
+        public final int index;
+        public final boolean isLast;
+
+        Added(S slot, int index, boolean isLast) {
+            this.slot = slot;
+            this.index = index;
+            this.isLast = isLast;
+        }
+    }
+
+    private final AtomicReference<S> mFillingSlot = new AtomicReference<S>();
+    private final ConcurrentLinkedQueue<S> mActiveSlots = new ConcurrentLinkedQueue<S>(); //Oldest first
+
+    /* Opens the slot for the next capture */
+    protected abstract S createSlot();
+
+    /* Gives the image back to where it came from */
+    protected abstract void close(T image);
+
+    /* Returns where the image went, or null if it was closed because its slot got cancelled */
+    public Added<S> add(T image) {
+        while (true) {
+            S slot = mFillingSlot.get();
+            if (slot == null) {
+                S fresh = createSlot();
+                //A slot is active before it can be filled, so clear() never misses it.
+                mActiveSlots.add(fresh);
+                if (!mFillingSlot.compareAndSet(null, fresh)) {
+                    mActiveSlots.remove(fresh);
+                    continue;
+                }
+                slot = fresh;
+            }
+            if (slot.mCancelled) {
+                mFillingSlot.compareAndSet(slot, null);
+                continue;
+            }
+            int index = slot.mNumAdded.getAndIncrement();
+            if (index >= slot.size()) {
+                //Another image took the last place, the next capture gets a new slot.
+                mFillingSlot.compareAndSet(slot, null);
+                continue;
+            }
+            if (index == slot.size() - 1) {
+                mFillingSlot.compareAndSet(slot, null);
+            }
+            slot.mImages.set(index, image);
+            if (slot.mCancelled) {
+                //Cancelled while the image was put in, nobody else is going to close it.
+                closeImage(slot, index);
+                return null;
+            }
+            //Places are taken in order but may be filled out of order.
+            boolean isLast = slot.mNumFilled.incrementAndGet() == slot.size();
+            return new Added<S>(slot, index, isLast);
+        }
+    }
+
+    /* Closes the image unless somebody else already did */
+    public void closeImage(S slot, int index) {
+        T image = slot.mImages.getAndSet(index, null);
+        if (image != null) {
+            slot.mNumClosed.incrementAndGet();
+            close(image);
+        }
+    }
+
+    public void closeImages(S slot) {
+        for (int i = 0; i < slot.size(); i++) {
+            closeImage(slot, i);
+        }
+    }
+
+    /* Drops the references the slot holds on its frames and closes the images no frame
+       wraps. A frame somebody else retains keeps its image until it is released there. */
+    public void releaseImages(S slot) {
+        for (int i = 0; i < slot.size(); i++) {
+            YuvFrame frame = slot.mFrames.getAndSet(i, null);
+            if (frame != null) {
+                frame.release();
+            } else {
+                closeImage(slot, i);
+            }
+        }
+    }
+
+    public boolean isActive(S slot) {
+        return !slot.mCancelled && mActiveSlots.contains(slot);
+    }
+
+    /* Takes the slot out of the pipeline. Returns false if it was already cancelled. */
+    public boolean complete(S slot) {
+        return mActiveSlots.remove(slot);
+    }
+
+    /* Drops every capture in flight and releases the images they hold */
+    public void clear() {
+        mFillingSlot.set(null);
+        Iterator<S> it = mActiveSlots.iterator();
+        while (it.hasNext()) {
+            S slot = it.next();
+            slot.mCancelled = true;
+            it.remove();
+            releaseImages(slot);
+        }
+    }
+
+    public int getActiveSlotNum() {
+        return mActiveSlots.size();
+    }
+
+    public int getReservedImageNum() {
+        int reserved = 0;
+        for (S slot : mActiveSlots) {
+            reserved += slot.getReservedImageNum();
+        }
+        return reserved;
+    }
+
+    public Iterable<S> getActiveSlots() {
+        return mActiveSlots;
+    }
+}
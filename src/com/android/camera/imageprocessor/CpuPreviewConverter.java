@@ -0,0 +1,190 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import android.renderscript.Allocation;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/* CPU backend, rotates, mirrors and converts in a single pass. The output is walked in
+   square tiles so the input rows a tile reads stay in cache, and the tiles are split across
+   a fork-join pool. Every pixel is computed with the same index and float math as
+   rotator.rs followed by YuvToRgb.rs, so the result is bit-exact with the two kernels and
+   with the fused rotateToRgb.rs. */
+public class CpuPreviewConverter implements PreviewConverter {
+    public static final int DEFAULT_TILE_SIZE = 64;
+    //Tiles a task converts itself instead of forking.
+    private static final int TILES_PER_TASK = 4;
+
+    //Per-chroma-value products of YuvToRgb.rs, b is computed in double there.
+    private static final float[] R_V = new float[256];
+    private static final float[] G_V = new float[256];
+    private static final float[] G_U = new float[256];
+    private static final double[] B_U = new double[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i - 128;
+            R_V[i] = 1.370705f * c;
+            G_V[i] = 0.698001f * c;
+            G_U[i] = 0.337633f * c;
+            B_U[i] = 1.732446 * c;
+        }
+    }
+
+    private static ForkJoinPool sPool;
+
+    private final ForkJoinPool mPool;
+    private final int mTileSize;
+    private int mWidth;
+    private int mHeight;
+    private int mStride;
+    private boolean mFlip;
+    private byte[] mRgba;
+
+    public CpuPreviewConverter() {
+        this(getDefaultPool(), DEFAULT_TILE_SIZE);
+    }
+
+    public CpuPreviewConverter(ForkJoinPool pool, int tileSize) {
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("Invalid tile size " + tileSize);
+        }
+        mPool = pool;
+        mTileSize = tileSize;
+    }
+
+    private static synchronized ForkJoinPool getDefaultPool() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sPool;
+    }
+
+    public int getTileSize() {
+        return mTileSize;
+    }
+
+    @Override
+    public void configure(int width, int height, int stride, boolean flip) {
+        mWidth = width;
+        mHeight = height;
+        mStride = stride;
+        mFlip = flip;
+        mRgba = null;
+    }
+
+    @Override
+    public void convert(byte[] nv21, Allocation output) {
+        if (mRgba == null) {
+            mRgba = new byte[mWidth * mHeight * 4];
+        }
+        convert(nv21, mRgba);
+        output.copyFrom(mRgba);
+    }
+
+    @Override
+    public void renderTo(Allocation output) {
+        output.copyFrom(mRgba);
+    }
+
+    @Override
+    public void destroy() {
+        mRgba = null;
+    }
+
+    /* Writes height x width RGBA pixels, rows are height pixels long. */
+    public void convert(byte[] nv21, byte[] rgba) {
+        int tilesX = (mHeight + mTileSize - 1) / mTileSize;
+        int tilesY = (mWidth + mTileSize - 1) / mTileSize;
+        mPool.invoke(new TileTask(nv21, rgba, tilesX, 0, tilesX * tilesY));
+    }
+
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final byte[] mIn;
+        private final byte[] mOut;
+        private final int mTilesX;
+        private final int mFirst;
+        private final int mEnd;
+
+        TileTask(byte[] in, byte[] out, int tilesX, int first, int end) {
+            mIn = in;
+            mOut = out;
+            mTilesX = tilesX;
+            mFirst = first;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mFirst <= TILES_PER_TASK) {
+                for (int i = mFirst; i < mEnd; i++) {
+                    convertTile(mIn, mOut, (i % mTilesX) * mTileSize, (i / mTilesX) * mTileSize);
+                }
+                return;
+            }
+            int mid = (mFirst + mEnd) >>> 1;
+            invokeAll(new TileTask(mIn, mOut, mTilesX, mFirst, mid),
+                    new TileTask(mIn, mOut, mTilesX, mid, mEnd));
+        }
+    }
+
+    /* Output pixel (x, y) comes from source column y, or width-1-y when mirrored, and
+       source row height-1-x. */
+    private void convertTile(byte[] in, byte[] out, int left, int top) {
+        final int outWidth = mHeight;
+        final int stride = mStride;
+        final int uvOffset = stride * mHeight;
+        final int right = Math.min(left + mTileSize, outWidth);
+        final int bottom = Math.min(top + mTileSize, mWidth);
+        for (int y = top; y < bottom; y++) {
+            int srcX = mFlip ? mWidth - 1 - y : y;
+            int uvX = uvOffset + (srcX & ~1);
+            int o = (y * outWidth + left) * 4;
+            for (int x = left; x < right; x++) {
+                int srcY = mHeight - 1 - x;
+                int yV = in[srcX + srcY * stride] & 0xFF;
+                int index = uvX + (srcY >> 1) * stride;
+                int v = in[index] & 0xFF;
+                int u = in[index + 1] & 0xFF;
+                int r = (int) (yV + R_V[v]);
+                int g = (int) (yV - G_V[v] - G_U[u]);
+                int b = (int) (yV + B_U[u]);
+                out[o] = (byte) (r < 0 ? 0 : (r > 255 ? 255 : r));
+                out[o + 1] = (byte) (g < 0 ? 0 : (g > 255 ? 255 : g));
+                out[o + 2] = (byte) (b < 0 ? 0 : (b > 255 ? 255 : b));
+                out[o + 3] = (byte) 0xFF;
+                o += 4;
+            }
+        }
+    }
+}
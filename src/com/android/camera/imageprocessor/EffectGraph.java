@@ -0,0 +1,251 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import com.android.camera.imageprocessor.filter.ImageFilter;
+import com.android.camera.imageprocessor.filter.YuvFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Small DAG of preview effects. In-place nodes change the frame and run one after the other
+   on the thread calling run(), in dependency order and insertion order otherwise. Read-only
+   nodes branch off the source or an in-place node and are handed the frame as it is at that
+   point, to run in parallel through their BranchRunner. When in-place nodes still follow
+   the branch point, the branches there share one copy of the frame.
+   compile() fixes the schedule for a frame geometry, the in-place filters are initialized
+   once per compile, just before their first frame. Read-only filters are initialized by
+   their runner, on the thread they run on. */
+public class EffectGraph {
+    public enum Format {
+        NV21,
+        LUMA
+    }
+
+    /* Runs a read-only node away from the thread running the graph. */
+    public interface BranchRunner {
+        /* Whether the node takes the frame, asked before a copy is made for it. */
+        boolean accept(long timestamp);
+
+        /* The frame has to be retained to be used after returning. */
+        void offer(YuvFrame frame);
+    }
+
+    public interface FrameCopier {
+        YuvFrame copy(YuvFrame frame);
+    }
+
+    public static final class Node {
+        private final ImageFilter mFilter;
+        private final boolean mInPlace;
+        private final Format mFormat;
+        private final Node mParent;
+        private final BranchRunner mRunner;
+        private boolean mInitialized;
+
+        private Node(ImageFilter filter, boolean inPlace, Format format, Node parent,
+                     BranchRunner runner) {
+            mFilter = filter;
+            mInPlace = inPlace;
+            mFormat = format;
+            mParent = parent;
+            mRunner = runner;
+        }
+
+        public ImageFilter getFilter() {
+            return mFilter;
+        }
+
+        public boolean isInPlace() {
+            return mInPlace;
+        }
+
+        public Format getFormat() {
+            return mFormat;
+        }
+
+        public Node getParent() {
+            return mParent;
+        }
+    }
+
+    private final ArrayList<Node> mNodes = new ArrayList<Node>();
+    private ArrayList<Node> mChain;
+    //Read-only nodes by the number of chain nodes run before them.
+    private ArrayList<ArrayList<Node>> mBranches;
+    private int mWidth;
+    private int mHeight;
+    private int mStrideY;
+    private int mStrideVU;
+
+    /* Adds an effect changing the NV21 frame, parent null for the source. */
+    public Node addInPlace(ImageFilter filter, Node parent) {
+        if (parent != null && !parent.mInPlace) {
+            throw new IllegalArgumentException("In-place nodes can only follow in-place nodes");
+        }
+        return add(new Node(filter, true, Format.NV21, parent, null));
+    }
+
+    /* Adds an effect only reading the frame, run through runner. */
+    public Node addReadOnly(ImageFilter filter, Format format, Node parent, BranchRunner runner) {
+        if (parent != null && !parent.mInPlace) {
+            throw new IllegalArgumentException("Read-only nodes can't feed other nodes");
+        }
+        return add(new Node(filter, false, format, parent, runner));
+    }
+
+    private synchronized Node add(Node node) {
+        if (node.mParent != null && !mNodes.contains(node.mParent)) {
+            throw new IllegalArgumentException("Parent is not in this graph");
+        }
+        mNodes.add(node);
+        mChain = null;
+        return node;
+    }
+
+    public synchronized List<Node> getNodes() {
+        return new ArrayList<Node>(mNodes);
+    }
+
+    public synchronized boolean hasInPlaceNodes() {
+        for (Node node : mNodes) {
+            if (node.mInPlace) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized boolean isCompiledFor(int width, int height, int strideY, int strideVU) {
+        return mChain != null && mWidth == width && mHeight == height
+                && mStrideY == strideY && mStrideVU == strideVU;
+    }
+
+    /* Orders the in-place nodes and places the branches for the given geometry. */
+    public synchronized void compile(int width, int height, int strideY, int strideVU) {
+        //A parent is always added before its children, so insertion order is topological.
+        ArrayList<Node> chain = new ArrayList<Node>();
+        for (Node node : mNodes) {
+            if (node.mInPlace) {
+                node.mInitialized = false;
+                chain.add(node);
+            }
+        }
+        ArrayList<ArrayList<Node>> branches = new ArrayList<ArrayList<Node>>();
+        for (int i = 0; i <= chain.size(); i++) {
+            branches.add(new ArrayList<Node>());
+        }
+        for (Node node : mNodes) {
+            if (!node.mInPlace) {
+                int tap = (node.mParent == null) ? 0 : chain.indexOf(node.mParent) + 1;
+                branches.get(tap).add(node);
+            }
+        }
+        mChain = chain;
+        mBranches = branches;
+        mWidth = width;
+        mHeight = height;
+        mStrideY = strideY;
+        mStrideVU = strideVU;
+    }
+
+    /* Forces the in-place filters to be initialized again, after they were deinitialized. */
+    public synchronized void invalidate() {
+        mChain = null;
+    }
+
+    /* Runs the graph on the frame, returns true if an in-place node changed it. */
+    public boolean run(YuvFrame frame, FrameCopier copier, PreviewStats stats) {
+        ArrayList<Node> chain;
+        ArrayList<ArrayList<Node>> branches;
+        synchronized (this) {
+            chain = mChain;
+            branches = mBranches;
+        }
+        if (chain == null) {
+            throw new IllegalStateException("Graph is not compiled");
+        }
+        //Libraries finish loading on another thread. Which nodes run is fixed once per frame,
+        //so a branch offered without a copy is never changed by a node loaded meanwhile.
+        boolean[] loaded = new boolean[chain.size()];
+        for (int i = 0; i < chain.size(); i++) {
+            loaded[i] = ImageFilterRegistry.isLoaded(chain.get(i).mFilter);
+        }
+        boolean changed = false;
+        for (int i = 0; i <= chain.size(); i++) {
+            offerBranches(branches.get(i), frame, willChange(loaded, i) ? copier : null);
+            if (i == chain.size()) {
+                break;
+            }
+            Node node = chain.get(i);
+            if (!loaded[i]) {
+                //Frames pass through untouched until the library is loaded.
+                continue;
+            }
+            long start = System.nanoTime();
+            if (!node.mInitialized) {
+                node.mFilter.init(mWidth, mHeight, mStrideY, mStrideVU);
+                node.mInitialized = true;
+            }
+            node.mFilter.addImage(frame, 0, new Boolean(true));
+            if (stats != null) {
+                stats.recordFilter(node.mFilter.getStringName(), start, System.nanoTime());
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static boolean willChange(boolean[] loaded, int from) {
+        for (int i = from; i < loaded.length; i++) {
+            if (loaded[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void offerBranches(ArrayList<Node> nodes, YuvFrame frame, FrameCopier copier) {
+        YuvFrame shared = null;
+        for (Node node : nodes) {
+            if (!ImageFilterRegistry.isLoaded(node.mFilter)
+                    || !node.mRunner.accept(frame.getTimestamp())) {
+                continue;
+            }
+            if (shared == null) {
+                shared = (copier != null) ? copier.copy(frame) : frame.retain();
+            }
+            node.mRunner.offer(shared);
+        }
+        if (shared != null) {
+            shared.release();
+        }
+    }
+}
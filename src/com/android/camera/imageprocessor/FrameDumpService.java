@@ -0,0 +1,291 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.android.camera.imageprocessor.filter.YuvFrame;
+import com.android.camera.util.PersistUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/* Writes frames and intermediate buffers to files on one background thread, so the
+ * capture path never waits for storage. Queued data is bounded by a byte budget: debug
+ * dumps are droppable and the oldest ones go first once the budget is used up. Files
+ * that the app reads back later are never dropped. */
+public class FrameDumpService {
+    private static final String TAG = "FrameDumpService";
+
+    public enum Format {
+        RAW,    //The bytes as they are
+        NV21,   //Y rows then interleaved VU rows, without row padding
+        JPEG,   //Encoded with TiledJpegEncoder, with the orientation of the frame in EXIF
+        PGM     //8 bit grayscale of the luma plane
+    }
+
+    public interface Callback {
+        /* Called on the dump thread once the file is written, or dropped or failed */
+        void onDumped(File file, boolean success);
+    }
+
+    private static class Request {
+        final File file;
+        final byte[] bytes;
+        final YuvFrame frame;
+        final Format format;
+        final int quality;
+        final boolean droppable;
+        final Callback callback;
+        final long size;
+
+        Request(File file, byte[] bytes, YuvFrame frame, Format format, int quality,
+                boolean droppable, Callback callback) {
+            this.file = file;
+            this.bytes = bytes;
+            this.frame = frame;
+            this.format = format;
+            this.quality = quality;
+            this.droppable = droppable;
+            this.callback = callback;
+            size = (bytes != null) ? bytes.length
+                    : (long) frame.getYStride() * frame.getHeight() * 3 / 2;
+        }
+    }
+
+    private static FrameDumpService sInstance;
+
+    private final ArrayDeque<Request> mQueue = new ArrayDeque<Request>();
+    private final long mBudget;
+    private long mQueuedBytes;
+    private boolean mWriting;
+    private int mDroppedCount;
+    private int mWrittenCount;
+
+    public static synchronized FrameDumpService getInstance() {
+        if (sInstance == null) {
+            sInstance = new FrameDumpService(PersistUtil.getFrameDumpBudgetKB() * 1024L);
+        }
+        return sInstance;
+    }
+
+    private FrameDumpService(long budget) {
+        mBudget = budget;
+        Thread worker = new Thread("FrameDump") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                processRequests();
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /* Queues the bytes to be written as they are. Returns false if the dump got dropped. */
+    public boolean dump(File file, byte[] bytes, boolean droppable, Callback callback) {
+        return enqueue(new Request(file, bytes, null, Format.RAW, 0, droppable, callback));
+    }
+
+    /* Queues the frame to be written in the given format. The frame is retained until it is
+       written or dropped. Returns false if the dump got dropped. */
+    public boolean dump(File file, YuvFrame frame, Format format, int quality, boolean droppable,
+                        Callback callback) {
+        frame.retain();
+        return enqueue(new Request(file, null, frame, format, quality, droppable, callback));
+    }
+
+    /* Blocks until everything queued so far is written */
+    public void flush() throws InterruptedException {
+        synchronized (this) {
+            while (!mQueue.isEmpty() || mWriting) {
+                wait();
+            }
+        }
+    }
+
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FrameDumpService written=" + mWrittenCount + " dropped=" + mDroppedCount
+                + " queued=" + mQueue.size() + " (" + mQueuedBytes / 1024 + "/" + mBudget / 1024 + " KB)";
+    }
+
+    private boolean enqueue(Request request) {
+        List<Request> dropped = new ArrayList<Request>();
+        boolean queued = true;
+        synchronized (this) {
+            if (request.droppable) {
+                Iterator<Request> it = mQueue.iterator();
+                while (mQueuedBytes + request.size > mBudget && it.hasNext()) {
+                    Request old = it.next();
+                    if (old.droppable) {
+                        it.remove();
+                        mQueuedBytes -= old.size;
+                        dropped.add(old);
+                    }
+                }
+                queued = mQueuedBytes + request.size <= mBudget;
+            }
+            if (queued) {
+                mQueue.add(request);
+                mQueuedBytes += request.size;
+                notifyAll();
+            } else {
+                dropped.add(request);
+            }
+            mDroppedCount += dropped.size();
+        }
+        for (Request old : dropped) {
+            Log.w(TAG, "Dropped dump of " + old.file);
+            finish(old, false);
+        }
+        return queued;
+    }
+
+    private void processRequests() {
+        while (true) {
+            Request request;
+            synchronized (this) {
+                mWriting = false;
+                while (mQueue.isEmpty()) {
+                    notifyAll();
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                request = mQueue.poll();
+                mWriting = true;
+            }
+            boolean success = false;
+            try {
+                write(request);
+                success = true;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to dump " + request.file, e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to dump " + request.file, e);
+            }
+            synchronized (this) {
+                //The data is held until it is written, so it counts against the budget till now.
+                mQueuedBytes -= request.size;
+                if (success) {
+                    mWrittenCount++;
+                }
+            }
+            finish(request, success);
+        }
+    }
+
+    private static void finish(Request request, boolean success) {
+        if (request.frame != null) {
+            request.frame.release();
+        }
+        if (request.callback != null) {
+            request.callback.onDumped(request.file, success);
+        }
+    }
+
+    private static void write(Request request) throws IOException {
+        File dir = request.file.getParentFile();
+        if (dir != null && !dir.exists()) {
+            dir.mkdirs();
+        }
+        if (request.bytes != null) {
+            writeBytes(request.file, request.bytes);
+            return;
+        }
+        YuvFrame frame = request.frame;
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        int stride = frame.getYStride();
+        ByteBuffer buf = ImageBufferPool.getInstance().acquire(stride * height * 3 / 2);
+        try {
+            byte[] nv21 = buf.array();
+            frame.copyToNv21(nv21);
+            switch (request.format) {
+                case JPEG:
+                    writeBytes(request.file, TiledJpegEncoder.getInstance().encode(nv21, width,
+                            height, stride, stride, 0, 0, width, height, request.quality,
+                            PostProcessor.getExifSegment(frame.getOrientation())));
+                    break;
+                case PGM:
+                    writeRows(request.file, ("P5\n" + width + " " + height + "\n255\n").getBytes(),
+                            nv21, width, height, stride);
+                    break;
+                default:
+                    writeRows(request.file, null, nv21, width, height * 3 / 2, stride);
+                    break;
+            }
+        } finally {
+            ImageBufferPool.getInstance().release(buf);
+        }
+    }
+
+    private static void writeBytes(File file, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeRows(File file, byte[] header, byte[] data, int width, int rows,
+                                  int stride) throws IOException {
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            if (header != null) {
+                out.write(header);
+            }
+            for (int y = 0; y < rows; y++) {
+                out.write(data, y * stride, width);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
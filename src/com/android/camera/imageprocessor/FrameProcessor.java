@@ -30,6 +30,10 @@ IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.android.camera.imageprocessor;
 
 import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.ImageFormat;
 import android.media.Image;
 import android.media.ImageReader;
@@ -39,28 +43,31 @@ import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RenderScript;
 import android.renderscript.Type;
+import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 import android.widget.Toast;
 
 import com.android.camera.CaptureModule;
 import com.android.camera.SettingsManager;
-import com.android.camera.imageprocessor.filter.BeautificationFilter;
+import com.android.camera.imageprocessor.filter.AnalysisFrameListener;
 import com.android.camera.imageprocessor.filter.ImageFilter;
-import com.android.camera.imageprocessor.filter.TrackingFocusFrameListener;
+import com.android.camera.imageprocessor.filter.RateLimitedFrameListener;
+import com.android.camera.imageprocessor.filter.YuvFrame;
 import com.android.camera.ui.RotateTextToast;
+import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.codeaurora.snapcam.R;
 
 public class FrameProcessor {
+    private static final String TAG = "FrameProcessor";
 
     private ImageReader mInputImageReader;
-    private Allocation mInputAllocation;
-    private Allocation mProcessAllocation;
     private Allocation mOutputAllocation;
     private Allocation mVideoOutputAllocation;
 
@@ -72,24 +79,41 @@ public class FrameProcessor {
     private Handler mListeningHandler;
 
     private ProcessingTask mTask;
-    private ListeningTask mListeningTask;
+    private volatile ArrayList<ListeningTask> mListeningTasks = new ArrayList<ListeningTask>();
+    private volatile EffectGraph mGraph = new EffectGraph();
+    //Last in-place node added, the next one follows it.
+    private EffectGraph.Node mLastInPlaceNode;
     private RenderScript mRs;
     private Activity mActivity;
-    ScriptC_YuvToRgb mRsYuvToRGB;
-    ScriptC_rotator mRsRotator;
+    private PreviewConverter mConverter;
     private Size mSize;
+    private boolean mBackCamera;
     private Object mAllocationLock = new Object();
     private boolean mIsAllocationEverUsed;
     private ArrayList<ImageFilter> mPreviewFilters;
     private ArrayList<ImageFilter> mFinalFilters;
+    private volatile ArrayList<Integer> mFinalFilterIds = new ArrayList<Integer>();
     private Surface mSurfaceAsItIs;
     private Surface mVideoSurfaceAsItIs;
-    private boolean mIsActive = false;
+    private volatile boolean mIsActive = false;
     public static final int FILTER_NONE = 0;
     public static final int FILTER_MAKEUP = 1;
     public static final int LISTENER_TRACKING_FOCUS = 2;
     private CaptureModule mModule;
     private boolean mIsVideoOn = false;
+    private static final long IDLE_RELEASE_DELAY_MS = 10000;
+    private final Runnable mIdleRelease = new Runnable() {
+        @Override
+        public void run() {
+            releaseIdle();
+        }
+    };
+
+    private final PreviewStats mStats = new PreviewStats();
+    //Debug builds can dump the stats with "am broadcast -a <action> [--ez reset true]".
+    public static final String ACTION_DUMP_PREVIEW_STATS =
+            "org.codeaurora.snapcam.action.DUMP_PREVIEW_STATS";
+    private BroadcastReceiver mStatsReceiver;
 
     public FrameProcessor(Activity activity, CaptureModule module) {
         mActivity = activity;
@@ -98,83 +122,221 @@ public class FrameProcessor {
         mFinalFilters = new ArrayList<ImageFilter>();
     }
 
+    public PreviewStats getStats() {
+        return mStats;
+    }
+
+    private void logStats() {
+        for (String line : mStats.dump()) {
+            Log.d(TAG, "Preview latency " + line);
+        }
+    }
+
+    private void registerStatsReceiver() {
+        if (mStatsReceiver != null || !PersistUtil.isPreviewStatsDumpEnabled()) {
+            return;
+        }
+        mStatsReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                logStats();
+                if (intent.getBooleanExtra("reset", false)) {
+                    mStats.reset();
+                }
+            }
+        };
+        mActivity.registerReceiver(mStatsReceiver, new IntentFilter(ACTION_DUMP_PREVIEW_STATS));
+    }
+
+    private void unregisterStatsReceiver() {
+        if (mStatsReceiver != null) {
+            mActivity.unregisterReceiver(mStatsReceiver);
+            mStatsReceiver = null;
+        }
+    }
+
+    /* A warm restart reuses the RenderScript context and scripts, and the output allocation
+       and reader when the size and facing are unchanged. The worker threads are always kept. */
     public void init(Size previewDim) {
-        mIsActive = true;
-        mSize = previewDim;
         synchronized (mAllocationLock) {
-            mRs = RenderScript.create(mActivity);
-            mRsYuvToRGB = new ScriptC_YuvToRgb(mRs);
-            mRsRotator = new ScriptC_rotator(mRs);
-            mInputImageReader = ImageReader.newInstance(mSize.getWidth(), mSize.getHeight(), ImageFormat.YUV_420_888, 8);
+            startThreads();
+            mProcessingHandler.removeCallbacks(mIdleRelease);
+            ResourceRelease release = new ResourceRelease();
+            boolean sameSize = previewDim.equals(mSize);
+            boolean backCamera = mModule.isBackCamera();
+            //The converter mirrors front camera frames.
+            boolean sameFacing = backCamera == mBackCamera;
+            boolean warm = mRs != null && PersistUtil.isFrameProcWarmRestartEnabled();
+            if (!warm) {
+                release.add(mConverter, mRs);
+                mRs = RenderScript.create(mActivity);
+                if (PersistUtil.isPreviewCpuConverterEnabled()) {
+                    mConverter = new CpuPreviewConverter();
+                } else {
+                    mConverter = new RsPreviewConverter(mRs);
+                }
+            }
+            if (!warm || !sameSize || mOutputAllocation == null) {
+                if (mIsAllocationEverUsed) {
+                    release.add(mOutputAllocation);
+                }
+                Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
+                rgbTypeBuilder.setX(previewDim.getHeight());
+                rgbTypeBuilder.setY(previewDim.getWidth());
+                mOutputAllocation = Allocation.createTyped(mRs, rgbTypeBuilder.create(),
+                        Allocation.USAGE_SCRIPT | Allocation.USAGE_IO_OUTPUT);
+                mIsAllocationEverUsed = false;
+            }
+            if (!warm || !sameSize || !sameFacing || mInputImageReader == null) {
+                if (mInputImageReader != null) {
+                    mInputImageReader.setOnImageAvailableListener(null, null);
+                    release.add(mInputImageReader);
+                }
+                mInputImageReader = ImageReader.newInstance(previewDim.getWidth(),
+                        previewDim.getHeight(), ImageFormat.YUV_420_888, 8);
+                //The ring and the converter setup of the old task don't apply any longer.
+                mTask = new ProcessingTask();
+            } else {
+                //Configure the converter again before the next frame.
+                mTask.mConvertedRing = null;
+            }
+            mSize = previewDim;
+            mBackCamera = backCamera;
+            mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
+            release.post(mOutingHandler);
+            mIsActive = true;
+        }
+        registerStatsReceiver();
+    }
 
-            Type.Builder rgbTypeBuilder = new Type.Builder(mRs, Element.RGBA_8888(mRs));
-            rgbTypeBuilder.setX(mSize.getHeight());
-            rgbTypeBuilder.setY(mSize.getWidth());
-            mOutputAllocation = Allocation.createTyped(mRs, rgbTypeBuilder.create(),
-                    Allocation.USAGE_SCRIPT | Allocation.USAGE_IO_OUTPUT);
+    private void startThreads() {
+        if (mProcessingThread == null) {
+            mProcessingThread = new HandlerThread("FrameProcessor");
+            mProcessingThread.start();
+            mProcessingHandler = new Handler(mProcessingThread.getLooper());
+        }
 
-            if (mProcessingThread == null) {
-                mProcessingThread = new HandlerThread("FrameProcessor");
-                mProcessingThread.start();
-                mProcessingHandler = new Handler(mProcessingThread.getLooper());
-            }
+        if (mOutingThread == null) {
+            mOutingThread = new HandlerThread("FrameOutingThread");
+            mOutingThread.start();
+            mOutingHandler = new Handler(mOutingThread.getLooper());
+        }
+
+        if (mListeningThread == null) {
+            mListeningThread = new HandlerThread("FrameListeningThread");
+            mListeningThread.start();
+            mListeningHandler = new Handler(mListeningThread.getLooper());
+        }
+    }
+
+    /* Destroys what a closed or reinitialized processor no longer uses, on the outing thread
+       so the caller doesn't wait for it. */
+    private static class ResourceRelease implements Runnable {
+        private final ArrayList<Object> mResources = new ArrayList<Object>();
 
-            if (mOutingThread == null) {
-                mOutingThread = new HandlerThread("FrameOutingThread");
-                mOutingThread.start();
-                mOutingHandler = new Handler(mOutingThread.getLooper());
+        void add(Object... resources) {
+            for (Object resource : resources) {
+                if (resource != null) {
+                    mResources.add(resource);
+                }
             }
+        }
 
-            if (mListeningThread == null) {
-                mListeningThread = new HandlerThread("FrameListeningThread");
-                mListeningThread.start();
-                mListeningHandler = new Handler(mListeningThread.getLooper());
+        void post(Handler handler) {
+            if (mResources.isEmpty()) {
+                return;
             }
+            if (handler == null || !handler.post(this)) {
+                run();
+            }
+        }
 
-            mListeningTask = new ListeningTask();
-            mTask = new ProcessingTask();
-            mInputImageReader.setOnImageAvailableListener(mTask, mProcessingHandler);
-            mIsAllocationEverUsed = false;
+        @Override
+        public void run() {
+            //In order of adding, a RenderScript context goes after its scripts.
+            for (Object resource : mResources) {
+                if (resource instanceof PreviewConverter) {
+                    ((PreviewConverter) resource).destroy();
+                } else if (resource instanceof Allocation) {
+                    ((Allocation) resource).destroy();
+                } else if (resource instanceof RenderScript) {
+                    ((RenderScript) resource).destroy();
+                } else if (resource instanceof ImageReader) {
+                    ((ImageReader) resource).close();
+                }
+            }
+            mResources.clear();
         }
     }
 
-    private void createAllocation(int width, int height, int stridePad) {
-        Type.Builder yuvTypeBuilder = new Type.Builder(mRs, Element.YUV(mRs));
-        yuvTypeBuilder.setX(width);
-        yuvTypeBuilder.setY(height);
-        yuvTypeBuilder.setYuvFormat(ImageFormat.NV21);
-        mInputAllocation = Allocation.createTyped(mRs, yuvTypeBuilder.create(), Allocation.USAGE_SCRIPT);
-        Type.Builder nv21TypeBuilder = new Type.Builder(mRs, Element.U8(mRs));
-        nv21TypeBuilder.setX(width * height * 3 / 2);
-        mProcessAllocation = Allocation.createTyped(mRs, nv21TypeBuilder.create(), Allocation.USAGE_SCRIPT);
-        mRsRotator.set_gIn(mInputAllocation);
-        mRsRotator.set_gOut(mProcessAllocation);
-        mRsRotator.set_width(width);
-        mRsRotator.set_height(height);
-        mRsRotator.set_pad(stridePad);
-        mRsRotator.set_gFlip(!mModule.isBackCamera());
-        mRsYuvToRGB.set_gIn(mProcessAllocation);
-        mRsYuvToRGB.set_width(height);
-        mRsYuvToRGB.set_height(width);
+    /* Releases what a warm close kept if the processor wasn't reopened in time, runs on the
+       processing thread. */
+    private void releaseIdle() {
+        synchronized (mAllocationLock) {
+            if (mIsActive) {
+                return;
+            }
+            ResourceRelease release = new ResourceRelease();
+            release.add(mConverter);
+            if (mIsAllocationEverUsed) {
+                release.add(mOutputAllocation);
+            }
+            release.add(mRs);
+            if (mInputImageReader != null) {
+                mInputImageReader.setOnImageAvailableListener(null, null);
+                release.add(mInputImageReader);
+            }
+            mConverter = null;
+            mOutputAllocation = null;
+            mRs = null;
+            mInputImageReader = null;
+            mTask = null;
+            release.run();
+            //Messages already posted are still handled, nobody waits for the threads.
+            mProcessingThread.quitSafely();
+            mOutingThread.quitSafely();
+            mListeningThread.quitSafely();
+            mProcessingThread = null;
+            mProcessingHandler = null;
+            mOutingThread = null;
+            mOutingHandler = null;
+            mListeningThread = null;
+            mListeningHandler = null;
+        }
     }
 
     public ArrayList<ImageFilter> getFrameFilters() {
         return mFinalFilters;
     }
 
-    private void cleanFilterSet() {
-        if (mPreviewFilters != null) {
-            for (ImageFilter filter : mPreviewFilters) {
-                filter.deinit();
-            }
-        }
-        if (mFinalFilters != null) {
-            for (ImageFilter filter : mFinalFilters) {
-                filter.deinit();
+    /* Snapshots get their own instances of the in-place filters. The preview ones stay
+       initialized with the preview geometry and are only ever run by the processing thread. */
+    public ArrayList<ImageFilter> createSnapshotFilters() {
+        ArrayList<ImageFilter> filters = new ArrayList<ImageFilter>();
+        for (Integer id : mFinalFilterIds) {
+            ImageFilter filter = ImageFilterRegistry.createFrameFilter(id.intValue(), mModule);
+            if (filter != null && filter.isSupported()) {
+                filters.add(filter);
             }
         }
+        return filters;
+    }
+
+    private void cleanFilterSet() {
+        deinitFilters();
+        mGraph = new EffectGraph();
+        mLastInPlaceNode = null;
         mPreviewFilters = new ArrayList<ImageFilter>();
         mFinalFilters = new ArrayList<ImageFilter>();
+        mFinalFilterIds = new ArrayList<Integer>();
+        clearListeningTasks();
+    }
+
+    private void clearListeningTasks() {
+        for (ListeningTask task : mListeningTasks) {
+            task.clear();
+        }
+        mListeningTasks = new ArrayList<ListeningTask>();
     }
 
     public void onOpen(ArrayList<Integer> filterIds) {
@@ -187,80 +349,100 @@ public class FrameProcessor {
     }
 
     private void addFilter(int filterId) {
-        ImageFilter filter = null;
-        if (filterId == FILTER_MAKEUP) {
-            filter = new BeautificationFilter(mModule);
-        } else if (filterId == LISTENER_TRACKING_FOCUS) {
-            filter = new TrackingFocusFrameListener(mModule);
-        }
-
+        ImageFilter filter = ImageFilterRegistry.createFrameFilter(filterId, mModule);
         if (filter != null && filter.isSupported()) {
             mPreviewFilters.add(filter);
             if (!filter.isFrameListener()) {
                 mFinalFilters.add(filter);
+                ArrayList<Integer> ids = new ArrayList<Integer>(mFinalFilterIds);
+                ids.add(filterId);
+                mFinalFilterIds = ids;
+                mLastInPlaceNode = mGraph.addInPlace(filter, mLastInPlaceNode);
+            } else {
+                //Listeners see the frame as it comes from the camera.
+                ListeningTask task = new ListeningTask(filter);
+                ArrayList<ListeningTask> tasks = new ArrayList<ListeningTask>(mListeningTasks);
+                tasks.add(task);
+                mListeningTasks = tasks;
+                mGraph.addReadOnly(filter, (filter instanceof AnalysisFrameListener)
+                        ? EffectGraph.Format.LUMA : EffectGraph.Format.NV21, null, task);
             }
         }
 
     }
 
+    /* Nothing here waits for the worker threads. Filters are deinitialized on the thread
+       running them, in order with the frames of the next session. */
     public void onClose() {
         mIsActive = false;
         synchronized (mAllocationLock) {
+            ResourceRelease release = new ResourceRelease();
             if (mIsAllocationEverUsed) {
-                if (mInputAllocation != null) {
-                    mInputAllocation.destroy();
-                }
-                if (mOutputAllocation != null) {
-                    mOutputAllocation.destroy();
-                }
-                if (mProcessAllocation != null) {
-                    mProcessAllocation.destroy();
-                }
-                if (mVideoOutputAllocation != null) {
-                    mVideoOutputAllocation.destroy();
+                release.add(mVideoOutputAllocation);
+            }
+            mVideoOutputAllocation = null;
+            if (!PersistUtil.isFrameProcWarmRestartEnabled()) {
+                release.add(mConverter);
+                if (mIsAllocationEverUsed) {
+                    release.add(mOutputAllocation);
                 }
+                release.add(mRs);
+                mConverter = null;
+                mOutputAllocation = null;
+                mRs = null;
             }
-            if (mRs != null) {
-                mRs.destroy();
+            release.post(mOutingHandler);
+            if (mProcessingHandler != null) {
+                mProcessingHandler.removeCallbacks(mIdleRelease);
+                mProcessingHandler.postDelayed(mIdleRelease, IDLE_RELEASE_DELAY_MS);
             }
-            mRs = null;
-            mProcessAllocation = null;
-            mOutputAllocation = null;
-            mInputAllocation = null;
-            mVideoOutputAllocation = null;
         }
-        if (mProcessingThread != null) {
-            mProcessingThread.quitSafely();
-            try {
-                mProcessingThread.join();
-                mProcessingThread = null;
-                mProcessingHandler = null;
-            } catch (InterruptedException e) {
-            }
+        deinitFilters();
+        if (mTask != null && mTask.mRing != null) {
+            Log.d(TAG, mTask.mRing.toString());
         }
-        if (mOutingThread != null) {
-            mOutingThread.quitSafely();
-            try {
-                mOutingThread.join();
-                mOutingThread = null;
-                mOutingHandler = null;
-            } catch (InterruptedException e) {
-            }
+        for (ListeningTask task : mListeningTasks) {
+            Log.d(TAG, task.toString());
+            task.clear();
         }
-        if (mListeningThread != null) {
-            mListeningThread.quitSafely();
-            try {
-                mListeningThread.join();
-                mListeningThread = null;
-                mListeningHandler = null;
-            } catch (InterruptedException e) {
+        logStats();
+        unregisterStatsReceiver();
+    }
+
+    /* In-place filters are deinitialized on the processing thread and listeners on the
+       listening thread, in order with their frames. */
+    private void deinitFilters() {
+        final EffectGraph graph = mGraph;
+        final ArrayList<ImageFilter> inPlace = new ArrayList<ImageFilter>();
+        for (EffectGraph.Node node : graph.getNodes()) {
+            if (node.isInPlace()) {
+                inPlace.add(node.getFilter());
             }
         }
-        for (ImageFilter filter : mPreviewFilters) {
-            filter.deinit();
+        runOn(mProcessingHandler, new Runnable() {
+            @Override
+            public void run() {
+                for (ImageFilter filter : inPlace) {
+                    if (ImageFilterRegistry.isLoaded(filter)) {
+                        filter.deinit();
+                    }
+                }
+                graph.invalidate();
+            }
+        });
+        for (final ListeningTask task : mListeningTasks) {
+            runOn(mListeningHandler, new Runnable() {
+                @Override
+                public void run() {
+                    task.deinitFilter();
+                }
+            });
         }
-        for (ImageFilter filter : mFinalFilters) {
-            filter.deinit();
+    }
+
+    private static void runOn(Handler handler, Runnable runnable) {
+        if (handler == null || !handler.post(runnable)) {
+            runnable.run();
         }
     }
 
@@ -333,139 +515,281 @@ public class FrameProcessor {
         }
     }
 
-    class ProcessingTask implements Runnable, ImageReader.OnImageAvailableListener {
-        byte[] yvuBytes = null;
-        int ySize;
-        int stride;
-        int height;
-        int width;
+    class ProcessingTask implements Runnable, ImageReader.OnImageAvailableListener,
+            EffectGraph.FrameCopier {
+        volatile PreviewFrameRing mRing;
+        //Ring the converter was configured for, guarded by mAllocationLock.
+        PreviewFrameRing mConvertedRing;
+        final AtomicBoolean mOutPending = new AtomicBoolean();
 
         public ProcessingTask() {
         }
 
+        /* Producer side: runs the filters and hands the frame to the outing thread through
+           the ring, without touching the allocations. */
         @Override
         public void onImageAvailable(ImageReader reader) {
-            synchronized (mAllocationLock) {
-                if (mOutputAllocation == null) {
+            try {
+                Image image = reader.acquireLatestImage();
+                if (image == null) {
                     return;
                 }
-                try {
-                    Image image = reader.acquireLatestImage();
-                    if (image == null) {
-                        return;
-                    }
-                    if (!mIsActive) {
-                        image.close();
-                        return;
-                    }
-                    mIsAllocationEverUsed = true;
-                    ByteBuffer bY = image.getPlanes()[0].getBuffer();
-                    ByteBuffer bVU = image.getPlanes()[2].getBuffer();
-                    if (yvuBytes == null || width != mSize.getWidth() || height != mSize.getHeight()) {
-                        stride = image.getPlanes()[0].getRowStride();
-                        width = mSize.getWidth();
-                        height = mSize.getHeight();
-                        ySize = stride * mSize.getHeight();
-                        yvuBytes = new byte[ySize * 3 / 2];
-                    }
-                    boolean needToFeedSurface = false;
-                    //Start processing yvu buf
-                    for (ImageFilter filter : mPreviewFilters) {
-                        if (filter.isFrameListener()) {
-                            if (mListeningTask.setParam(filter, bY, bVU, mSize.getWidth(), mSize.getHeight(), stride)) {
-                                mListeningHandler.post(mListeningTask);
-                            }
-                        } else {
-                            filter.init(mSize.getWidth(), mSize.getHeight(), stride, stride);
-                            filter.addImage(bY, bVU, 0, new Boolean(true));
-                            needToFeedSurface = true;
+                long acquired = System.nanoTime();
+                if (!mIsActive) {
+                    image.close();
+                    return;
+                }
+                YuvFrame frame = YuvFrame.wrap(image, 0);
+                mStats.recordSinceSensor(PreviewStats.Stage.SENSOR_TO_ACQUIRE, frame.getTimestamp(), acquired);
+                PreviewFrameRing ring = mRing;
+                if (ring == null || ring.getWidth() != mSize.getWidth()
+                        || ring.getHeight() != mSize.getHeight() || ring.getStride() != frame.getYStride()) {
+                    ring = new PreviewFrameRing(PersistUtil.getPreviewRingSize(),
+                            mSize.getWidth(), mSize.getHeight(), frame.getYStride());
+                    mRing = ring;
+                }
+                //Start processing yvu buf
+                EffectGraph graph = mGraph;
+                if (!graph.isCompiledFor(mSize.getWidth(), mSize.getHeight(), ring.getStride(),
+                        frame.getVUStride())) {
+                    graph.compile(mSize.getWidth(), mSize.getHeight(), ring.getStride(), frame.getVUStride());
+                }
+                boolean needToFeedSurface = graph.run(frame, this, mStats);
+                //End processing yvu buf
+                if (needToFeedSurface) {
+                    int index = ring.acquireWrite();
+                    if (index >= 0) {
+                        frame.copyToNv21(ring.getBuffer(index));
+                        ring.publish(index, frame.getTimestamp(), acquired);
+                        mStats.record(PreviewStats.Stage.PROCESS, acquired, System.nanoTime());
+                        //One pending upload is enough, it always takes the newest frame.
+                        if (mOutPending.compareAndSet(false, true)) {
+                            mOutingHandler.post(this);
                         }
-                        bY.rewind();
-                        bVU.rewind();
                     }
-                    //End processing yvu buf
-                    if (needToFeedSurface) {
-                        bY.get(yvuBytes, 0, bY.remaining());
-                        bVU.get(yvuBytes, ySize, bVU.remaining());
-                        mOutingHandler.post(this);
-                    }
-                    image.close();
-                } catch (IllegalStateException e) {
                 }
+                //The listening tasks may still hold the frame, the last one closes the image.
+                frame.release();
+            } catch (IllegalStateException e) {
             }
         }
 
+        /* Listeners share one frame and retain it while queued. Preview filters change the
+           frame in place, so with one of them running the listeners get a pooled copy. */
+        @Override
+        public YuvFrame copy(YuvFrame frame) {
+            int stride = frame.getYStride();
+            final ByteBuffer buf = ImageBufferPool.getInstance().acquire(stride * frame.getHeight() * 3 / 2);
+            frame.copyToNv21(buf.array());
+            return YuvFrame.wrapNv21(buf, frame.getWidth(), frame.getHeight(), stride,
+                    frame.getTimestamp(), frame.getOrientation(), new YuvFrame.Releaser() {
+                        @Override
+                        public void onReleased(YuvFrame copy) {
+                            ImageBufferPool.getInstance().release(buf);
+                        }
+                    });
+        }
+
+        /* Consumer side: uploads the newest frame and renders it */
         @Override
         public void run() {
-            synchronized (mAllocationLock) {
-                if (!mIsActive) {
-                    return;
-                }
-                if (mInputAllocation == null) {
-                    createAllocation(stride, height, stride - width);
-                }
-                mInputAllocation.copyFrom(yvuBytes);
-                mRsRotator.forEach_rotate90andMerge(mInputAllocation);
-                mRsYuvToRGB.forEach_nv21ToRgb(mOutputAllocation);
-                mOutputAllocation.ioSend();
-                if (mVideoOutputAllocation != null) {
-                    mVideoOutputAllocation.copyFrom(mOutputAllocation);
-                    mVideoOutputAllocation.ioSend();
+            mOutPending.set(false);
+            PreviewFrameRing ring = mRing;
+            if (ring == null) {
+                return;
+            }
+            int index = ring.acquireRead();
+            if (index < 0) {
+                return;
+            }
+            try {
+                synchronized (mAllocationLock) {
+                    if (!mIsActive || mOutputAllocation == null || mConverter == null) {
+                        return;
+                    }
+                    mIsAllocationEverUsed = true;
+                    if (mConvertedRing != ring) {
+                        mConverter.configure(ring.getWidth(), ring.getHeight(), ring.getStride(),
+                                !mModule.isBackCamera());
+                        mConvertedRing = ring;
+                    }
+                    long start = System.nanoTime();
+                    mConverter.convert(ring.getBuffer(index), mOutputAllocation);
+                    long converted = System.nanoTime();
+                    mStats.record(PreviewStats.Stage.CONVERT, start, converted);
+                    mOutputAllocation.ioSend();
+                    long sent = System.nanoTime();
+                    mStats.record(PreviewStats.Stage.PREVIEW_SEND, converted, sent);
+                    mStats.record(PreviewStats.Stage.OUTPUT, ring.getAcquireTime(index), sent);
+                    mStats.recordSinceSensor(PreviewStats.Stage.END_TO_END,
+                            ring.getSensorTimestamp(index), sent);
+                    if (mVideoOutputAllocation != null) {
+                        //Rendered from the uploaded frame, not copied from the preview output.
+                        mConverter.renderTo(mVideoOutputAllocation);
+                        mVideoOutputAllocation.ioSend();
+                        mStats.record(PreviewStats.Stage.VIDEO, sent, System.nanoTime());
+                    }
                 }
+            } finally {
+                ring.releaseRead(index);
             }
         }
     }
 
-    class ListeningTask implements Runnable {
-
-        ImageFilter mFilter;
-        ByteBuffer mBY = null, mBVU = null;
-        int mWidth, mHeight, mStride;
-        int bYSize, bVUSize;
-        Semaphore mMutureLock = new Semaphore(1);
+    /* Feeds one frame listener on the listening thread. Frames coming faster than the
+       target rate of the listener are skipped, and a full queue drops its oldest frame. */
+    class ListeningTask implements Runnable, EffectGraph.BranchRunner {
+        final ImageFilter mFilter;
+        private final long mMinIntervalNs;
+        private final int mMaxQueued;
+        private final Size mAnalysisSize;
+        private final ArrayDeque<YuvFrame> mQueue = new ArrayDeque<YuvFrame>();
+        private boolean mScheduled;
+        private long mLastAcceptedNs = -1;
+        private long mOffered;
+        private long mDelivered;
+        private long mSkipped;
+        private long mDropped;
+        private int mMaxDepth;
+        //Listening thread only.
+        private int mInitWidth = -1;
+        private int mInitHeight = -1;
+        private int mInitStride = -1;
+
+        ListeningTask(ImageFilter filter) {
+            mFilter = filter;
+            int fps = 0;
+            int maxQueued = 1;
+            if (filter instanceof RateLimitedFrameListener) {
+                fps = ((RateLimitedFrameListener) filter).getTargetFps();
+                maxQueued = Math.max(1, ((RateLimitedFrameListener) filter).getMaxQueuedFrames());
+            }
+            //Allow an eighth of jitter, or a 30fps stream would only give 10fps for 15.
+            mMinIntervalNs = fps > 0 ? 1000000000L / fps * 7 / 8 : 0;
+            mMaxQueued = maxQueued;
+            mAnalysisSize = (filter instanceof AnalysisFrameListener)
+                    ? ((AnalysisFrameListener) filter).getAnalysisSize() : null;
+        }
 
-        public boolean setParam(ImageFilter filter, ByteBuffer bY, ByteBuffer bVU, int width, int height, int stride) {
-            if (!mIsActive) {
+        /* Rate check, a frame accepted here has to be offered. */
+        @Override
+        public synchronized boolean accept(long timestamp) {
+            if (!mIsActive || mListeningHandler == null) {
                 return false;
             }
-            if (!mMutureLock.tryAcquire()) {
+            mOffered++;
+            if (mLastAcceptedNs >= 0 && timestamp - mLastAcceptedNs < mMinIntervalNs
+                    && timestamp >= mLastAcceptedNs) {
+                mSkipped++;
                 return false;
             }
-            mFilter = filter;
-            if (mBY == null || bYSize != bY.remaining()) {
-                bYSize = bY.remaining();
-                mBY = ByteBuffer.allocateDirect(bYSize);
-            }
-            if (mBVU == null || bVUSize != bVU.remaining()) {
-                bVUSize = bVU.remaining();
-                mBVU = ByteBuffer.allocateDirect(bVUSize);
-            }
-            mBY.rewind();
-            mBVU.rewind();
-            mBY.put(bY);
-            mBVU.put(bVU);
-            mWidth = width;
-            mHeight = height;
-            mStride = stride;
-            mMutureLock.release();
+            mLastAcceptedNs = timestamp;
             return true;
         }
 
+        @Override
+        public void offer(YuvFrame frame) {
+            YuvFrame dropped = null;
+            Handler handler = mListeningHandler;
+            synchronized (this) {
+                if (handler == null) {
+                    return;
+                }
+                if (mQueue.size() >= mMaxQueued) {
+                    dropped = mQueue.pollFirst();
+                    mDropped++;
+                }
+                mQueue.addLast(frame.retain());
+                mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+                if (!mScheduled) {
+                    mScheduled = true;
+                    handler.post(this);
+                }
+            }
+            if (dropped != null) {
+                dropped.release();
+            }
+        }
+
         @Override
         public void run() {
-            try {
-                if (!mIsActive) {
+            YuvFrame frame;
+            synchronized (this) {
+                frame = mQueue.pollFirst();
+                if (frame == null) {
+                    mScheduled = false;
                     return;
                 }
-                mMutureLock.acquire();
-                mBY.rewind();
-                mBVU.rewind();
-                mFilter.init(mWidth, mHeight, mStride, mStride);
-                mFilter.addImage(mBY, mBVU, 0, new Boolean(true));
-                mMutureLock.release();
-            } catch (InterruptedException e) {
             }
+            try {
+                if (mIsActive) {
+                    long start = System.nanoTime();
+                    //Initialized once per geometry, on this thread.
+                    if (frame.getWidth() != mInitWidth || frame.getHeight() != mInitHeight
+                            || frame.getYStride() != mInitStride) {
+                        mFilter.init(frame.getWidth(), frame.getHeight(), frame.getYStride(), frame.getVUStride());
+                        mInitWidth = frame.getWidth();
+                        mInitHeight = frame.getHeight();
+                        mInitStride = frame.getYStride();
+                    }
+                    if (mAnalysisSize != null) {
+                        //Shared with every listener asking for the same size.
+                        int width = Math.min(mAnalysisSize.getWidth(), frame.getWidth());
+                        int height = Math.min(mAnalysisSize.getHeight(), frame.getHeight());
+                        ((AnalysisFrameListener) mFilter).addAnalysisImage(
+                                frame.getScaledLuma(width, height), width, height, frame.getTimestamp());
+                    } else {
+                        mFilter.addImage(frame, 0, new Boolean(true));
+                    }
+                    long end = System.nanoTime();
+                    mStats.recordFilter(mFilter.getStringName(), start, end);
+                    mStats.recordSinceSensor(PreviewStats.Stage.LISTENER, frame.getTimestamp(), end);
+                }
+            } finally {
+                frame.release();
+            }
+            Handler handler = mListeningHandler;
+            synchronized (this) {
+                mDelivered++;
+                //Repost instead of looping so listeners sharing the thread take turns.
+                if (mQueue.isEmpty() || handler == null) {
+                    mScheduled = false;
+                } else {
+                    handler.post(this);
+                }
+            }
+        }
+
+        /* Runs on the listening thread */
+        void deinitFilter() {
+            if (ImageFilterRegistry.isLoaded(mFilter)) {
+                mFilter.deinit();
+            }
+            mInitWidth = -1;
+        }
+
+        public synchronized int getQueueDepth() {
+            return mQueue.size();
+        }
+
+        /* Releases queued frames, the task is not used afterwards. */
+        public void clear() {
+            ArrayList<YuvFrame> frames;
+            synchronized (this) {
+                frames = new ArrayList<YuvFrame>(mQueue);
+                mQueue.clear();
+                mScheduled = false;
+            }
+            for (YuvFrame frame : frames) {
+                frame.release();
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return mFilter.getStringName() + " offered=" + mOffered + " delivered=" + mDelivered
+                    + " skipped=" + mSkipped + " dropped=" + mDropped
+                    + " queued=" + mQueue.size() + " maxDepth=" + mMaxDepth;
         }
     }
 }
-
@@ -0,0 +1,183 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/* Size-keyed pool of NV21 frame buffers shared by PostProcessor and the image filters.
+   Buffers are reference counted and go back to the pool when the last holder releases them.
+   acquire() hands out heap buffers for the consumers taking array() at offset 0, like the
+   post filters' native processImage(byte[]) and YuvImage. acquireDirect() hands out direct
+   buffers for the native frame filters reading ByteBuffer addresses. */
+public class ImageBufferPool {
+    private static final String TAG = "ImageBufferPool";
+    private static final boolean DEBUG = false;
+    //Free buffers above this are dropped instead of pooled.
+    private static final long MAX_POOLED_BYTES = 96 * 1024 * 1024;
+
+    private static ImageBufferPool sInstance;
+
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> mFreeBuffers =
+            new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    private final HashMap<Integer, ArrayDeque<ByteBuffer>> mFreeDirectBuffers =
+            new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    private final IdentityHashMap<ByteBuffer, Integer> mRefCounts =
+            new IdentityHashMap<ByteBuffer, Integer>();
+    private long mPooledBytes = 0;
+    private long mOutstandingBytes = 0;
+    private long mHighWaterBytes = 0;
+    private int mHitCount = 0;
+    private int mMissCount = 0;
+
+    public static synchronized ImageBufferPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImageBufferPool();
+        }
+        return sInstance;
+    }
+
+    private ImageBufferPool() {
+    }
+
+    /* Returns a cleared heap buffer of exactly capacity bytes with a reference count of 1. */
+    public ByteBuffer acquire(int capacity) {
+        return acquire(capacity, false);
+    }
+
+    /* Same as acquire() with a direct buffer. */
+    public ByteBuffer acquireDirect(int capacity) {
+        return acquire(capacity, true);
+    }
+
+    private synchronized ByteBuffer acquire(int capacity, boolean direct) {
+        ByteBuffer buf = null;
+        ArrayDeque<ByteBuffer> free = (direct ? mFreeDirectBuffers : mFreeBuffers).get(capacity);
+        if (free != null) {
+            buf = free.pollFirst();
+        }
+        if (buf != null) {
+            mHitCount++;
+            mPooledBytes -= capacity;
+            buf.clear();
+        } else {
+            mMissCount++;
+            buf = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        mRefCounts.put(buf, 1);
+        mOutstandingBytes += capacity;
+        if (mOutstandingBytes > mHighWaterBytes) {
+            mHighWaterBytes = mOutstandingBytes;
+        }
+        return buf;
+    }
+
+    /* Adds a reference to a pooled buffer. Buffers not from the pool are ignored. */
+    public synchronized void retain(ByteBuffer buf) {
+        Integer count = mRefCounts.get(buf);
+        if (count != null) {
+            mRefCounts.put(buf, count + 1);
+        }
+    }
+
+    /* Drops a reference, the buffer is pooled again when nobody holds it any longer.
+       Buffers not from the pool are ignored. */
+    public synchronized void release(ByteBuffer buf) {
+        if (buf == null) {
+            return;
+        }
+        Integer count = mRefCounts.get(buf);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            mRefCounts.put(buf, count - 1);
+            return;
+        }
+        mRefCounts.remove(buf);
+        int capacity = buf.capacity();
+        mOutstandingBytes -= capacity;
+        if (mPooledBytes + capacity > MAX_POOLED_BYTES) {
+            return;
+        }
+        HashMap<Integer, ArrayDeque<ByteBuffer>> pool =
+                buf.isDirect() ? mFreeDirectBuffers : mFreeBuffers;
+        ArrayDeque<ByteBuffer> free = pool.get(capacity);
+        if (free == null) {
+            free = new ArrayDeque<ByteBuffer>();
+            pool.put(capacity, free);
+        }
+        free.addFirst(buf);
+        mPooledBytes += capacity;
+    }
+
+    public synchronized boolean isPooled(ByteBuffer buf) {
+        return mRefCounts.containsKey(buf);
+    }
+
+    /* Frees all the buffers which are not in use. */
+    public synchronized void trim() {
+        if (DEBUG) {
+            Log.d(TAG, "trim " + this);
+        }
+        mFreeBuffers.clear();
+        mFreeDirectBuffers.clear();
+        mPooledBytes = 0;
+    }
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getHighWaterBytes() {
+        return mHighWaterBytes;
+    }
+
+    public synchronized long getOutstandingBytes() {
+        return mOutstandingBytes;
+    }
+
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "hit: " + mHitCount + " miss: " + mMissCount + " outstanding: " + mOutstandingBytes
+                + " pooled: " + mPooledBytes + " highWater: " + mHighWaterBytes;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import android.util.Log;
+
+import com.android.camera.CameraActivity;
+import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.filter.BeautificationFilter;
+import com.android.camera.imageprocessor.filter.BestpictureFilter;
+import com.android.camera.imageprocessor.filter.ImageFilter;
+import com.android.camera.imageprocessor.filter.OptizoomFilter;
+import com.android.camera.imageprocessor.filter.SharpshooterFilter;
+import com.android.camera.imageprocessor.filter.StillmoreFilter;
+import com.android.camera.imageprocessor.filter.TrackingFocusFrameListener;
+import com.android.camera.imageprocessor.filter.UbifocusFilter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import dalvik.system.BaseDexClassLoader;
+
+/* Registry of the post processing and frame processing filters. Filters declare their
+   capabilities and native library here. Whether a filter is supported is answered by looking
+   for its library without loading it, the library is loaded on a background thread the first
+   time the filter is created. Callers wait for it with awaitLoaded() before the first native
+   call, or skip the filter while isLoaded() is false. */
+public class ImageFilterRegistry {
+    private static final String TAG = "ImageFilterRegistry";
+
+    public interface Factory {
+        ImageFilter create(CaptureModule module, CameraActivity activity);
+    }
+
+    public static class FilterInfo {
+        public final int id;
+        public final Class<? extends ImageFilter> filterClass;
+        public final boolean isFrameFilter;
+        public final boolean isManualMode;
+        public final int numRequiredImages;
+        final String library;
+        final boolean isDeclaredSupported;
+        final Factory factory;
+
+        public FilterInfo(int id, Class<? extends ImageFilter> filterClass, boolean isFrameFilter,
+                          boolean isManualMode, int numRequiredImages, String library,
+                          boolean isDeclaredSupported, Factory factory) {
+            this.id = id;
+            this.filterClass = filterClass;
+            this.isFrameFilter = isFrameFilter;
+            this.isManualMode = isManualMode;
+            this.numRequiredImages = numRequiredImages;
+            this.library = library;
+            this.isDeclaredSupported = isDeclaredSupported;
+            this.factory = factory;
+        }
+    }
+
+    private static final HashMap<Integer, FilterInfo> sPostFilters = new HashMap<Integer, FilterInfo>();
+    private static final HashMap<Integer, FilterInfo> sFrameFilters = new HashMap<Integer, FilterInfo>();
+    private static final HashMap<Class<?>, FilterInfo> sFilterClasses = new HashMap<Class<?>, FilterInfo>();
+    private static final HashMap<String, Boolean> sAvailableLibraries = new HashMap<String, Boolean>();
+    private static final HashMap<String, FutureTask<Boolean>> sLibraryLoads =
+            new HashMap<String, FutureTask<Boolean>>();
+    private static ExecutorService sLoader;
+
+    static {
+        register(new FilterInfo(PostProcessor.FILTER_OPTIZOOM, OptizoomFilter.class, false, false,
+                OptizoomFilter.NUM_REQUIRED_IMAGE, "jni_optizoom", true, new Factory() {
+                    public ImageFilter create(CaptureModule module, CameraActivity activity) {
+                        return new OptizoomFilter(module);
+                    }
+                }));
+        register(new FilterInfo(PostProcessor.FILTER_SHARPSHOOTER, SharpshooterFilter.class, false,
+                false, SharpshooterFilter.NUM_REQUIRED_IMAGE, "jni_sharpshooter", true,
+                new Factory() {
+                    public ImageFilter create(CaptureModule module, CameraActivity activity) {
+                        return new SharpshooterFilter(module);
+                    }
+                }));
+        register(new FilterInfo(PostProcessor.FILTER_UBIFOCUS, UbifocusFilter.class, false, true,
+                UbifocusFilter.NUM_REQUIRED_IMAGE, "jni_ubifocus", true, new Factory() {
+                    public ImageFilter create(CaptureModule module, CameraActivity activity) {
+                        return new UbifocusFilter(module, activity);
+                    }
+                }));
+        register(new FilterInfo(PostProcessor.FILTER_STILLMORE, StillmoreFilter.class, false, false,
+                StillmoreFilter.NUM_REQUIRED_IMAGE, "jni_stillmore", true, new Factory() {
+                    public ImageFilter create(CaptureModule module, CameraActivity activity) {
+                        return new StillmoreFilter(module);
+                    }
+                }));
+        register(new FilterInfo(PostProcessor.FILTER_BESTPICTURE, BestpictureFilter.class, false,
+                false, BestpictureFilter.NUM_REQUIRED_IMAGE, null, true, new Factory() {
+                    public ImageFilter create(CaptureModule module, CameraActivity activity) {
+                        return new BestpictureFilter(module, activity);
+                    }
+                }));
+        register(new FilterInfo(FrameProcessor.FILTER_MAKEUP, BeautificationFilter.class, true,
+                false, 0, "jni_makeup", true, new Factory() {
+                    public ImageFilter create(CaptureModule module, CameraActivity activity) {
+                        return new BeautificationFilter(module);
+                    }
+                }));
+        register(new FilterInfo(FrameProcessor.LISTENER_TRACKING_FOCUS,
+                TrackingFocusFrameListener.class, true, false, 1, null, false, new Factory() {
+                    public ImageFilter create(CaptureModule module, CameraActivity activity) {
+                        return new TrackingFocusFrameListener(module);
+                    }
+                }));
+    }
+
+    public static synchronized void register(FilterInfo info) {
+        if (info.isFrameFilter) {
+            sFrameFilters.put(info.id, info);
+        } else {
+            sPostFilters.put(info.id, info);
+        }
+        sFilterClasses.put(info.filterClass, info);
+    }
+
+    public static synchronized FilterInfo getPostFilterInfo(int id) {
+        return sPostFilters.get(id);
+    }
+
+    public static synchronized FilterInfo getFrameFilterInfo(int id) {
+        return sFrameFilters.get(id);
+    }
+
+    public static synchronized List<FilterInfo> getPostFilters() {
+        return new ArrayList<FilterInfo>(sPostFilters.values());
+    }
+
+    public static synchronized List<FilterInfo> getFrameFilters() {
+        return new ArrayList<FilterInfo>(sFrameFilters.values());
+    }
+
+    /* Creates the post filter and starts loading its library, null if it isn't supported. */
+    public static ImageFilter createPostFilter(int id, CaptureModule module,
+                                               CameraActivity activity) {
+        return create(getPostFilterInfo(id), module, activity);
+    }
+
+    /* Creates the frame filter and starts loading its library, null if it isn't supported. */
+    public static ImageFilter createFrameFilter(int id, CaptureModule module) {
+        return create(getFrameFilterInfo(id), module, null);
+    }
+
+    private static ImageFilter create(FilterInfo info, CaptureModule module,
+                                      CameraActivity activity) {
+        if (info == null || !isSupported(info)) {
+            return null;
+        }
+        startLoad(info);
+        return info.factory.create(module, activity);
+    }
+
+    /* Doesn't load the library. Turns false if loading the library failed. */
+    public static boolean isSupported(Class<? extends ImageFilter> filterClass) {
+        FilterInfo info;
+        synchronized (ImageFilterRegistry.class) {
+            info = sFilterClasses.get(filterClass);
+        }
+        return info != null && isSupported(info);
+    }
+
+    private static boolean isSupported(FilterInfo info) {
+        if (!info.isDeclaredSupported) {
+            return false;
+        }
+        if (info.library == null) {
+            return true;
+        }
+        FutureTask<Boolean> load;
+        synchronized (ImageFilterRegistry.class) {
+            load = sLibraryLoads.get(info.library);
+        }
+        if (load != null && load.isDone()) {
+            return getLoadResult(load);
+        }
+        return isLibraryAvailable(info.library);
+    }
+
+    /* Whether the native code of the filter can be called now, never blocks. */
+    public static boolean isLoaded(ImageFilter filter) {
+        FutureTask<Boolean> load = getLoad(filter);
+        return load == null || (load.isDone() && getLoadResult(load));
+    }
+
+    /* Waits for the library of the filter, loading it on the calling thread if the background
+       load hasn't started yet. Returns false if it couldn't be loaded. */
+    public static boolean awaitLoaded(ImageFilter filter) {
+        FutureTask<Boolean> load = getLoad(filter);
+        if (load == null) {
+            return true;
+        }
+        load.run();
+        return getLoadResult(load);
+    }
+
+    private static FutureTask<Boolean> getLoad(ImageFilter filter) {
+        FilterInfo info;
+        synchronized (ImageFilterRegistry.class) {
+            info = sFilterClasses.get(filter.getClass());
+        }
+        if (info == null || info.library == null) {
+            return null;
+        }
+        return startLoad(info);
+    }
+
+    private static boolean getLoadResult(FutureTask<Boolean> load) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return load.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            return false;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static synchronized FutureTask<Boolean> startLoad(FilterInfo info) {
+        if (info.library == null) {
+            return null;
+        }
+        FutureTask<Boolean> load = sLibraryLoads.get(info.library);
+        if (load == null) {
+            final String library = info.library;
+            load = new FutureTask<Boolean>(new Callable<Boolean>() {
+                public Boolean call() {
+                    try {
+                        System.loadLibrary(library);
+                        return true;
+                    } catch (UnsatisfiedLinkError e) {
+                        Log.e(TAG, "Failed to load " + library + ": " + e);
+                        return false;
+                    }
+                }
+            });
+            sLibraryLoads.put(library, load);
+            if (sLoader == null) {
+                sLoader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "FilterLibraryLoader");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            sLoader.execute(load);
+        }
+        return load;
+    }
+
+    /* Looks for the library the same way System.loadLibrary() does, without mapping it. */
+    private static boolean isLibraryAvailable(String library) {
+        synchronized (ImageFilterRegistry.class) {
+            Boolean available = sAvailableLibraries.get(library);
+            if (available != null) {
+                return available;
+            }
+        }
+        boolean available = false;
+        ClassLoader loader = ImageFilterRegistry.class.getClassLoader();
+        if (loader instanceof BaseDexClassLoader) {
+            available = ((BaseDexClassLoader) loader).findLibrary(library) != null;
+        }
+        if (!available) {
+            String paths = System.getProperty("java.library.path", "");
+            String name = System.mapLibraryName(library);
+            for (String path : paths.split(File.pathSeparator)) {
+                if (!path.isEmpty() && new File(path, name).isFile()) {
+                    available = true;
+                    break;
+                }
+            }
+        }
+        synchronized (ImageFilterRegistry.class) {
+            sAvailableLibraries.put(library, available);
+        }
+        return available;
+    }
+}
@@ -0,0 +1,302 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+/* Joins baseline JPEG stripes of one frame into a single JPEG. The stripes must be encoded
+   with identical tables and every stripe but the last must span whole MCU rows. The headers
+   of the first stripe are reused with the frame height patched, a DRI segment is inserted
+   and the entropy coded data of each stripe becomes one restart interval of the joined scan.
+   An optional APP1 segment is written right after SOI, in place of an APP1 segment of the
+   headers, so exif is added without another copy.
+   Returns null if the stripes can't be joined, callers should encode in a single pass then. */
+class JpegStitcher {
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_JPG = 0xC8;
+    private static final int MARKER_DAC = 0xCC;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_DRI = 0xDD;
+    private static final int MARKER_RST0 = 0xD0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int DRI_SEGMENT_SIZE = 6;
+
+    private static class Stripe {
+        byte[] data;
+        int sof = -1;
+        int sos = -1;
+        int scanStart = -1;
+
+        int getHeight() {
+            return readShort(data, sof + 5);
+        }
+
+        int getWidth() {
+            return readShort(data, sof + 7);
+        }
+
+        int getScanLength() {
+            return data.length - 2 - scanStart;
+        }
+    }
+
+    static byte[] stitch(byte[][] stripes, int height, byte[] app1) {
+        if (stripes == null || stripes.length == 0 || height > 0xFFFF) {
+            return null;
+        }
+        Stripe[] parsed = new Stripe[stripes.length];
+        for (int i = 0; i < stripes.length; i++) {
+            parsed[i] = parse(stripes[i]);
+            if (parsed[i] == null) {
+                return null;
+            }
+        }
+
+        Stripe first = parsed[0];
+        byte[] header = first.data;
+        int numComponents = header[first.sof + 9] & 0xFF;
+        int maxH = 1;
+        int maxV = 1;
+        for (int c = 0; c < numComponents; c++) {
+            int sampling = header[first.sof + 11 + c * 3] & 0xFF;
+            maxH = Math.max(maxH, sampling >> 4);
+            maxV = Math.max(maxV, sampling & 0x0F);
+        }
+        int mcuWidth = maxH * 8;
+        int mcuHeight = maxV * 8;
+        int stripeHeight = first.getHeight();
+        if (stripeHeight % mcuHeight != 0) {
+            return null;
+        }
+        int mcusPerRow = (first.getWidth() + mcuWidth - 1) / mcuWidth;
+        int restartInterval = mcusPerRow * (stripeHeight / mcuHeight);
+        if (restartInterval > 0xFFFF) {
+            return null;
+        }
+
+        int sum = 0;
+        for (int i = 0; i < parsed.length; i++) {
+            Stripe stripe = parsed[i];
+            if (!isCompatible(first, stripe)) {
+                return null;
+            }
+            boolean last = (i == parsed.length - 1);
+            if (!last && stripe.getHeight() != stripeHeight) {
+                return null;
+            }
+            sum += stripe.getHeight();
+        }
+        if (sum != height) {
+            return null;
+        }
+
+        int app1Length = (app1 == null) ? 0 : app1.length;
+        //A new APP1 segment replaces the first one of the headers.
+        int skipStart = first.sos;
+        int skipLength = 0;
+        if (app1 != null) {
+            skipStart = findApp1(header, 2, first.sof);
+            if (skipStart < header.length) {
+                skipLength = 2 + readShort(header, skipStart + 2);
+            } else {
+                skipStart = first.sos;
+            }
+        }
+        int headerLength = first.sos - 2 - skipLength;
+        int sosLength = first.scanStart - first.sos;
+        int size = 2 + app1Length + headerLength + DRI_SEGMENT_SIZE + sosLength + 2;
+        for (Stripe stripe : parsed) {
+            size += stripe.getScanLength() + 2;
+        }
+        size -= 2; //No restart marker after the last stripe
+
+        byte[] out = new byte[size];
+        int pos = 0;
+        out[pos++] = (byte) 0xFF;
+        out[pos++] = (byte) MARKER_SOI;
+        if (app1 != null) {
+            System.arraycopy(app1, 0, out, pos, app1Length);
+            pos += app1Length;
+        }
+        int sofOut = pos + first.sof - 2 - skipLength;
+        System.arraycopy(header, 2, out, pos, skipStart - 2);
+        pos += skipStart - 2;
+        System.arraycopy(header, skipStart + skipLength, out, pos,
+                first.sos - skipStart - skipLength);
+        pos += first.sos - skipStart - skipLength;
+        writeShort(out, sofOut + 5, height);
+
+        out[pos++] = (byte) 0xFF;
+        out[pos++] = (byte) MARKER_DRI;
+        writeShort(out, pos, 4);
+        writeShort(out, pos + 2, restartInterval);
+        pos += 4;
+
+        System.arraycopy(header, first.sos, out, pos, sosLength);
+        pos += sosLength;
+        for (int i = 0; i < parsed.length; i++) {
+            Stripe stripe = parsed[i];
+            int length = stripe.getScanLength();
+            System.arraycopy(stripe.data, stripe.scanStart, out, pos, length);
+            pos += length;
+            if (i < parsed.length - 1) {
+                out[pos++] = (byte) 0xFF;
+                out[pos++] = (byte) (MARKER_RST0 + (i % 8));
+            }
+        }
+        out[pos++] = (byte) 0xFF;
+        out[pos++] = (byte) MARKER_EOI;
+        return out;
+    }
+
+    /* Places the APP1 segment after SOI and drops the first APP1 segment before the frame
+       header, keeping the others, the same way ExifOutputStream does. The image data is
+       copied once. */
+    static byte[] insertSegment(byte[] jpeg, byte[] app1) {
+        if (jpeg.length < 2 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != MARKER_SOI) {
+            return jpeg;
+        }
+        int start = findApp1(jpeg, 2, jpeg.length);
+        int end = start;
+        if (start < jpeg.length) {
+            end = Math.min(jpeg.length, start + 2 + readShort(jpeg, start + 2));
+        } else {
+            start = 2;
+            end = 2;
+        }
+        byte[] out = new byte[app1.length + jpeg.length - (end - start)];
+        int pos = 0;
+        System.arraycopy(jpeg, 0, out, pos, 2);
+        pos += 2;
+        System.arraycopy(app1, 0, out, pos, app1.length);
+        pos += app1.length;
+        System.arraycopy(jpeg, 2, out, pos, start - 2);
+        pos += start - 2;
+        System.arraycopy(jpeg, end, out, pos, jpeg.length - end);
+        return out;
+    }
+
+    /* Offset of the first APP1 segment in [from, to) before the frame header, or the
+       length of the data if there is none. */
+    private static int findApp1(byte[] data, int from, int to) {
+        int pos = from;
+        while (pos + 4 <= to) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+                break;
+            }
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == MARKER_APP1) {
+                return pos;
+            }
+            if (marker == MARKER_EOI || marker == MARKER_SOS
+                    || (marker >= MARKER_SOF0 && marker <= 0xCF && marker != MARKER_DHT
+                    && marker != MARKER_JPG && marker != MARKER_DAC)) {
+                break;
+            }
+            int length = readShort(data, pos + 2);
+            if (length < 2) {
+                break;
+            }
+            pos += 2 + length;
+        }
+        return data.length;
+    }
+
+    /* Headers, frame layout apart from the height and scan header have to match. */
+    private static boolean isCompatible(Stripe first, Stripe stripe) {
+        if (stripe == first) {
+            return true;
+        }
+        if (stripe.sof != first.sof || stripe.sos != first.sos
+                || stripe.scanStart != first.scanStart) {
+            return false;
+        }
+        for (int i = 2; i < first.scanStart; i++) {
+            if (i == first.sof + 5 || i == first.sof + 6) {
+                continue;
+            }
+            if (first.data[i] != stripe.data[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Stripe parse(byte[] data) {
+        if (data == null || data.length < 4
+                || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != MARKER_SOI
+                || (data[data.length - 2] & 0xFF) != 0xFF
+                || (data[data.length - 1] & 0xFF) != MARKER_EOI) {
+            return null;
+        }
+        Stripe stripe = new Stripe();
+        stripe.data = data;
+        int pos = 2;
+        while (pos + 4 <= data.length) {
+            if ((data[pos] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = data[pos + 1] & 0xFF;
+            int length = readShort(data, pos + 2);
+            if (marker == MARKER_SOF0) {
+                stripe.sof = pos;
+            } else if (marker >= 0xC1 && marker <= 0xCF && marker != MARKER_DHT
+                    && marker != MARKER_JPG && marker != MARKER_DAC) {
+                return null; //Not a baseline frame
+            } else if (marker == MARKER_DRI) {
+                return null; //Already uses restart intervals
+            } else if (marker == MARKER_SOS) {
+                stripe.sos = pos;
+                stripe.scanStart = pos + 2 + length;
+                break;
+            }
+            pos += 2 + length;
+        }
+        if (stripe.sof < 0 || stripe.sos < 0 || stripe.scanStart > data.length - 2) {
+            return null;
+        }
+        //A single interleaved scan of all components
+        int frameComponents = data[stripe.sof + 9] & 0xFF;
+        int scanComponents = data[stripe.sos + 4] & 0xFF;
+        if (frameComponents != scanComponents || stripe.sof + 10 + frameComponents * 3 > data.length) {
+            return null;
+        }
+        return stripe;
+    }
+
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static void writeShort(byte[] data, int pos, int value) {
+        data[pos] = (byte) ((value >> 8) & 0xFF);
+        data[pos + 1] = (byte) (value & 0xFF);
+    }
+}
@@ -30,9 +30,7 @@ package com.android.camera.imageprocessor;
 
 import android.content.ContentResolver;
 import android.content.Context;
-import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CaptureRequest;
@@ -41,6 +39,7 @@ import android.media.ImageReader;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -49,25 +48,27 @@ import com.android.camera.CaptureModule;
 import com.android.camera.Exif;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
+import com.android.camera.SaveScheduler;
 import com.android.camera.SettingsManager;
 import com.android.camera.exif.ExifInterface;
-import com.android.camera.imageprocessor.filter.BestpictureFilter;
-import com.android.camera.imageprocessor.filter.OptizoomFilter;
-import com.android.camera.imageprocessor.filter.SharpshooterFilter;
-import com.android.camera.imageprocessor.filter.StillmoreFilter;
-import com.android.camera.imageprocessor.filter.UbifocusFilter;
 import com.android.camera.ui.RotateTextToast;
 
-import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.android.camera.imageprocessor.filter.BatchImageFilter;
+import com.android.camera.imageprocessor.filter.FrameBatch;
 import com.android.camera.imageprocessor.filter.ImageFilter;
+import com.android.camera.imageprocessor.filter.YuvFrame;
 import com.android.camera.util.CameraUtil;
+import com.android.camera.util.LatencyHistogram;
+import com.android.camera.util.PersistUtil;
 
 public class PostProcessor implements ImageReader.OnImageAvailableListener{
 
@@ -84,62 +85,147 @@ public class PostProcessor implements ImageReader.OnImageAvailableListener{
 
     //Max image is now Bestpicture filter with 10
     public static final int MAX_REQUIRED_IMAGE_NUM = 10;
-    private int mCurrentNumImage = 0;
-    private ImageFilter mFilter;
-    private int mFilterIndex;
+    //Number of captures allowed in flight at once. 1 keeps captures fully serialized.
+    private static final int PIPELINE_DEPTH = Math.max(1, PersistUtil.getPostProcPipelineDepth());
+    private volatile ImageFilter mFilter;
+    private volatile int mFilterIndex;
     private HandlerThread mHandlerThread;
     private ProcessorHandler mHandler;
+    private HandlerThread mSaveThread;
+    private Handler mSaveHandler;
     private CameraActivity mActivity;
     private int mWidth;
     private int mHeight;
     private int mStride;
-    private Object lock = new Object();
-    private ImageFilter.ResultImage mDefaultResultImage;  //This is used only no filter is chosen.
-    private Image[] mImages;
+    //Only guards the calls into the filter, which is not thread safe.
+    private final Object mFilterLock = new Object();
+    private final CapturePipeline<Image, CaptureSlot> mPipeline = new CapturePipeline<Image, CaptureSlot>() {
+        @Override
+        protected CaptureSlot createSlot() {
+            ImageFilter filter = mFilter;
+            int numRequired = (filter == null) ? 1 : filter.getNumRequiredImage();
+            return new CaptureSlot(numRequired,
+                    CameraUtil.getJpegRotation(mController.getMainCameraId(), mController.getDisplayOrientation()));
+        }
+
+        @Override
+        protected void close(Image image) {
+            image.close();
+        }
+    };
     private PhotoModule.NamedImages mNamedImages;
-    private WatchdogThread mWatchdog;
-    private int mOrientation = 0;
+    private HandlerThread mWatchdogThread;
+    private Handler mWatchdogHandler;
+    private final LatencyHistogram[] mStageLatency = new LatencyHistogram[Stage.values().length];
+    private final AtomicIntegerArray mStageTimeouts = new AtomicIntegerArray(Stage.values().length);
 
     //This is for the debug feature.
     private static boolean DEBUG_FILTER = false;
-    private ImageFilter.ResultImage mDebugResultImage;
 
     @Override
     public void onImageAvailable(ImageReader reader) {
         try {
             Image image = reader.acquireNextImage();
-            addImage(image);
-            if (isReadyToProcess()) {
+            CaptureSlot slot = addImage(image);
+            if (slot != null) {
                 long captureStartTime = System.currentTimeMillis();
                 mNamedImages.nameNewImage(captureStartTime);
                 PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
                 String title = (name == null) ? null : name.title;
                 long date = (name == null) ? -1 : name.date;
-                processImage(title, date, mController.getMediaSavedListener(), mActivity.getContentResolver());
+                processImage(slot, title, date, mController.getMediaSavedListener(), mActivity.getContentResolver());
             }
         } catch (IllegalStateException e) {
             Log.e(TAG, "Max images has been already acquired. ");
         }
     }
 
+    /* Stages of a capture, each one has its own deadline. */
+    public enum Stage {
+        ACQUIRE,    //Waiting for all the images of the capture from the camera
+        ADD_IMAGE,  //Handing the images to the filter
+        PROCESS,    //Running the filter
+        ENCODE,     //Waiting for and running the JPEG encoder
+        SAVE        //Handing the JPEG to MediaSaveService
+    }
+
+    /* Images and intermediate results of one capture request. A slot is opened by the
+       first image of a capture and closed once its result has been saved. */
+    private class CaptureSlot extends CapturePipeline.Slot<Image> {
+        final int orientation;
+        ImageFilter.ResultImage defaultResultImage;  //This is used only no filter is chosen.
+        ImageFilter.ResultImage debugResultImage;
+        volatile Stage stage;
+        volatile long stageStartTime;
+        final Runnable deadline = new Runnable() {
+            public void run() {
+                onDeadline(CaptureSlot.this);
+            }
+        };
+
+        CaptureSlot(int numImages, int orientation) {
+            super(numImages);
+            this.orientation = orientation;
+        }
+
+        void releaseResultImages() {
+            if (defaultResultImage != null) {
+                defaultResultImage.release();
+                defaultResultImage = null;
+            }
+            if (debugResultImage != null) {
+                debugResultImage.release();
+                debugResultImage = null;
+            }
+        }
+    }
+
     enum STATUS {
         DEINIT,
-        INIT,
-        BUSY
+        INIT
     }
-    private STATUS mStatus = STATUS.DEINIT;
+    private final AtomicReference<STATUS> mStatus = new AtomicReference<STATUS>(STATUS.DEINIT);
 
     public PostProcessor(CameraActivity activity, CaptureModule module) {
         mController = module;
         mActivity = activity;
         mNamedImages = new PhotoModule.NamedImages();
+        for (Stage stage : Stage.values()) {
+            mStageLatency[stage.ordinal()] = new LatencyHistogram(stage.name());
+        }
+    }
+
+    public LatencyHistogram getStageLatency(Stage stage) {
+        return mStageLatency[stage.ordinal()];
+    }
+
+    public int getStageTimeoutCount(Stage stage) {
+        return mStageTimeouts.get(stage.ordinal());
+    }
 
+    private static int getStageTimeout(Stage stage) {
+        switch (stage) {
+            case ACQUIRE:
+                return PersistUtil.getPostProcAcquireTimeout();
+            case ADD_IMAGE:
+                return PersistUtil.getPostProcAddTimeout();
+            case PROCESS:
+                return PersistUtil.getPostProcProcessTimeout();
+            case ENCODE:
+                return PersistUtil.getPostProcEncodeTimeout();
+            default:
+                return PersistUtil.getPostProcSaveTimeout();
+        }
     }
 
     public boolean isItBusy() {
-        if(mStatus == STATUS.BUSY)
+        if (mPipeline.getActiveSlotNum() >= PIPELINE_DEPTH) {
             return true;
-        return false;
+        }
+        ImageFilter filter = mFilter;
+        int required = (filter == null) ? 1 : filter.getNumRequiredImage();
+        //The next capture has to fit in the ImageReader next to the ones still in flight.
+        return mPipeline.getReservedImageNum() + required > MAX_REQUIRED_IMAGE_NUM;
     }
 
     public List<CaptureRequest> setRequiredImages(CaptureRequest.Builder builder) {
@@ -179,13 +265,19 @@ public class PostProcessor implements ImageReader.OnImageAvailableListener{
     }
 
     public void onClose() {
-        synchronized (lock) {
-            if(mHandler != null) {
-                mHandler.setInActive();
-            }
-            stopBackgroundThread();
+        ProcessorHandler handler = mHandler;
+        if(handler != null) {
+            handler.setInActive();
         }
+        stopBackgroundThread();
         setFilter(FILTER_NONE);
+        for (LatencyHistogram histogram : mStageLatency) {
+            if (histogram.getCount() > 0) {
+                Log.d(TAG, "Stage latency " + histogram);
+            }
+        }
+        Log.d(TAG, "Buffer pool " + ImageBufferPool.getInstance());
+        ImageBufferPool.getInstance().trim();
     }
 
     private void startBackgroundThread() {
@@ -193,53 +285,55 @@ public class PostProcessor implements ImageReader.OnImageAvailableListener{
         mHandlerThread.start();
         mHandler = new ProcessorHandler(mHandlerThread.getLooper());
 
-        mWatchdog = new WatchdogThread();
-        mWatchdog.start();
-    }
-
-    class WatchdogThread extends Thread {
-        private boolean isAlive = true;
-        private boolean isMonitor = false;
-        private int counter = 0;
-        public void run() {
-            while(isAlive) {
-                try {
-                    Thread.sleep(200);
-                }catch(InterruptedException e) {
-                }
-                if(isMonitor) {
-                    counter++;
-                    if(counter >= 40) { //This is 4 seconds.
-                        bark();
-                        break;
-                    }
-                }
-            }
+        mSaveThread = new HandlerThread("PostProcessorSaveThread");
+        mSaveThread.start();
+        mSaveHandler = new Handler(mSaveThread.getLooper());
 
-        }
+        mWatchdogThread = new HandlerThread("PostProcessorWatchdog");
+        mWatchdogThread.start();
+        mWatchdogHandler = new Handler(mWatchdogThread.getLooper());
+    }
 
-        public void startMonitor() {
-            isMonitor = true;
+    /* Moves the capture to the next stage, or finishes it with null. The time spent in the
+       previous stage is recorded and the deadline of the capture is re-armed. */
+    private void enterStage(CaptureSlot slot, Stage stage) {
+        long now = SystemClock.elapsedRealtime();
+        //The stages of a slot are entered one after the other, never concurrently.
+        Stage previous = slot.stage;
+        if (previous != null) {
+            mStageLatency[previous.ordinal()].record(now - slot.stageStartTime);
         }
-
-        public void stopMonitor() {
-            isMonitor = false;
-            counter = 0;
+        slot.stageStartTime = now;
+        slot.stage = stage;
+        Handler watchdog = mWatchdogHandler;
+        if (watchdog != null) {
+            watchdog.removeCallbacks(slot.deadline);
+            if (stage != null && !slot.isCancelled()) {
+                watchdog.postDelayed(slot.deadline, getStageTimeout(stage));
+            }
         }
+    }
 
-        public void kill() {
-            isAlive = false;
+    private void onDeadline(CaptureSlot slot) {
+        Stage stage = slot.stage;
+        if (stage == null || !mPipeline.isActive(slot)) {
+            return;
         }
-        private void bark() {
-            Log.e(TAG, "It takes too long to get the images and process the filter!");
-            int index = getFilterIndex();
-            setFilter(FILTER_NONE);
-            setFilter(index);
+        long elapsed = SystemClock.elapsedRealtime() - slot.stageStartTime;
+        mStageTimeouts.incrementAndGet(stage.ordinal());
+        Log.e(TAG, "Capture stalled in " + stage + " for " + elapsed + " ms, "
+                + mStageLatency[stage.ordinal()]);
+        if (stage == Stage.ENCODE || stage == Stage.SAVE || mFilter == null) {
+            //Only a stuck filter is recovered, the capture still finishes on its own otherwise.
+            return;
         }
+        int index = getFilterIndex();
+        setFilter(FILTER_NONE);
+        setFilter(index);
     }
 
     class ProcessorHandler extends Handler {
-        boolean isRunning;
+        volatile boolean isRunning;
 
         public ProcessorHandler(Looper looper) {
             super(looper);
@@ -261,9 +355,24 @@ public class PostProcessor implements ImageReader.OnImageAvailableListener{
             mHandlerThread = null;
             mHandler = null;
         }
-        if(mWatchdog != null) {
-            mWatchdog.kill();
-            mWatchdog = null;
+        //The save thread goes last, processing may still be waiting for an encode to finish.
+        if (mSaveThread != null) {
+            mSaveThread.quitSafely();
+            try {
+                mSaveThread.join();
+            } catch (InterruptedException e) {
+            }
+            mSaveThread = null;
+            mSaveHandler = null;
+        }
+        if (mWatchdogThread != null) {
+            mWatchdogThread.quitSafely();
+            try {
+                mWatchdogThread.join();
+            } catch (InterruptedException e) {
+            }
+            mWatchdogThread = null;
+            mWatchdogHandler = null;
         }
         clear();
     }
@@ -273,36 +382,22 @@ public class PostProcessor implements ImageReader.OnImageAvailableListener{
             Log.e(TAG, "Invalid scene filter ID");
             return false;
         }
-        synchronized (lock) {
-            if (mFilter != null) {
+        synchronized (mFilterLock) {
+            //Nothing native has run yet if the library is still loading.
+            if (mFilter != null && ImageFilterRegistry.isLoaded(mFilter)) {
                 mFilter.deinit();
             }
-            mStatus = STATUS.DEINIT;
-            switch (index) {
-                case FILTER_NONE:
-                    mFilter = null;
-                    break;
-                case FILTER_OPTIZOOM:
-                    mFilter = new OptizoomFilter(mController);
-                    break;
-                case FILTER_SHARPSHOOTER:
-                    mFilter = new SharpshooterFilter(mController);
-                    break;
-                case FILTER_UBIFOCUS:
-                    mFilter = new UbifocusFilter(mController, mActivity);
-                    break;
-                case FILTER_STILLMORE:
-                    mFilter = new StillmoreFilter(mController);
-                    break;
-                case FILTER_BESTPICTURE:
-                    mFilter = new BestpictureFilter(mController, mActivity);
-                    break;
+            clear();
+            mStatus.set(STATUS.DEINIT);
+            mFilter = null;
+            if (index != FILTER_NONE) {
+                mFilter = ImageFilterRegistry.createPostFilter(index, mController, mActivity);
             }
         }
 
-        if(mFilter != null && !mFilter.isSupported()) {
-            final String filterName = mFilter.getStringName();
-            mFilter = null;
+        if(index != FILTER_NONE && mFilter == null) {
+            final String filterName = ImageFilterRegistry.getPostFilterInfo(index)
+                    .filterClass.getSimpleName();
             mActivity.runOnUiThread(new Runnable() {
                 public void run() {
                     RotateTextToast.makeText(mActivity, filterName+" is not supported. ", Toast.LENGTH_SHORT).show();
@@ -315,113 +410,209 @@ public class PostProcessor implements ImageReader.OnImageAvailableListener{
             return false;
         }
         mFilterIndex = index;
-        mImages = new Image[mFilter.getNumRequiredImage()];
         return true;
     }
 
-    private boolean isReadyToProcess() {
-        synchronized (lock) {
-            if (mFilter == null) {
-                return true;
-            }
-            if (mCurrentNumImage >= mFilter.getNumRequiredImage()) {
-                return true;
-            }
-        }
-        return false;
+    private boolean isActiveSlot(CaptureSlot slot) {
+        return mPipeline.isActive(slot);
+    }
+
+    private void closeImage(CaptureSlot slot, int index) {
+        mPipeline.closeImage(slot, index);
     }
 
-    private void addImage(final Image image) {
+    private void completeSlot(CaptureSlot slot) {
+        enterStage(slot, null);
+        mPipeline.complete(slot);
+    }
+
+    /* Returns the slot of the image once the slot got all the images it needs, null otherwise. */
+    private CaptureSlot addImage(final Image image) {
         if(mHandler == null || !mHandler.isRunning) {
-            return;
+            image.close();
+            return null;
         }
         final ProcessorHandler handler = mHandler;
-        if (mStatus == STATUS.DEINIT) {
+        if (mStatus.compareAndSet(STATUS.DEINIT, STATUS.INIT)) {
             mWidth = image.getWidth();
             mHeight = image.getHeight();
             mStride = image.getPlanes()[0].getRowStride();
-            mStatus = STATUS.INIT;
             mHandler.post(new Runnable() {
                     public void run() {
-                        synchronized (lock) {
+                        synchronized (mFilterLock) {
                             if(!handler.isRunning) {
                                 return;
                             }
                             if(mFilter == null) {
                                 //Nothing here we have to do if filter is not chosen.
-                            } else {
+                            } else if (ImageFilterRegistry.awaitLoaded(mFilter)) {
                                 mFilter.init(mWidth, mHeight, mStride, mStride);
+                            } else {
+                                Log.e(TAG, mFilter.getStringName() + " could not be loaded");
+                                mFilter = null;
+                                mFilterIndex = FILTER_NONE;
+                                clear();
                             }
                         }
                     }
                 });
         }
-        if(mCurrentNumImage == 0) {
-            mStatus = STATUS.BUSY;
-            if(mWatchdog != null) {
-                mWatchdog.startMonitor();
-            }
-            mOrientation = CameraUtil.getJpegRotation(mController.getMainCameraId(), mController.getDisplayOrientation());
+        CapturePipeline.Added<CaptureSlot> added = mPipeline.add(image);
+        if (added == null) {
+            //The capture got dropped while the image arrived, the image is closed already.
+            return null;
         }
-        if(mFilter != null && mCurrentNumImage >= mFilter.getNumRequiredImage()) {
-            return;
+        final CaptureSlot slot = added.slot;
+        final int numImage = added.index;
+        final boolean isReady = added.isLast;
+        if (numImage == 0) {
+            enterStage(slot, Stage.ACQUIRE);
         }
-        final int numImage = mCurrentNumImage;
-        mCurrentNumImage++;
-        if(mHandler == null) {
-            return;
+        if (isReady) {
+            enterStage(slot, Stage.ADD_IMAGE);
         }
-        mHandler.post(new Runnable() {
+        if (mFilter instanceof BatchImageFilter) {
+            //The whole burst is handed over at once when its last image lands.
+            if (isReady) {
+                handler.post(new Runnable() {
+                        public void run() {
+                            synchronized (mFilterLock) {
+                                if(!handler.isRunning || !isActiveSlot(slot)) {
+                                    return;
+                                }
+                                addFrames(slot);
+                            }
+                        }
+                    });
+            }
+            return isReady ? slot : null;
+        }
+        handler.post(new Runnable() {
                 public void run() {
-                    synchronized (lock) {
-                        if(!handler.isRunning) {
+                    synchronized (mFilterLock) {
+                        if(!handler.isRunning || !isActiveSlot(slot)) {
                             return;
                         }
-                        ByteBuffer yBuf = image.getPlanes()[0].getBuffer();
-                        ByteBuffer vuBuf = image.getPlanes()[2].getBuffer();
-                        if(mFilter != null && DEBUG_FILTER && numImage == 0) {
-                            mDebugResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
-                            yBuf.get(mDebugResultImage.outBuffer.array(), 0, yBuf.remaining());
-                            vuBuf.get(mDebugResultImage.outBuffer.array(), mStride * mHeight, vuBuf.remaining());
-                            yBuf.rewind();
-                            vuBuf.rewind();
-                        }
-                        if(mFilter == null) {
-                            mDefaultResultImage = new ImageFilter.ResultImage(ByteBuffer.allocateDirect(mStride * mHeight*3/2),
-                                                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
-                            yBuf.get(mDefaultResultImage.outBuffer.array(), 0, yBuf.remaining());
-                            vuBuf.get(mDefaultResultImage.outBuffer.array(), mStride*mHeight, vuBuf.remaining());
-                            image.close();
-                        } else {
-                            mFilter.addImage(image.getPlanes()[0].getBuffer(),
-                                    image.getPlanes()[2].getBuffer(), numImage, null);
-                            mImages[numImage] = image;
-                        }
+                        addFrame(slot, numImage);
                     }
                 }
             });
+        return isReady ? slot : null;
+    }
+
+    /* The image is closed once the last holder of the frame releases it. */
+    private YuvFrame wrapImage(final CaptureSlot slot, final int index) {
+        return YuvFrame.wrap(slot.getImage(index), slot.orientation, new YuvFrame.Releaser() {
+            @Override
+            public void onReleased(YuvFrame frame) {
+                closeImage(slot, index);
+            }
+        });
+    }
+
+    private void copyDebugImage(CaptureSlot slot, YuvFrame frame) {
+        slot.debugResultImage = new ImageFilter.ResultImage(
+                ImageBufferPool.getInstance().acquire(mStride * mHeight*3/2),
+                new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+        frame.copyToNv21(slot.debugResultImage.outBuffer.array());
+    }
+
+    private void addFrame(CaptureSlot slot, int numImage) {
+        YuvFrame frame = wrapImage(slot, numImage);
+        if(mFilter != null && DEBUG_FILTER && numImage == 0) {
+            copyDebugImage(slot, frame);
+        }
+        if(mFilter == null) {
+            slot.defaultResultImage = new ImageFilter.ResultImage(
+                    ImageBufferPool.getInstance().acquire(mStride * mHeight*3/2),
+                                                    new Rect(0, 0, mWidth, mHeight), mWidth, mHeight, mStride);
+            frame.copyToNv21(slot.defaultResultImage.outBuffer.array());
+            frame.release();
+        } else {
+            slot.setFrame(numImage, frame);
+            mFilter.addImage(frame, numImage, null);
+        }
+    }
+
+    private void addFrames(CaptureSlot slot) {
+        if (!(mFilter instanceof BatchImageFilter)) {
+            //The filter got changed while the burst was arriving.
+            for (int i = 0; i < slot.size(); i++) {
+                addFrame(slot, i);
+            }
+            return;
+        }
+        YuvFrame[] frames = new YuvFrame[slot.size()];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = wrapImage(slot, i);
+            slot.setFrame(i, frames[i]);
+        }
+        if (DEBUG_FILTER) {
+            copyDebugImage(slot, frames[0]);
+        }
+        ((BatchImageFilter) mFilter).addImages(new FrameBatch(frames, slot.orientation));
     }
 
-    public static byte[] addExifTags(byte[] jpeg, int orientationInDegree) {
+    /* Returns the APP1 segment for the encoder to write in place, or null if it can't be built. */
+    public static byte[] getExifSegment(int orientationInDegree) {
         ExifInterface exif = new ExifInterface();
         exif.addOrientationTag(orientationInDegree);
         exif.addDateTimeStampTag(ExifInterface.TAG_DATE_TIME, System.currentTimeMillis(),
                 TimeZone.getDefault());
-        ByteArrayOutputStream jpegOut = new ByteArrayOutputStream();
         try {
-            exif.writeExif(jpeg, jpegOut);
+            return exif.getExifSegment();
         } catch (IOException e) {
             Log.e(TAG, "Could not write EXIF", e);
         }
-        return jpegOut.toByteArray();
+        return null;
     }
 
+    /* Drops every capture in flight and gives their images back to the ImageReader. */
     private void clear() {
-        mCurrentNumImage = 0;
+        //Frames still retained elsewhere, like by a pending dump, keep their images until they
+        //are released there. The result images belong to the processing and save threads.
+        Handler watchdog = mWatchdogHandler;
+        for (CaptureSlot slot : mPipeline.getActiveSlots()) {
+            slot.stage = null;
+            if (watchdog != null) {
+                watchdog.removeCallbacks(slot.deadline);
+            }
+        }
+        mPipeline.clear();
+    }
+
+    /* The native frame filters read the planes through direct buffers. Results backed by
+       an array are run on a pooled direct copy, which is copied back afterwards. */
+    private static void runFrameFilters(ImageFilter.ResultImage resultImage, int orientation,
+                                        List<ImageFilter> filters) {
+        ByteBuffer nv21 = resultImage.outBuffer;
+        if (!nv21.isDirect()) {
+            nv21 = ImageBufferPool.getInstance().acquireDirect(resultImage.outBuffer.capacity());
+            ByteBuffer src = resultImage.outBuffer.duplicate();
+            src.clear();
+            nv21.put(src);
+            nv21.clear();
+        }
+        for (ImageFilter filter : filters) {
+            if (!ImageFilterRegistry.awaitLoaded(filter)) {
+                continue;
+            }
+            filter.init(resultImage.width, resultImage.height, resultImage.stride, resultImage.stride);
+            YuvFrame frame = YuvFrame.wrapNv21(nv21, resultImage.width,
+                    resultImage.height, resultImage.stride, 0, orientation, null);
+            filter.addImage(frame, 0, new Boolean(false));
+            frame.release();
+            filter.deinit();
+        }
+        if (nv21 != resultImage.outBuffer) {
+            ByteBuffer dst = resultImage.outBuffer.duplicate();
+            dst.clear();
+            dst.put(nv21);
+            ImageBufferPool.getInstance().release(nv21);
+        }
     }
 
-    private void processImage(final String title, final long date,
+    private void processImage(final CaptureSlot slot, final String title, final long date,
                              final MediaSaveService.OnMediaSavedListener mediaSavedListener,
                              final ContentResolver contentResolver) {
         if(mHandler == null || !mHandler.isRunning) {
@@ -430,77 +621,91 @@ public class PostProcessor implements ImageReader.OnImageAvailableListener{
         final ProcessorHandler handler = mHandler;
         mHandler.post(new Runnable() {
             public void run() {
-                byte[] bytes;
                 ImageFilter.ResultImage resultImage = null;
-                synchronized (lock) {
-                    if (!handler.isRunning) {
+                synchronized (mFilterLock) {
+                    if (!handler.isRunning || !isActiveSlot(slot)) {
+                        slot.releaseResultImages();
                         return;
                     }
+                    enterStage(slot, Stage.PROCESS);
                     if (mFilter == null) { //In case no post filter is chosen
-                        resultImage = mDefaultResultImage;
+                        resultImage = slot.defaultResultImage;
+                        slot.defaultResultImage = null;
                     } else {
                         resultImage = mFilter.processImage();
-                        for (int i = 0; i < mImages.length; i++) {
-                            if(mImages[i] != null) {
-                                mImages[i].close();
-                                mImages[i] = null;
-                            }
-                        }
+                        mPipeline.releaseImages(slot);
                     }
-                    if(resultImage != null) {
-                        //Start processing FrameProcessor filter as well
-                        for (ImageFilter filter : mController.getFrameFilters()) {
-                            filter.init(resultImage.width, resultImage.height, resultImage.stride, resultImage.stride);
-                            filter.addImage(resultImage.outBuffer, null, 0, new Boolean(false));
-                        }
+                }
+                if(resultImage != null) {
+                    //Start processing FrameProcessor filter as well
+                    //Own instances, the preview ones belong to the FrameProcessor thread.
+                    List<ImageFilter> filters = mController.createSnapshotFilters();
+                    if (filters.size() != 0) {
+                        runFrameFilters(resultImage, slot.orientation, filters);
                     }
-                    //End processing FrameProessor filter
-                    clear();
-                    mStatus = STATUS.INIT;
-                    if(mWatchdog != null) {
-                        mWatchdog.stopMonitor();
+                }
+                //End processing FrameProessor filter
+                if(resultImage == null ||
+                        (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
+                        (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
+                        ) {
+                    Log.d(TAG, "Result image is not valid.");
+                    if (resultImage != null) {
+                        resultImage.release();
                     }
-                    if(resultImage == null ||
-                            (resultImage.outRoi.left + resultImage.outRoi.width() > resultImage.width) ||
-                            (resultImage.outRoi.top + resultImage.outRoi.height() > resultImage.height)
-                            ) {
-                        Log.d(TAG, "Result image is not valid.");
-                    } else {
-                        if(mFilter != null && DEBUG_FILTER) {
-                            bytes = nv21ToJpeg(mDebugResultImage, mOrientation);
-                            mActivity.getMediaSaveService().addImage(
-                                    bytes, title + "_beforeApplyingFilter", date, null, mDebugResultImage.outRoi.width(), mDebugResultImage.outRoi.height(),
-                                    mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
+                    finishSave(slot);
+                    return;
+                }
+                //Encoding and saving run on their own thread so the next capture can be processed.
+                enterStage(slot, Stage.ENCODE);
+                final ImageFilter.ResultImage result = resultImage;
+                Runnable saveTask = new Runnable() {
+                    public void run() {
+                        try {
+                            saveResult(slot, result, title, date, mediaSavedListener, contentResolver);
+                        } finally {
+                            result.release();
+                            finishSave(slot);
                         }
-                        bytes = nv21ToJpeg(resultImage, mOrientation);
-                        mActivity.getMediaSaveService().addImage(
-                                bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
-                                mOrientation, null, mediaSavedListener, contentResolver, "jpeg");
-                        mController.updateThumbnailJpegData(bytes);
                     }
+                };
+                Handler saveHandler = mSaveHandler;
+                if (saveHandler == null || !saveHandler.post(saveTask)) {
+                    saveTask.run();
                 }
             }
         });
     }
 
-    private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation) {
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(resultImage.outBuffer.array(), ImageFormat.NV21,
-                                    resultImage.width, resultImage.height, new int[]{resultImage.stride, resultImage.stride});
-        im.compressToJpeg(resultImage.outRoi, 50, bos);
-        byte[] bytes = bos.getArray();
-        bytes = addExifTags(bytes, orientation);
-        return bytes;
+    private void saveResult(CaptureSlot slot, ImageFilter.ResultImage resultImage, String title, long date,
+                            MediaSaveService.OnMediaSavedListener mediaSavedListener,
+                            ContentResolver contentResolver) {
+        byte[] bytes;
+        if(slot.debugResultImage != null) {
+            bytes = nv21ToJpeg(slot.debugResultImage, slot.orientation);
+            mActivity.getMediaSaveService().addImage(
+                    bytes, title + "_beforeApplyingFilter", date, null, slot.debugResultImage.outRoi.width(),
+                    slot.debugResultImage.outRoi.height(), slot.orientation, null, mediaSavedListener,
+                    contentResolver, "jpeg", SaveScheduler.Lane.DEBUG, null);
+        }
+        bytes = nv21ToJpeg(resultImage, slot.orientation);
+        enterStage(slot, Stage.SAVE);
+        mActivity.getMediaSaveService().addImage(
+                bytes, title, date, null, resultImage.outRoi.width(), resultImage.outRoi.height(),
+                slot.orientation, null, mediaSavedListener, contentResolver, "jpeg");
+        mController.updateThumbnailJpegData(bytes);
     }
 
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
+    private void finishSave(CaptureSlot slot) {
+        slot.releaseResultImages();
+        completeSlot(slot);
+    }
 
-        public byte[] getArray() {
-            return buf;
-        }
+    private byte[] nv21ToJpeg(ImageFilter.ResultImage resultImage, int orientation) {
+        Rect roi = resultImage.outRoi;
+        return TiledJpegEncoder.getInstance().encode(resultImage.outBuffer.array(),
+                resultImage.width, resultImage.height, resultImage.stride, resultImage.stride,
+                roi.left, roi.top, roi.right, roi.bottom, 50, getExifSegment(orientation));
     }
 
     private native int nativeFlipVerticalNV21(byte[] buf, int stride, int height);
@@ -0,0 +1,221 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/* A fixed ring of NV21 preview buffers between one producer and one consumer thread.
+ * Every buffer is FREE, being written, READY or being read, and only its current owner
+ * touches it, so a frame being uploaded is never overwritten and no lock is needed.
+ * The consumer always takes the newest frame. When it lags, older frames are dropped. */
+public class PreviewFrameRing {
+    private static final int FREE = 0;
+    private static final int WRITING = 1;
+    private static final int READY = 2;
+    private static final int READING = 3;
+
+    private final byte[][] mBuffers;
+    private final AtomicIntegerArray mStates;
+    private final long[] mSequences;     //Written by the producer before the slot is READY
+    private final long[] mPublishTimes;
+    private final long[] mSensorTimestamps;
+    private final long[] mAcquireTimes;
+    private final int[] mWriteCounts;    //Bumped each time the producer takes the slot
+    private final int[] mReadWriteCounts;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+    private long mNextSequence;          //Producer only
+    private long mLastPublishTime;       //Producer only
+    private volatile long mFrameInterval;
+    private final AtomicInteger mDropped = new AtomicInteger();
+    private final AtomicInteger mTorn = new AtomicInteger();
+    private final AtomicInteger mLate = new AtomicInteger();
+    private final AtomicInteger mShown = new AtomicInteger();
+
+    public PreviewFrameRing(int numBuffers, int width, int height, int stride) {
+        //One buffer being written and one being read leave at least one to hand over.
+        int num = Math.max(3, numBuffers);
+        mBuffers = new byte[num][stride * height * 3 / 2];
+        mStates = new AtomicIntegerArray(num);
+        mSequences = new long[num];
+        mPublishTimes = new long[num];
+        mSensorTimestamps = new long[num];
+        mAcquireTimes = new long[num];
+        mWriteCounts = new int[num];
+        mReadWriteCounts = new int[num];
+        mWidth = width;
+        mHeight = height;
+        mStride = stride;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getStride() {
+        return mStride;
+    }
+
+    public byte[] getBuffer(int index) {
+        return mBuffers[index];
+    }
+
+    /* Producer: returns a buffer index to write the next frame into. If every buffer is
+       taken, the oldest frame not yet read is dropped. Returns -1 if there is none. */
+    public int acquireWrite() {
+        for (int i = 0; i < mBuffers.length; i++) {
+            if (mStates.compareAndSet(i, FREE, WRITING)) {
+                mWriteCounts[i]++;
+                return i;
+            }
+        }
+        while (true) {
+            int oldest = -1;
+            for (int i = 0; i < mBuffers.length; i++) {
+                if (mStates.get(i) == READY && (oldest < 0 || mSequences[i] < mSequences[oldest])) {
+                    oldest = i;
+                }
+            }
+            if (oldest < 0) {
+                mDropped.incrementAndGet();
+                return -1;
+            }
+            if (mStates.compareAndSet(oldest, READY, WRITING)) {
+                mDropped.incrementAndGet();
+                mWriteCounts[oldest]++;
+                return oldest;
+            }
+        }
+    }
+
+    /* Producer: hands the written buffer over along with the sensor timestamp of the frame
+       and the System.nanoTime() it was acquired at. */
+    public void publish(int index, long sensorTimestamp, long acquireTime) {
+        mSensorTimestamps[index] = sensorTimestamp;
+        mAcquireTimes[index] = acquireTime;
+        publish(index);
+    }
+
+    /* Producer: hands the written buffer over to the consumer */
+    public void publish(int index) {
+        long now = System.nanoTime();
+        if (mLastPublishTime != 0) {
+            mFrameInterval = now - mLastPublishTime;
+        }
+        mLastPublishTime = now;
+        mSequences[index] = mNextSequence++;
+        mPublishTimes[index] = now;
+        mStates.set(index, READY);
+    }
+
+    /* Producer: gives a buffer back without publishing it */
+    public void cancelWrite(int index) {
+        mStates.set(index, FREE);
+    }
+
+    /* Consumer: returns the newest ready frame, or -1 if there is none. The older ready
+       frames would only be shown late, so they are dropped. */
+    public int acquireRead() {
+        while (true) {
+            int newest = -1;
+            for (int i = 0; i < mBuffers.length; i++) {
+                if (mStates.get(i) == READY && (newest < 0 || mSequences[i] > mSequences[newest])) {
+                    newest = i;
+                }
+            }
+            if (newest < 0) {
+                return -1;
+            }
+            if (!mStates.compareAndSet(newest, READY, READING)) {
+                //The producer reclaimed it in the meantime.
+                continue;
+            }
+            for (int i = 0; i < mBuffers.length; i++) {
+                if (i != newest && mStates.get(i) == READY && mSequences[i] < mSequences[newest]
+                        && mStates.compareAndSet(i, READY, FREE)) {
+                    mDropped.incrementAndGet();
+                }
+            }
+            mReadWriteCounts[newest] = mWriteCounts[newest];
+            long interval = mFrameInterval;
+            if (interval > 0 && System.nanoTime() - mPublishTimes[newest] > interval) {
+                //The next frame was already due when this one got picked up.
+                mLate.incrementAndGet();
+            }
+            return newest;
+        }
+    }
+
+    /* Consumer: gives the buffer back once it is uploaded */
+    public void releaseRead(int index) {
+        if (mWriteCounts[index] != mReadWriteCounts[index]) {
+            mTorn.incrementAndGet();
+        }
+        mShown.incrementAndGet();
+        mStates.set(index, FREE);
+    }
+
+    /* Consumer: the times the frame in the buffer was published with */
+    public long getSensorTimestamp(int index) {
+        return mSensorTimestamps[index];
+    }
+
+    public long getAcquireTime(int index) {
+        return mAcquireTimes[index];
+    }
+
+    public long getPublishTime(int index) {
+        return mPublishTimes[index];
+    }
+
+    public int getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public int getTornCount() {
+        return mTorn.get();
+    }
+
+    public int getLateCount() {
+        return mLate.get();
+    }
+
+    @Override
+    public String toString() {
+        return "PreviewFrameRing " + mWidth + "x" + mHeight + " buffers=" + mBuffers.length
+                + " shown=" + mShown.get() + " dropped=" + mDropped.get()
+                + " late=" + mLate.get() + " torn=" + mTorn.get();
+    }
+}
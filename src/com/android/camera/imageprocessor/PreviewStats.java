@@ -0,0 +1,141 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import android.os.SystemClock;
+
+import com.android.camera.util.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/* Rolling latency statistics of the filtered preview. Times are System.nanoTime() values,
+   sensor timestamps are moved onto that clock first. */
+public class PreviewStats {
+    public enum Stage {
+        SENSOR_TO_ACQUIRE,  //Sensor timestamp until the frame is acquired from the reader
+        PROCESS,            //Acquired until the filtered frame is handed to the outing thread
+        CONVERT,            //Upload and RGBA conversion on the outing thread
+        PREVIEW_SEND,
+        VIDEO,
+        OUTPUT,             //Acquired until the preview buffer is sent
+        END_TO_END,         //Sensor timestamp until the preview buffer is sent
+        LISTENER            //Sensor timestamp until a frame listener is done with the frame
+    }
+
+    private static final int BASE_UNKNOWN = 0;
+    private static final int BASE_MONOTONIC = 1;
+    private static final int BASE_BOOTTIME = 2;
+
+    private final LatencyHistogram[] mStages = new LatencyHistogram[Stage.values().length];
+    private final LinkedHashMap<String, LatencyHistogram> mFilters =
+            new LinkedHashMap<String, LatencyHistogram>();
+    private volatile int mTimestampBase = BASE_UNKNOWN;
+
+    public PreviewStats() {
+        for (Stage stage : Stage.values()) {
+            mStages[stage.ordinal()] = new LatencyHistogram(stage.name());
+        }
+    }
+
+    /* Sensor timestamps are either CLOCK_MONOTONIC, as System.nanoTime(), or CLOCK_BOOTTIME,
+       which also counts suspend. The first one picks the clock it is closer to. */
+    public long toNanoTime(long sensorTimestamp) {
+        long now = System.nanoTime();
+        long bootOffset = SystemClock.elapsedRealtimeNanos() - now;
+        int base = mTimestampBase;
+        if (base == BASE_UNKNOWN) {
+            base = Math.abs(now - sensorTimestamp) <= Math.abs(now + bootOffset - sensorTimestamp)
+                    ? BASE_MONOTONIC : BASE_BOOTTIME;
+            mTimestampBase = base;
+        }
+        return base == BASE_BOOTTIME ? sensorTimestamp - bootOffset : sensorTimestamp;
+    }
+
+    public void record(Stage stage, long startNs, long endNs) {
+        mStages[stage.ordinal()].record((endNs - startNs) / 1000000);
+    }
+
+    public void recordSinceSensor(Stage stage, long sensorTimestamp, long endNs) {
+        if (sensorTimestamp <= 0) {
+            return;
+        }
+        record(stage, toNanoTime(sensorTimestamp), endNs);
+    }
+
+    /* Time a filter spent on one frame */
+    public void recordFilter(String name, long startNs, long endNs) {
+        LatencyHistogram histogram;
+        synchronized (mFilters) {
+            histogram = mFilters.get(name);
+            if (histogram == null) {
+                histogram = new LatencyHistogram(name);
+                mFilters.put(name, histogram);
+            }
+        }
+        histogram.record((endNs - startNs) / 1000000);
+    }
+
+    public LatencyHistogram getStage(Stage stage) {
+        return mStages[stage.ordinal()];
+    }
+
+    public List<LatencyHistogram> getFilters() {
+        synchronized (mFilters) {
+            return new ArrayList<LatencyHistogram>(mFilters.values());
+        }
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : mStages) {
+            histogram.reset();
+        }
+        synchronized (mFilters) {
+            mFilters.clear();
+        }
+    }
+
+    /* One line per histogram holding samples, the filter ones start with "filter". */
+    public List<String> dump() {
+        List<String> lines = new ArrayList<String>();
+        for (LatencyHistogram histogram : mStages) {
+            if (histogram.getCount() > 0) {
+                lines.add(histogram.toString());
+            }
+        }
+        for (LatencyHistogram histogram : getFilters()) {
+            if (histogram.getCount() > 0) {
+                lines.add("filter " + histogram);
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,457 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+/* Pure Java baseline JPEG encoder for NV21 frames. It uses the standard IJG quantization
+   tables and the standard Huffman tables with 2x2 luma sampling, the same way the platform
+   YuvImage encoder does, so its stripes can be stitched by TiledJpegEncoder as well. It does
+   not depend on the Android framework and serves as reference for tests and benchmarks. */
+public class ReferenceJpegEncoder implements TiledJpegEncoder.StripeEncoder {
+
+    private static final int[] ZIGZAG = {
+             0,  1,  8, 16,  9,  2,  3, 10,
+            17, 24, 32, 25, 18, 11,  4,  5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13,  6,  7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private static final int[] STD_LUMINANCE_QUANT = {
+            16,  11,  10,  16,  24,  40,  51,  61,
+            12,  12,  14,  19,  26,  58,  60,  55,
+            14,  13,  16,  24,  40,  57,  69,  56,
+            14,  17,  22,  29,  51,  87,  80,  62,
+            18,  22,  37,  56,  68, 109, 103,  77,
+            24,  35,  55,  64,  81, 104, 113,  92,
+            49,  64,  78,  87, 103, 121, 120, 101,
+            72,  92,  95,  98, 112, 100, 103,  99
+    };
+
+    private static final int[] STD_CHROMINANCE_QUANT = {
+            17,  18,  24,  47,  99,  99,  99,  99,
+            18,  21,  26,  66,  99,  99,  99,  99,
+            24,  26,  56,  99,  99,  99,  99,  99,
+            47,  66,  99,  99,  99,  99,  99,  99,
+            99,  99,  99,  99,  99,  99,  99,  99,
+            99,  99,  99,  99,  99,  99,  99,  99,
+            99,  99,  99,  99,  99,  99,  99,  99,
+            99,  99,  99,  99,  99,  99,  99,  99
+    };
+
+    //Number of codes of each length 1..16, index 0 is unused.
+    private static final int[] BITS_DC_LUMINANCE =
+            { 0, 0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0 };
+    private static final int[] VAL_DC_LUMINANCE =
+            { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] BITS_DC_CHROMINANCE =
+            { 0, 0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0 };
+    private static final int[] VAL_DC_CHROMINANCE =
+            { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+    private static final int[] BITS_AC_LUMINANCE =
+            { 0, 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+    private static final int[] VAL_AC_LUMINANCE = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] BITS_AC_CHROMINANCE =
+            { 0, 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+    private static final int[] VAL_AC_CHROMINANCE = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+            0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+            0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+            0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+            0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+            0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final HuffmanTable DC_LUMINANCE =
+            new HuffmanTable(BITS_DC_LUMINANCE, VAL_DC_LUMINANCE);
+    private static final HuffmanTable DC_CHROMINANCE =
+            new HuffmanTable(BITS_DC_CHROMINANCE, VAL_DC_CHROMINANCE);
+    private static final HuffmanTable AC_LUMINANCE =
+            new HuffmanTable(BITS_AC_LUMINANCE, VAL_AC_LUMINANCE);
+    private static final HuffmanTable AC_CHROMINANCE =
+            new HuffmanTable(BITS_AC_CHROMINANCE, VAL_AC_CHROMINANCE);
+
+    //DCT basis, COS[u * 8 + x] = C(u) / 2 * cos((2x + 1) * u * PI / 16)
+    private static final double[] COS = new double[64];
+
+    static {
+        for (int u = 0; u < 8; u++) {
+            double c = (u == 0) ? Math.sqrt(0.5) : 1.0;
+            for (int x = 0; x < 8; x++) {
+                COS[u * 8 + x] = c / 2 * Math.cos((2 * x + 1) * u * Math.PI / 16);
+            }
+        }
+    }
+
+    private static class HuffmanTable {
+        final int[] bits;
+        final int[] vals;
+        final int[] codes = new int[256];
+        final int[] sizes = new int[256];
+
+        HuffmanTable(int[] bits, int[] vals) {
+            this.bits = bits;
+            this.vals = vals;
+            int code = 0;
+            int k = 0;
+            for (int l = 1; l <= 16; l++) {
+                for (int i = 0; i < bits[l]; i++) {
+                    codes[vals[k]] = code;
+                    sizes[vals[k]] = l;
+                    k++;
+                    code++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    private static class BitWriter {
+        byte[] buf;
+        int length = 0;
+        private int mAcc = 0;
+        private int mNumBits = 0;
+
+        BitWriter(int capacity) {
+            buf = new byte[Math.max(capacity, 1024)];
+        }
+
+        void writeByte(int b) {
+            if (length == buf.length) {
+                byte[] larger = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, larger, 0, length);
+                buf = larger;
+            }
+            buf[length++] = (byte) b;
+        }
+
+        void writeShort(int s) {
+            writeByte((s >> 8) & 0xFF);
+            writeByte(s & 0xFF);
+        }
+
+        void writeBits(int value, int size) {
+            if (size == 0) {
+                return;
+            }
+            mAcc = (mAcc << size) | (value & ((1 << size) - 1));
+            mNumBits += size;
+            while (mNumBits >= 8) {
+                int b = (mAcc >> (mNumBits - 8)) & 0xFF;
+                writeByte(b);
+                if (b == 0xFF) {
+                    writeByte(0); //Byte stuffing
+                }
+                mNumBits -= 8;
+            }
+            mAcc &= (1 << mNumBits) - 1;
+        }
+
+        //Pads the last byte with 1 bits.
+        void flushBits() {
+            if (mNumBits > 0) {
+                int pad = 8 - mNumBits;
+                writeBits((1 << pad) - 1, pad);
+            }
+        }
+    }
+
+    @Override
+    public byte[] encode(byte[] nv21, int width, int height, int strideY, int strideVU,
+                         int left, int top, int right, int bottom, int quality) {
+        return encode(nv21, width, height, strideY, strideVU, left, top, right, bottom,
+                quality, 0);
+    }
+
+    /* With a restart interval of n MCUs, the output of a frame TiledJpegEncoder splits into
+       stripes of n MCUs each is the same as the stitched one. */
+    public byte[] encode(byte[] nv21, int width, int height, int strideY, int strideVU,
+                         int left, int top, int right, int bottom, int quality,
+                         int restartInterval) {
+        //Same alignment YuvImage applies to NV21 rectangles
+        int w = (right - left) & ~1;
+        int h = (bottom - top) & ~1;
+        left &= ~1;
+        top &= ~1;
+        if (w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("Invalid rectangle " + left + "," + top
+                    + "," + right + "," + bottom);
+        }
+        int[] lumaQuant = scaleQuantTable(STD_LUMINANCE_QUANT, quality);
+        int[] chromaQuant = scaleQuantTable(STD_CHROMINANCE_QUANT, quality);
+        BitWriter out = new BitWriter(w * h / 4);
+        writeHeaders(out, w, h, lumaQuant, chromaQuant, restartInterval);
+
+        int vuOffset = height * strideY;
+        int[] lastDc = new int[3];
+        double[] block = new double[64];
+        double[] tmp = new double[64];
+        int[] coefs = new int[64];
+        int mcuCols = (w + 15) / 16;
+        int mcuRows = (h + 15) / 16;
+        int mcus = 0;
+        for (int my = 0; my < mcuRows; my++) {
+            for (int mx = 0; mx < mcuCols; mx++) {
+                if (restartInterval > 0 && mcus > 0 && mcus % restartInterval == 0) {
+                    out.flushBits();
+                    out.writeShort(0xFFD0 + (mcus / restartInterval - 1) % 8);
+                    lastDc[0] = 0;
+                    lastDc[1] = 0;
+                    lastDc[2] = 0;
+                }
+                mcus++;
+                for (int b = 0; b < 4; b++) {
+                    int bx = mx * 16 + (b & 1) * 8;
+                    int by = my * 16 + (b >> 1) * 8;
+                    for (int y = 0; y < 8; y++) {
+                        int row = top + Math.min(by + y, h - 1);
+                        for (int x = 0; x < 8; x++) {
+                            int col = left + Math.min(bx + x, w - 1);
+                            block[y * 8 + x] = (nv21[row * strideY + col] & 0xFF) - 128;
+                        }
+                    }
+                    lastDc[0] = encodeBlock(out, block, tmp, coefs, lumaQuant, lastDc[0],
+                            DC_LUMINANCE, AC_LUMINANCE);
+                }
+                //Cb is the second byte of a VU pair, Cr the first one.
+                for (int c = 1; c <= 2; c++) {
+                    for (int y = 0; y < 8; y++) {
+                        int row = (top + Math.min(my * 16 + y * 2, h - 1)) / 2;
+                        for (int x = 0; x < 8; x++) {
+                            int col = (left + Math.min(mx * 16 + x * 2, w - 1)) / 2 * 2;
+                            int index = vuOffset + row * strideVU + col + (c == 1 ? 1 : 0);
+                            block[y * 8 + x] = (nv21[index] & 0xFF) - 128;
+                        }
+                    }
+                    lastDc[c] = encodeBlock(out, block, tmp, coefs, chromaQuant, lastDc[c],
+                            DC_CHROMINANCE, AC_CHROMINANCE);
+                }
+            }
+        }
+        out.flushBits();
+        out.writeShort(0xFFD9);
+
+        byte[] jpeg = new byte[out.length];
+        System.arraycopy(out.buf, 0, jpeg, 0, out.length);
+        return jpeg;
+    }
+
+    /* Same scaling as jpeg_set_quality() with force_baseline */
+    private static int[] scaleQuantTable(int[] base, int quality) {
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = (quality < 50) ? 5000 / quality : 200 - quality * 2;
+        int[] table = new int[64];
+        for (int i = 0; i < 64; i++) {
+            int q = (base[i] * scale + 50) / 100;
+            table[i] = Math.max(1, Math.min(255, q));
+        }
+        return table;
+    }
+
+    private static void writeHeaders(BitWriter out, int w, int h, int[] lumaQuant,
+                                     int[] chromaQuant, int restartInterval) {
+        out.writeShort(0xFFD8);
+        //JFIF APP0
+        out.writeShort(0xFFE0);
+        out.writeShort(16);
+        out.writeByte('J');
+        out.writeByte('F');
+        out.writeByte('I');
+        out.writeByte('F');
+        out.writeByte(0);
+        out.writeShort(0x0101);
+        out.writeByte(0);
+        out.writeShort(1);
+        out.writeShort(1);
+        out.writeShort(0);
+
+        writeQuantTable(out, 0, lumaQuant);
+        writeQuantTable(out, 1, chromaQuant);
+
+        out.writeShort(0xFFC0);
+        out.writeShort(17);
+        out.writeByte(8);
+        out.writeShort(h);
+        out.writeShort(w);
+        out.writeByte(3);
+        out.writeByte(1);
+        out.writeByte(0x22);
+        out.writeByte(0);
+        out.writeByte(2);
+        out.writeByte(0x11);
+        out.writeByte(1);
+        out.writeByte(3);
+        out.writeByte(0x11);
+        out.writeByte(1);
+
+        writeHuffmanTable(out, 0x00, DC_LUMINANCE);
+        writeHuffmanTable(out, 0x10, AC_LUMINANCE);
+        writeHuffmanTable(out, 0x01, DC_CHROMINANCE);
+        writeHuffmanTable(out, 0x11, AC_CHROMINANCE);
+
+        if (restartInterval > 0) {
+            out.writeShort(0xFFDD);
+            out.writeShort(4);
+            out.writeShort(restartInterval);
+        }
+
+        out.writeShort(0xFFDA);
+        out.writeShort(12);
+        out.writeByte(3);
+        out.writeByte(1);
+        out.writeByte(0x00);
+        out.writeByte(2);
+        out.writeByte(0x11);
+        out.writeByte(3);
+        out.writeByte(0x11);
+        out.writeByte(0);
+        out.writeByte(63);
+        out.writeByte(0);
+    }
+
+    private static void writeQuantTable(BitWriter out, int id, int[] table) {
+        out.writeShort(0xFFDB);
+        out.writeShort(67);
+        out.writeByte(id);
+        for (int i = 0; i < 64; i++) {
+            out.writeByte(table[ZIGZAG[i]]);
+        }
+    }
+
+    private static void writeHuffmanTable(BitWriter out, int classAndId, HuffmanTable table) {
+        out.writeShort(0xFFC4);
+        out.writeShort(3 + 16 + table.vals.length);
+        out.writeByte(classAndId);
+        for (int l = 1; l <= 16; l++) {
+            out.writeByte(table.bits[l]);
+        }
+        for (int v : table.vals) {
+            out.writeByte(v);
+        }
+    }
+
+    /* Transforms, quantizes and entropy codes one 8x8 block, returns its DC value. */
+    private static int encodeBlock(BitWriter out, double[] block, double[] tmp, int[] coefs,
+                                   int[] quant, int lastDc, HuffmanTable dcTable,
+                                   HuffmanTable acTable) {
+        for (int y = 0; y < 8; y++) {
+            for (int u = 0; u < 8; u++) {
+                double sum = 0;
+                for (int x = 0; x < 8; x++) {
+                    sum += COS[u * 8 + x] * block[y * 8 + x];
+                }
+                tmp[y * 8 + u] = sum;
+            }
+        }
+        for (int v = 0; v < 8; v++) {
+            for (int u = 0; u < 8; u++) {
+                double sum = 0;
+                for (int y = 0; y < 8; y++) {
+                    sum += COS[v * 8 + y] * tmp[y * 8 + u];
+                }
+                int q = quant[v * 8 + u];
+                int value = (int) (Math.abs(sum) / q + 0.5);
+                coefs[v * 8 + u] = (sum < 0) ? -value : value;
+            }
+        }
+
+        int dc = coefs[0];
+        writeValue(out, dcTable, 0, dc - lastDc);
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = coefs[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                out.writeBits(acTable.codes[0xF0], acTable.sizes[0xF0]);
+                run -= 16;
+            }
+            writeValue(out, acTable, run, value);
+            run = 0;
+        }
+        if (run > 0) {
+            out.writeBits(acTable.codes[0x00], acTable.sizes[0x00]);
+        }
+        return dc;
+    }
+
+    private static void writeValue(BitWriter out, HuffmanTable table, int run, int value) {
+        int magnitude = value < 0 ? -value : value;
+        int bits = value < 0 ? value - 1 : value;
+        int size = 0;
+        while (magnitude != 0) {
+            size++;
+            magnitude >>= 1;
+        }
+        int symbol = (run << 4) | size;
+        out.writeBits(table.codes[symbol], table.sizes[symbol]);
+        out.writeBits(bits, size);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.android.camera.imageprocessor;
+
+import android.renderscript.Allocation;
+import android.renderscript.Element;
+import android.renderscript.RenderScript;
+import android.renderscript.Type;
+
+/* RenderScript backend, nv21RotateToRgb reads the NV21 frame and writes the rotated RGBA
+   output in one pass. */
+public class RsPreviewConverter implements PreviewConverter {
+    private final RenderScript mRs;
+    private ScriptC_rotateToRgb mRsRotateToRgb;
+    private Allocation mInputAllocation;
+
+    public RsPreviewConverter(RenderScript rs) {
+        mRs = rs;
+        mRsRotateToRgb = new ScriptC_rotateToRgb(mRs);
+    }
+
+    @Override
+    public void configure(int width, int height, int stride, boolean flip) {
+        destroyAllocations();
+        //Plain bytes, the kernel does its own NV21 addressing.
+        Type.Builder nv21TypeBuilder = new Type.Builder(mRs, Element.U8(mRs));
+        nv21TypeBuilder.setX(stride * height * 3 / 2);
+        mInputAllocation = Allocation.createTyped(mRs, nv21TypeBuilder.create(), Allocation.USAGE_SCRIPT);
+        mRsRotateToRgb.set_gIn(mInputAllocation);
+        mRsRotateToRgb.set_width(width);
+        mRsRotateToRgb.set_height(height);
+        mRsRotateToRgb.set_stride(stride);
+        mRsRotateToRgb.set_gFlip(flip);
+    }
+
+    @Override
+    public void convert(byte[] nv21, Allocation output) {
+        mInputAllocation.copyFrom(nv21);
+        mRsRotateToRgb.forEach_nv21RotateToRgb(output);
+    }
+
+    /* Runs the kernel again from the uploaded frame, cheaper than copying the RGBA output. */
+    @Override
+    public void renderTo(Allocation output) {
+        mRsRotateToRgb.forEach_nv21RotateToRgb(output);
+    }
+
+    private void destroyAllocations() {
+        if (mInputAllocation != null) {
+            mInputAllocation.destroy();
+            mInputAllocation = null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        destroyAllocations();
+        if (mRsRotateToRgb != null) {
+            mRsRotateToRgb.destroy();
+            mRsRotateToRgb = null;
+        }
+    }
+}
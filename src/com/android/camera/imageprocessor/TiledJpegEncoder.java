@@ -0,0 +1,188 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Encodes NV21 frames to JPEG on a bounded pool of worker threads. The frame is split into
+   horizontal stripes of whole MCU rows, the stripes are encoded in parallel and joined by
+   JpegStitcher into one baseline JPEG with restart markers between the stripes. Small frames,
+   or stripes that can't be joined, fall back to a single pass of the stripe encoder.
+   An APP1 segment passed along is written straight into the output, see
+   ExifInterface.getExifSegment(). */
+public class TiledJpegEncoder {
+    /* Encodes a rectangle of an NV21 frame into a standalone baseline JPEG. The VU plane
+       starts at height * strideY and the returned array holds exactly the JPEG bytes. */
+    public interface StripeEncoder {
+        byte[] encode(byte[] nv21, int width, int height, int strideY, int strideVU,
+                      int left, int top, int right, int bottom, int quality);
+    }
+
+    private static final int MAX_WORKERS = 4;
+    private static final int STRIPES_PER_WORKER = 2;
+    private static final int MCU_SIZE = 16;
+    private static final int MIN_STRIPE_MCU_ROWS = 4;
+    private static final int QUEUE_SIZE_PER_WORKER = 8;
+
+    private static TiledJpegEncoder sInstance;
+
+    private final StripeEncoder mStripeEncoder;
+    private final ThreadPoolExecutor mExecutor;
+    private final int mNumWorkers;
+
+    public static synchronized TiledJpegEncoder getInstance() {
+        if (sInstance == null) {
+            int workers = Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors());
+            sInstance = new TiledJpegEncoder(new YuvImageStripeEncoder(), workers);
+        }
+        return sInstance;
+    }
+
+    public TiledJpegEncoder(StripeEncoder stripeEncoder, int numWorkers) {
+        mStripeEncoder = stripeEncoder;
+        mNumWorkers = Math.max(1, numWorkers);
+        final AtomicInteger count = new AtomicInteger();
+        //The queue is bounded, when it is full the calling thread encodes the stripe itself.
+        mExecutor = new ThreadPoolExecutor(mNumWorkers, mNumWorkers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(mNumWorkers * QUEUE_SIZE_PER_WORKER),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "JpegEncoder-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    public byte[] encode(byte[] nv21, int width, int height, int strideY, int strideVU,
+                         int left, int top, int right, int bottom, int quality) {
+        return encode(nv21, width, height, strideY, strideVU, left, top, right, bottom,
+                quality, null);
+    }
+
+    public byte[] encode(final byte[] nv21, final int width, final int height,
+                         final int strideY, final int strideVU,
+                         int left, int top, int right, int bottom, final int quality,
+                         byte[] app1) {
+        //Same alignment YuvImage applies to NV21 rectangles
+        final int l = left & ~1;
+        final int t = top & ~1;
+        final int w = (right - left) & ~1;
+        final int h = (bottom - top) & ~1;
+        if (w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("Invalid rectangle " + left + "," + top
+                    + "," + right + "," + bottom);
+        }
+
+        int stripeHeight = getStripeHeight(w, h);
+        if (stripeHeight >= h) {
+            return encodeSinglePass(nv21, width, height, strideY, strideVU,
+                    l, t, l + w, t + h, quality, app1);
+        }
+
+        int numStripes = (h + stripeHeight - 1) / stripeHeight;
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(numStripes);
+        for (int i = 0; i < numStripes; i++) {
+            final int stripeTop = t + i * stripeHeight;
+            final int stripeBottom = Math.min(t + h, stripeTop + stripeHeight);
+            futures.add(mExecutor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return mStripeEncoder.encode(nv21, width, height, strideY, strideVU,
+                            l, stripeTop, l + w, stripeBottom, quality);
+                }
+            }));
+        }
+
+        byte[][] stripes = new byte[numStripes][];
+        boolean interrupted = false;
+        try {
+            for (int i = 0; i < numStripes; i++) {
+                stripes[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            stripes = null;
+        } catch (ExecutionException e) {
+            stripes = null;
+        }
+        if (stripes == null) {
+            for (Future<byte[]> future : futures) {
+                future.cancel(false);
+            }
+        }
+
+        byte[] jpeg = (stripes == null) ? null : JpegStitcher.stitch(stripes, h, app1);
+        if (jpeg == null) {
+            jpeg = encodeSinglePass(nv21, width, height, strideY, strideVU,
+                    l, t, l + w, t + h, quality, app1);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return jpeg;
+    }
+
+    private byte[] encodeSinglePass(byte[] nv21, int width, int height, int strideY,
+                                    int strideVU, int left, int top, int right, int bottom,
+                                    int quality, byte[] app1) {
+        byte[] jpeg = mStripeEncoder.encode(nv21, width, height, strideY, strideVU,
+                left, top, right, bottom, quality);
+        return (app1 == null) ? jpeg : JpegStitcher.insertSegment(jpeg, app1);
+    }
+
+    /* Stripes are whole MCU rows, a few per worker, and one restart interval can't exceed
+       0xFFFF MCUs. Returns the full height if the frame is too small to split. */
+    private int getStripeHeight(int w, int h) {
+        int mcusPerRow = (w + MCU_SIZE - 1) / MCU_SIZE;
+        int mcuRows = (h + MCU_SIZE - 1) / MCU_SIZE;
+        int stripes = mNumWorkers * STRIPES_PER_WORKER;
+        int rowsPerStripe = Math.max(MIN_STRIPE_MCU_ROWS, (mcuRows + stripes - 1) / stripes);
+        rowsPerStripe = Math.min(rowsPerStripe, 0xFFFF / mcusPerRow);
+        if (mNumWorkers == 1 || rowsPerStripe < 1 || rowsPerStripe >= mcuRows) {
+            return h;
+        }
+        return rowsPerStripe * MCU_SIZE;
+    }
+
+    public int getNumWorkers() {
+        return mNumWorkers;
+    }
+}
@@ -38,7 +38,10 @@ import android.util.Log;
 import android.util.Size;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.AdaptiveQualityPolicy;
+import com.android.camera.imageprocessor.ImageFilterRegistry;
 import com.android.camera.ui.FilmstripBottomControls;
+import com.android.camera.util.PersistUtil;
 
 import java.nio.ByteBuffer;
 import java.util.List;
@@ -52,7 +55,10 @@ public class BeautificationFilter implements ImageFilter {
     private CaptureModule mModule;
     private static boolean DEBUG = false;
     private static String TAG = "BeautificationFilter";
-    private static boolean mIsSupported = false;
+    //Preview frames step down in resolution or rate when they run over budget.
+    private final AdaptiveQualityPolicy mPolicy =
+            new AdaptiveQualityPolicy(PersistUtil.getBeautificationBudgetMs() * 1000000L);
+    private ScaledFramePass mPass;
 
     public BeautificationFilter(CaptureModule module) {
         mModule = module;
@@ -83,11 +89,14 @@ public class BeautificationFilter implements ImageFilter {
 
     @Override
     public void deinit() {
-
+        if (DEBUG) {
+            Log.d(TAG, "Preview quality " + mPolicy);
+        }
+        mPass = null;
     }
 
     @Override
-    public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object isPreview) {
+    public void addImage(YuvFrame frame, int imageNum, Object isPreview) {
         Rect back = mModule.getCameraRegion();
         Face[] faces;
         if(((Boolean)isPreview).booleanValue()) {
@@ -100,9 +109,15 @@ public class BeautificationFilter implements ImageFilter {
         if(faces == null || faces.length == 0)
             return;
         Rect rect = faces[0].getBounds();
-        int value = nativeBeautificationProcess(bY, bVU, mWidth, mHeight, mStrideY,
-                (int)(rect.left*widthRatio), (int)(rect.top*heightRatio),
+        Rect face = new Rect((int)(rect.left*widthRatio), (int)(rect.top*heightRatio),
                 (int)(rect.right*widthRatio), (int)(rect.bottom*heightRatio));
+        int value;
+        if(!((Boolean)isPreview).booleanValue()) {
+            value = nativeBeautificationProcess(frame.getYBuffer(), frame.getVUBuffer(), mWidth, mHeight, mStrideY,
+                    face.left, face.top, face.right, face.bottom);
+        } else {
+            value = processPreview(frame, face);
+        }
         if(DEBUG && value < 0) {
             if(value == -1) {
                 Log.d(TAG, "library initialization is failed.");
@@ -112,6 +127,39 @@ public class BeautificationFilter implements ImageFilter {
         }
     }
 
+    private int processPreview(YuvFrame frame, Rect face) {
+        AdaptiveQualityPolicy.Level level = mPolicy.getLevel();
+        if (!mPolicy.shouldProcess()) {
+            //Skipped frames get the change of the last processed one.
+            if (mPass != null && level.scale == mPass.getScale()) {
+                mPass.apply(frame, face, mWidth, mHeight, mStrideY, mStrideVU);
+            }
+            return 0;
+        }
+        long start = System.nanoTime();
+        int value;
+        if (level.scale == 1) {
+            value = nativeBeautificationProcess(frame.getYBuffer(), frame.getVUBuffer(), mWidth, mHeight, mStrideY,
+                    face.left, face.top, face.right, face.bottom);
+        } else {
+            if (mPass == null || mPass.getScale() != level.scale) {
+                mPass = new ScaledFramePass(level.scale);
+            }
+            int s = level.scale;
+            mPass.prepare(frame, mWidth, mHeight, mStrideY, mStrideVU);
+            Rect scaled = new Rect(face.left / s, face.top / s, face.right / s, face.bottom / s);
+            value = nativeBeautificationProcess(mPass.getYBuffer(), mPass.getVUBuffer(),
+                    mPass.getWidth(), mPass.getHeight(), mPass.getWidth(),
+                    scaled.left, scaled.top, scaled.right, scaled.bottom);
+            if (value >= 0) {
+                mPass.commit(scaled);
+                mPass.apply(frame, face, mWidth, mHeight, mStrideY, mStrideVU);
+            }
+        }
+        mPolicy.onProcessed(System.nanoTime() - start);
+        return value;
+    }
+
     @Override
     public ResultImage processImage() {
         return null;
@@ -119,11 +167,11 @@ public class BeautificationFilter implements ImageFilter {
 
     @Override
     public boolean isSupported() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(BeautificationFilter.class);
     }
 
     public static boolean isSupportedStatic() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(BeautificationFilter.class);
     }
 
     @Override
@@ -144,13 +192,4 @@ public class BeautificationFilter implements ImageFilter {
 
     private native int nativeBeautificationProcess(ByteBuffer yB, ByteBuffer vuB,
                         int width, int height, int stride, int fleft, int ftop, int fright, int fbottom);
-
-    static {
-        try {
-            System.loadLibrary("jni_makeup");
-            mIsSupported = true;
-        }catch(UnsatisfiedLinkError e) {
-            mIsSupported = false;
-        }
-    }
 }
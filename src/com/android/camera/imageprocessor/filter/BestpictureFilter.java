@@ -29,9 +29,7 @@ IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 package com.android.camera.imageprocessor.filter;
 
 import android.content.Intent;
-import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -47,17 +45,19 @@ import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
 import com.android.camera.MediaSaveService;
 import com.android.camera.PhotoModule;
+import com.android.camera.imageprocessor.FrameDumpService;
+import com.android.camera.imageprocessor.ImageBufferPool;
+import com.android.camera.imageprocessor.ImageFilterRegistry;
 import com.android.camera.imageprocessor.PostProcessor;
+import com.android.camera.imageprocessor.TiledJpegEncoder;
 import com.android.camera.util.CameraUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
-public class BestpictureFilter implements ImageFilter {
+public class BestpictureFilter implements BatchImageFilter {
     public static final int NUM_REQUIRED_IMAGE = 10;
     private int mWidth;
     private int mHeight;
@@ -65,7 +65,6 @@ public class BestpictureFilter implements ImageFilter {
     private int mStrideVU;
     private static String TAG = "BestpictureFilter";
     private static final boolean DEBUG = false;
-    private static boolean mIsSupported = true;
     private CaptureModule mModule;
     private CameraActivity mActivity;
     private int mOrientation = 0;
@@ -74,10 +73,16 @@ public class BestpictureFilter implements ImageFilter {
             ,"09.jpg"};
 
     private final static int TIME_DELAY = 50;
-    private int mSavedCount = 0;
+    private volatile int mSavedCount = 0;  //Only the dump thread counts it up
     private PhotoModule.NamedImages mNamedImages;
-    private ByteBuffer mBY;
-    private ByteBuffer mBVU;
+
+    private final FrameDumpService.Callback mSavedCallback = new FrameDumpService.Callback() {
+        @Override
+        public void onDumped(File file, boolean success) {
+            mSavedCount++;
+        }
+    };
+    private YuvFrame mFirstFrame;
 
     private static void Log(String msg) {
         if (DEBUG) {
@@ -123,23 +128,38 @@ public class BestpictureFilter implements ImageFilter {
     @Override
     public void deinit() {
         Log("deinit");
+        if (mFirstFrame != null) {
+            mFirstFrame.release();
+            mFirstFrame = null;
+        }
     }
 
     @Override
-    public void addImage(final ByteBuffer bY, final ByteBuffer bVU, final int imageNum, Object param) {
+    public void addImage(final YuvFrame frame, final int imageNum, Object param) {
         Log("addImage");
         if(imageNum == 0) {
             mOrientation = CameraUtil.getJpegRotation(mModule.getMainCameraId(), mModule.getDisplayOrientation());
             mSavedCount = 0;
-            mBY = bY;
-            mBVU = bVU;
-        }
-        new Thread() {
-            public void run() {
-                saveToPrivateFile(imageNum, nv21ToJpeg(bY, bVU, new Rect(0, 0, mWidth, mHeight), mOrientation));
-                mSavedCount++;
+            if (mFirstFrame != null) {
+                mFirstFrame.release();
             }
-        }.start();
+            mFirstFrame = frame.retain();
+        }
+        saveToPrivateFile(imageNum, frame);
+    }
+
+    @Override
+    public void addImages(final FrameBatch batch) {
+        Log("addImages " + batch.size());
+        mOrientation = batch.getOrientation();
+        mSavedCount = 0;
+        if (mFirstFrame != null) {
+            mFirstFrame.release();
+        }
+        mFirstFrame = batch.get(0).retain();
+        for (int i = 0; i < batch.size(); i++) {
+            saveToPrivateFile(i, batch.get(i));
+        }
     }
 
     @Override
@@ -149,8 +169,12 @@ public class BestpictureFilter implements ImageFilter {
         PhotoModule.NamedImages.NamedEntity name = mNamedImages.getNextNameEntity();
         String title = (name == null) ? null : name.title;
         long date = (name == null) ? -1 : name.date;
+        byte[] jpeg = nv21ToJpeg(mFirstFrame, new Rect(0, 0, mWidth, mHeight), mOrientation);
+        //Hands the image back to the capture reader, the next burst needs all of them.
+        mFirstFrame.release();
+        mFirstFrame = null;
         mActivity.getMediaSaveService().addImage(
-                nv21ToJpeg(mBY, mBVU, new Rect(0, 0, mWidth, mHeight), mOrientation), title, date, null, mWidth, mHeight,
+                jpeg, title, date, null, mWidth, mHeight,
                         mOrientation, null, new MediaSaveService.OnMediaSavedListener() {
                     @Override
                     public void onMediaSaved(Uri uri) {
@@ -179,7 +203,7 @@ public class BestpictureFilter implements ImageFilter {
 
     @Override
     public boolean isSupported() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(BestpictureFilter.class);
     }
 
     @Override
@@ -205,48 +229,24 @@ public class BestpictureFilter implements ImageFilter {
     }
 
     public static boolean isSupportedStatic() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(BestpictureFilter.class);
     }
 
-    private byte[] nv21ToJpeg(ByteBuffer bY, ByteBuffer bVU, Rect roi, int orientation) {
-        ByteBuffer buf =  ByteBuffer.allocate(mStrideY*mHeight*3/2);
-        buf.put(bY);
-        bY.rewind();
-        if(bVU != null) {
-            buf.put(bVU);
-            bVU.rewind();
-        }
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(buf.array(), ImageFormat.NV21,
-                mWidth, mHeight, new int[]{mStrideY, mStrideVU});
-        im.compressToJpeg(roi, 50, bos);
-        byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation);
+    private byte[] nv21ToJpeg(YuvFrame frame, Rect roi, int orientation) {
+        int stride = frame.getYStride();
+        ByteBuffer buf = ImageBufferPool.getInstance().acquire(stride*mHeight*3/2);
+        frame.copyToNv21(buf.array());
+        byte[] bytes = TiledJpegEncoder.getInstance().encode(buf.array(), mWidth, mHeight,
+                stride, stride, roi.left, roi.top, roi.right, roi.bottom, 50,
+                PostProcessor.getExifSegment(orientation));
+        ImageBufferPool.getInstance().release(buf);
         return bytes;
     }
 
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
-    }
-
-    private void saveToPrivateFile(final int index, final byte[] bytes) {
-        String filesPath = mActivity.getFilesDir()+"/Bestpicture";
-        File file = new File(filesPath);
-        if(!file.exists()) {
-            file.mkdir();
-        }
-        file = new File(filesPath+"/"+NAMES[index]);
-        try {
-            FileOutputStream out = new FileOutputStream(file);
-            out.write(bytes, 0, bytes.length);
-            out.close();
-        } catch (Exception e) {
-        }
+    /* The Bestpicture activity reads these back, so they are never dropped. */
+    private void saveToPrivateFile(int index, YuvFrame frame) {
+        File file = new File(mActivity.getFilesDir()+"/Bestpicture", NAMES[index]);
+        FrameDumpService.getInstance().dump(file, frame, FrameDumpService.Format.JPEG, 50,
+                false, mSavedCallback);
     }
 }
@@ -0,0 +1,66 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor.filter;
+
+/* The frames of one burst capture, in capture order. */
+public class FrameBatch {
+    private final YuvFrame[] mFrames;
+    private final int mOrientation;
+
+    public FrameBatch(YuvFrame[] frames, int orientation) {
+        mFrames = frames;
+        mOrientation = orientation;
+    }
+
+    public int size() {
+        return mFrames.length;
+    }
+
+    public YuvFrame get(int index) {
+        return mFrames[index];
+    }
+
+    /* JPEG orientation of the capture in degrees */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    public FrameBatch retain() {
+        for (YuvFrame frame : mFrames) {
+            frame.retain();
+        }
+        return this;
+    }
+
+    public void release() {
+        for (YuvFrame frame : mFrames) {
+            frame.release();
+        }
+    }
+}
@@ -34,6 +34,8 @@ import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CaptureRequest;
 import android.os.Handler;
 
+import com.android.camera.imageprocessor.ImageBufferPool;
+
 import java.nio.ByteBuffer;
 import java.util.List;
 
@@ -52,8 +54,8 @@ public interface ImageFilter {
     /* Free all buffer */
     void deinit();
 
-    /* Adding the image to process */
-    void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object param);
+    /* Adding the image to process. Retain the frame to use its planes after returning. */
+    void addImage(YuvFrame frame, int imageNum, Object param);
 
     /* Processing all the added images and return roi*/
     ResultImage processImage();
@@ -74,6 +76,16 @@ public interface ImageFilter {
             this.height = height;
             this.stride = stride;
         }
+
+        /* Adds a holder of outBuffer if it comes from the ImageBufferPool */
+        public void retain() {
+            ImageBufferPool.getInstance().retain(outBuffer);
+        }
+
+        /* Gives outBuffer back to the ImageBufferPool once it is saved */
+        public void release() {
+            ImageBufferPool.getInstance().release(outBuffer);
+        }
     }
 
     /* Whether it is post proc filter or frame proc filter */
@@ -35,6 +35,8 @@ import android.os.Handler;
 import android.util.Log;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.ImageBufferPool;
+import com.android.camera.imageprocessor.ImageFilterRegistry;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -49,8 +51,7 @@ public class OptizoomFilter implements ImageFilter{
     private static String TAG = "OptizoomFilter";
     private static final boolean DEBUG = false;
     private int temp;
-    private static boolean mIsSupported = true;
-    private ByteBuffer mOutBuf;
+    private int mOutBufSize;
     private CaptureModule mModule;
 
     private static void Log(String msg) {
@@ -89,7 +90,7 @@ public class OptizoomFilter implements ImageFilter{
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY*mHeight*6);  // YUV Buffer to hold (mWidth*2) X (mHeight*2)
+        mOutBufSize = mStrideY*mHeight*6;  // YUV Buffer to hold (mWidth*2) X (mHeight*2)
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU,
                 0, 0, mWidth, mHeight, NUM_REQUIRED_IMAGE);
@@ -98,13 +99,14 @@ public class OptizoomFilter implements ImageFilter{
     @Override
     public void deinit() {
         Log("deinit");
-        mOutBuf = null;
         nativeDeinit();
     }
 
     @Override
-    public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object param) {
+    public void addImage(YuvFrame frame, int imageNum, Object param) {
         Log("addImage");
+        ByteBuffer bY = frame.getYBuffer();
+        ByteBuffer bVU = frame.getVUBuffer();
         int yActualSize = bY.remaining();
         int vuActualSize = bVU.remaining();
         nativeAddImage(bY, bVU, yActualSize, vuActualSize, imageNum);
@@ -114,19 +116,20 @@ public class OptizoomFilter implements ImageFilter{
     public ResultImage processImage() {
         Log("processImage " + mModule.getZoomValue());
         int[] roi = new int[4];
-        int status = nativeProcessImage(mOutBuf.array(), mModule.getZoomValue(), roi);
+        ByteBuffer outBuf = ImageBufferPool.getInstance().acquire(mOutBufSize);
+        int status = nativeProcessImage(outBuf.array(), mModule.getZoomValue(), roi);
         Log("processImage done");
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the optizoom. It only processes when zoomValue >= 1.5f");
-            return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+            return new ResultImage(outBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
         } else { //In success case, it will return twice bigger width and height.
-            return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth*2, mHeight*2, mStrideY*2);
+            return new ResultImage(outBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth*2, mHeight*2, mStrideY*2);
         }
     }
 
     @Override
     public boolean isSupported() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(OptizoomFilter.class);
     }
 
     @Override
@@ -145,7 +148,7 @@ public class OptizoomFilter implements ImageFilter{
     }
 
     public static boolean isSupportedStatic() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(OptizoomFilter.class);
     }
 
     private native int nativeInit(int width, int height, int yStride, int vuStride,
@@ -153,13 +156,4 @@ public class OptizoomFilter implements ImageFilter{
     private native int nativeDeinit();
     private native int nativeAddImage(ByteBuffer yB, ByteBuffer vuB, int ySize, int vuSize, int imageNum);
     private native int nativeProcessImage(byte[] buffer, float zoomLvl, int[] roi);
-
-    static {
-        try {
-            System.loadLibrary("jni_optizoom");
-            mIsSupported = true;
-        }catch(UnsatisfiedLinkError e) {
-            mIsSupported = false;
-        }
-    }
 }
@@ -0,0 +1,200 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor.filter;
+
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+
+/* Runs an in-place NV21 effect on a copy of the frame scaled down by an integer factor and
+ * adds the change it made back to a region of the full frame. The change is kept, so it can
+ * be applied again on frames the effect skips, moved along with the region. */
+public class ScaledFramePass {
+    private final int mScale;
+    private int mWidth;
+    private int mHeight;
+    private ByteBuffer mY;
+    private ByteBuffer mVU;
+    private byte[] mOrigY;
+    private byte[] mOrigVU;
+    private byte[] mProcY;
+    private byte[] mProcVU;
+    private byte[] mRow;
+    private int[] mSums;
+    private Rect mRect;
+
+    public ScaledFramePass(int scale) {
+        mScale = scale;
+    }
+
+    public int getScale() {
+        return mScale;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /* Packed, the stride is the width */
+    public ByteBuffer getYBuffer() {
+        return mY;
+    }
+
+    public ByteBuffer getVUBuffer() {
+        return mVU;
+    }
+
+    public boolean hasResult() {
+        return mRect != null;
+    }
+
+    /* Scales the frame down into the direct buffers the effect runs on. */
+    public void prepare(YuvFrame frame, int width, int height, int strideY, int strideVU) {
+        int w = (width / mScale) & ~1;
+        int h = (height / mScale) & ~1;
+        if (w != mWidth || h != mHeight || mRow == null || mRow.length < width) {
+            mWidth = w;
+            mHeight = h;
+            mY = ByteBuffer.allocateDirect(w * h);
+            mVU = ByteBuffer.allocateDirect(w * h / 2);
+            mOrigY = new byte[w * h];
+            mOrigVU = new byte[w * h / 2];
+            mProcY = new byte[w * h];
+            mProcVU = new byte[w * h / 2];
+            mRow = new byte[width];
+            mSums = new int[w];
+            mRect = null;
+        }
+        //Luma is averaged over scale x scale pixels, chroma over scale x scale VU pairs.
+        downscale(frame.getYBuffer().duplicate(), strideY, 1, mOrigY, w, h);
+        downscale(frame.getVUBuffer().duplicate(), strideVU, 2, mOrigVU, w / 2, h / 2);
+        mY.clear();
+        mY.put(mOrigY);
+        mY.rewind();
+        mVU.clear();
+        mVU.put(mOrigVU);
+        mVU.rewind();
+    }
+
+    private void downscale(ByteBuffer src, int stride, int channels, byte[] dst, int w, int h) {
+        int s = mScale;
+        int rowBytes = w * s * channels;
+        int[] sums = mSums;
+        for (int y = 0; y < h; y++) {
+            for (int i = 0; i < w * channels; i++) {
+                sums[i] = 0;
+            }
+            for (int k = 0; k < s; k++) {
+                src.position((y * s + k) * stride);
+                src.get(mRow, 0, Math.min(rowBytes, src.remaining()));
+                for (int x = 0; x < w; x++) {
+                    for (int c = 0; c < channels; c++) {
+                        int sum = 0;
+                        for (int j = 0; j < s; j++) {
+                            sum += mRow[(x * s + j) * channels + c] & 0xFF;
+                        }
+                        sums[x * channels + c] += sum;
+                    }
+                }
+            }
+            int count = s * s;
+            int offset = y * w * channels;
+            for (int i = 0; i < w * channels; i++) {
+                dst[offset + i] = (byte) ((sums[i] + count / 2) / count);
+            }
+        }
+    }
+
+    /* Takes the result of the effect, rect is the region it worked on in scaled coordinates. */
+    public void commit(Rect rect) {
+        mY.rewind();
+        mY.get(mProcY);
+        mY.rewind();
+        mVU.rewind();
+        mVU.get(mProcVU);
+        mVU.rewind();
+        mRect = new Rect(rect);
+    }
+
+    /* Adds the last change to the frame around region, given in frame coordinates. The
+       committed rect is mapped onto region, with half of its size as margin on each side. */
+    public void apply(YuvFrame frame, Rect region, int width, int height, int strideY, int strideVU) {
+        if (mRect == null) {
+            return;
+        }
+        int marginX = region.width() / 2;
+        int marginY = region.height() / 2;
+        int left = Math.max(0, region.left - marginX) & ~1;
+        int top = Math.max(0, region.top - marginY) & ~1;
+        int right = Math.min(width, region.right + marginX) & ~1;
+        int bottom = Math.min(height, region.bottom + marginY) & ~1;
+        if (left >= right || top >= bottom) {
+            return;
+        }
+        ByteBuffer bY = frame.getYBuffer().duplicate();
+        ByteBuffer bVU = frame.getVUBuffer().duplicate();
+        int span = right - left;
+        for (int y = top; y < bottom; y++) {
+            int sy = toScaled(y - region.top, mRect.top, mHeight);
+            addRow(bY, y * strideY + left, span, mOrigY, mProcY, sy * mWidth, left, region.left, 1);
+            if ((y & 1) == 0) {
+                addRow(bVU, (y / 2) * strideVU + left, span, mOrigVU, mProcVU,
+                        (sy / 2) * mWidth, left, region.left, 2);
+            }
+        }
+    }
+
+    private int toScaled(int offset, int origin, int size) {
+        int s = offset >= 0 ? offset / mScale : -((-offset + mScale - 1) / mScale);
+        return Math.max(0, Math.min(size - 1, origin + s));
+    }
+
+    private void addRow(ByteBuffer buf, int position, int span, byte[] orig, byte[] proc,
+                        int rowOffset, int left, int regionLeft, int channels) {
+        buf.position(position);
+        buf.get(mRow, 0, span);
+        for (int x = 0; x < span; x += channels) {
+            int sx = toScaled(left + x - regionLeft, mRect.left, mWidth);
+            int i = rowOffset + (channels == 2 ? sx & ~1 : sx);
+            for (int c = 0; c < channels; c++) {
+                int delta = (proc[i + c] & 0xFF) - (orig[i + c] & 0xFF);
+                if (delta != 0) {
+                    int v = (mRow[x + c] & 0xFF) + delta;
+                    mRow[x + c] = (byte) (v < 0 ? 0 : (v > 255 ? 255 : v));
+                }
+            }
+        }
+        buf.position(position);
+        buf.put(mRow, 0, span);
+    }
+}
@@ -38,6 +38,8 @@ import android.util.Log;
 import android.util.Range;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.ImageBufferPool;
+import com.android.camera.imageprocessor.ImageFilterRegistry;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -51,8 +53,7 @@ public class StillmoreFilter implements ImageFilter{
     private int mStrideVU;
     private static String TAG = "StillmoreFilter";
     private static final boolean DEBUG = false;
-    private static boolean mIsSupported = false;
-    private ByteBuffer mOutBuf;
+    private int mOutBufSize;
     private CaptureModule mModule;
     private int mSenseValue = 0;
     private long mExpoTime;
@@ -96,7 +97,7 @@ public class StillmoreFilter implements ImageFilter{
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY*mHeight*3/2);
+        mOutBufSize = mStrideY*mHeight*3/2;
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU,
                 0, 0, mWidth, mHeight, NUM_REQUIRED_IMAGE);
@@ -105,13 +106,14 @@ public class StillmoreFilter implements ImageFilter{
     @Override
     public void deinit() {
         Log("deinit");
-        mOutBuf = null;
         nativeDeinit();
     }
 
     @Override
-    public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object param) {
+    public void addImage(YuvFrame frame, int imageNum, Object param) {
         Log("addImage");
+        ByteBuffer bY = frame.getYBuffer();
+        ByteBuffer bVU = frame.getVUBuffer();
         int yActualSize = bY.remaining();
         int vuActualSize = bVU.remaining();
         int status = nativeAddImage(bY, bVU, yActualSize, vuActualSize, imageNum);
@@ -124,17 +126,18 @@ public class StillmoreFilter implements ImageFilter{
     public ResultImage processImage() {
         Log("processImage ");
         int[] roi = new int[4];
-        int status = nativeProcessImage(mOutBuf.array(), (int) (mExpoTime / 1000000), mSenseValue, roi);
+        ByteBuffer outBuf = ImageBufferPool.getInstance().acquire(mOutBufSize);
+        int status = nativeProcessImage(outBuf.array(), (int) (mExpoTime / 1000000), mSenseValue, roi);
         Log("processImage done");
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the image.");
         }
-        return new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+        return new ResultImage(outBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
     }
 
     @Override
     public boolean isSupported() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(StillmoreFilter.class);
     }
 
     @Override
@@ -154,7 +157,7 @@ public class StillmoreFilter implements ImageFilter{
     }
 
     public static boolean isSupportedStatic() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(StillmoreFilter.class);
     }
 
     private native int nativeInit(int width, int height, int yStride, int vuStride,
@@ -162,14 +165,4 @@ public class StillmoreFilter implements ImageFilter{
     private native int nativeDeinit();
     private native int nativeAddImage(ByteBuffer yB, ByteBuffer vuB, int ySize, int vuSize, int imageNum);
     private native int nativeProcessImage(byte[] buffer, int expoTime, int isoValue, int[] roi);
-
-    static {
-        try {
-            System.loadLibrary("jni_stillmore");
-            mIsSupported = true;
-        }catch(UnsatisfiedLinkError e) {
-            Log.d(TAG, e.toString());
-            mIsSupported = false;
-        }
-    }
 }
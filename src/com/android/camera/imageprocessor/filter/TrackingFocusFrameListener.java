@@ -40,14 +40,15 @@ import android.util.Log;
 import android.util.Size;
 
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.ImageFilterRegistry;
 import com.android.camera.ui.FilmstripBottomControls;
 import com.android.camera.ui.TrackingFocusRenderer;
+import com.android.camera.util.PersistUtil;
 
-import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.List;
 
-public class TrackingFocusFrameListener implements ImageFilter {
+public class TrackingFocusFrameListener implements RateLimitedFrameListener {
 
     int mWidth;
     int mHeight;
@@ -56,7 +57,6 @@ public class TrackingFocusFrameListener implements ImageFilter {
     private CaptureModule mModule;
     private static boolean DEBUG = false;
     private static String TAG = "TrackingFocusFrameListener";
-    private static boolean mIsSupported = false;
     private Rect imageRect;
     public static final int PENDING_REGISTRATION = -1;
     public static final int MAX_NUM_TRACKED_OBJECTS = 3;
@@ -124,9 +124,13 @@ public class TrackingFocusFrameListener implements ImageFilter {
     }
 
     @Override
-    public void addImage(ByteBuffer bY, ByteBuffer bVU, int imageNum, Object isPreview) {
-        bY.get(yvuBytes, 0, bY.remaining());
-        bVU.get(yvuBytes, mStrideY * mHeight, bVU.remaining());
+    public void addImage(YuvFrame frame, int imageNum, Object isPreview) {
+        byte[] yvu = frame.getNv21Array();
+        if (yvu == null || frame.getYStride() != mStrideY) {
+            //The tracker reads a packed NV21 array, repack only if the frame is not one.
+            frame.copyToNv21(yvuBytes);
+            yvu = yvuBytes;
+        }
         int[] cords = mTrackingFocusRender.getInputCords(mWidth, mHeight);
         if(cords != null) {
             if(mTrackedId != PENDING_REGISTRATION) {
@@ -139,7 +143,7 @@ public class TrackingFocusFrameListener implements ImageFilter {
         if(mInputCords != null) {
             if (mTrackedId == PENDING_REGISTRATION) {
                 try {
-                    mTrackedId = registerObject(yvuBytes, new Point(mInputCords[0], mInputCords[1]), mIsFirstTime);
+                    mTrackedId = registerObject(yvu, new Point(mInputCords[0], mInputCords[1]), mIsFirstTime);
                     mIsFirstTime = false;
                 }catch(IllegalArgumentException e) {
                     mTrackedId = PENDING_REGISTRATION;
@@ -147,7 +151,7 @@ public class TrackingFocusFrameListener implements ImageFilter {
                 }
             }
             if(mTrackedId != PENDING_REGISTRATION) {
-                mTrackingFocusRender.putRegisteredCords(trackObjects(yvuBytes), mWidth, mHeight);
+                mTrackingFocusRender.putRegisteredCords(trackObjects(yvu), mWidth, mHeight);
             }
         }
     }
@@ -255,11 +259,21 @@ public class TrackingFocusFrameListener implements ImageFilter {
 
     @Override
     public boolean isSupported() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(TrackingFocusFrameListener.class);
     }
 
     public static boolean isSupportedStatic() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(TrackingFocusFrameListener.class);
+    }
+
+    @Override
+    public int getTargetFps() {
+        return PersistUtil.getTrackingFocusFps();
+    }
+
+    @Override
+    public int getMaxQueuedFrames() {
+        return 1;
     }
 
     @Override
@@ -286,8 +300,4 @@ public class TrackingFocusFrameListener implements ImageFilter {
     private native int nRegisterObjectByPoint(byte[] imageDataNV21, int x, int y, boolean firstTime);
     private native void nUnregisterObject(int id);
     private native int[] nTrackObjects(byte[] imageDataNV21);
-
-    static {
-        mIsSupported = false;
-    }
 }
@@ -31,9 +31,7 @@ package com.android.camera.imageprocessor.filter;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.graphics.Camera;
-import android.graphics.ImageFormat;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -45,13 +43,15 @@ import android.util.Range;
 
 import com.android.camera.CameraActivity;
 import com.android.camera.CaptureModule;
+import com.android.camera.imageprocessor.FrameDumpService;
+import com.android.camera.imageprocessor.ImageBufferPool;
+import com.android.camera.imageprocessor.ImageFilterRegistry;
 import com.android.camera.imageprocessor.PostProcessor;
+import com.android.camera.imageprocessor.TiledJpegEncoder;
 import com.android.camera.util.CameraUtil;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -67,8 +67,7 @@ public class UbifocusFilter implements ImageFilter {
     private static final int FOCUS_ADJUST_TIME_OUT = 200;
     private static final int META_BYTES_SIZE = 25;
     private int temp;
-    private static boolean mIsSupported = true;
-    private ByteBuffer mOutBuf;
+    private int mOutBufSize;
     private CaptureModule mModule;
     private CameraActivity mActivity;
     private int mOrientation = 0;
@@ -76,7 +75,14 @@ public class UbifocusFilter implements ImageFilter {
     final String[] NAMES = {"00.jpg", "01.jpg", "02.jpg", "03.jpg",
             "04.jpg", "DepthMapImage.y", "AllFocusImage.jpg"};
 
-    private int mSavedCount = 0;
+    private volatile int mSavedCount = 0;  //Only the dump thread counts it up
+
+    private final FrameDumpService.Callback mSavedCallback = new FrameDumpService.Callback() {
+        @Override
+        public void onDumped(File file, boolean success) {
+            mSavedCount++;
+        }
+    };
 
     private static void Log(String msg) {
         if (DEBUG) {
@@ -111,7 +117,7 @@ public class UbifocusFilter implements ImageFilter {
         mHeight = height/2*2;
         mStrideY = strideY/2*2;
         mStrideVU = strideVU/2*2;
-        mOutBuf = ByteBuffer.allocate(mStrideY * mHeight * 3 / 2);
+        mOutBufSize = mStrideY * mHeight * 3 / 2;
         Log("width: "+mWidth+" height: "+mHeight+" strideY: "+mStrideY+" strideVU: "+mStrideVU);
         nativeInit(mWidth, mHeight, mStrideY, mStrideVU, NUM_REQUIRED_IMAGE);
     }
@@ -119,44 +125,43 @@ public class UbifocusFilter implements ImageFilter {
     @Override
     public void deinit() {
         Log("deinit");
-        mOutBuf = null;
         nativeDeinit();
     }
 
     @Override
-    public void addImage(final ByteBuffer bY, final ByteBuffer bVU, final int imageNum, Object param) {
+    public void addImage(final YuvFrame frame, final int imageNum, Object param) {
         Log("addImage");
         if(imageNum == 0) {
             mModule.setRefocusLastTaken(false);
             mOrientation = CameraUtil.getJpegRotation(mModule.getMainCameraId(), mModule.getDisplayOrientation());
             mSavedCount = 0;
         }
+        ByteBuffer bY = frame.getYBuffer();
+        ByteBuffer bVU = frame.getVUBuffer();
         int yActualSize = bY.remaining();
         int vuActualSize = bVU.remaining();
         if(nativeAddImage(bY, bVU, yActualSize, vuActualSize, imageNum) < 0) {
             Log.e(TAG, "Fail to add image");
         }
-        new Thread() {
-            public void run() {
-                saveToPrivateFile(imageNum, nv21ToJpeg(bY, bVU, new Rect(0, 0, mWidth, mHeight), mOrientation));
-                mSavedCount++;
-            }
-        }.start();
+        FrameDumpService.getInstance().dump(getPrivateFile(imageNum), frame,
+                FrameDumpService.Format.JPEG, 50, false, mSavedCallback);
     }
 
     @Override
     public ResultImage processImage() {
         Log("processImage ");
         int[] roi = new int[4];
+        ByteBuffer outBuf = ImageBufferPool.getInstance().acquire(mOutBufSize);
         int[] depthMapSize = new int[2];
-        int status = nativeProcessImage(mOutBuf.array(), roi, depthMapSize);
+        int status = nativeProcessImage(outBuf.array(), roi, depthMapSize);
         if(status < 0) { //In failure case, library will return the first image as it is.
             Log.w(TAG, "Fail to process the "+getStringName());
         } else {
             byte[] depthMapBuf = new byte[depthMapSize[0] * depthMapSize[1] + META_BYTES_SIZE];
             nativeGetDepthMap(depthMapBuf, depthMapSize[0], depthMapSize[1]);
             saveToPrivateFile(NAMES.length - 2, depthMapBuf);
-            saveToPrivateFile(NAMES.length - 1, nv21ToJpeg(mOutBuf, null, new Rect(roi[0], roi[1], roi[0] + roi[2], roi[1] + roi[3]), mOrientation));
+            YuvFrame result = YuvFrame.wrapNv21(outBuf, mWidth, mHeight, mStrideY, 0, mOrientation, null);
+            saveToPrivateFile(NAMES.length - 1, nv21ToJpeg(result, new Rect(roi[0], roi[1], roi[0] + roi[2], roi[1] + roi[3]), mOrientation));
             mModule.setRefocusLastTaken(true);
         }
         while(mSavedCount < NUM_REQUIRED_IMAGE) {
@@ -165,14 +170,14 @@ public class UbifocusFilter implements ImageFilter {
             } catch (Exception e) {
             }
         }
-        ResultImage result = new ResultImage(mOutBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
+        ResultImage result = new ResultImage(outBuf, new Rect(roi[0], roi[1], roi[0]+roi[2], roi[1] + roi[3]), mWidth, mHeight, mStrideY);
         Log("processImage done");
         return result;
     }
 
     @Override
     public boolean isSupported() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(UbifocusFilter.class);
     }
 
     @Override
@@ -216,53 +221,27 @@ public class UbifocusFilter implements ImageFilter {
     }
 
     public static boolean isSupportedStatic() {
-        return mIsSupported;
+        return ImageFilterRegistry.isSupported(UbifocusFilter.class);
     }
 
-    private byte[] nv21ToJpeg(ByteBuffer bY, ByteBuffer bVU, Rect roi, int orientation) {
-        ByteBuffer buf =  ByteBuffer.allocate(mStrideY*mHeight*3/2);
-        buf.put(bY);
-        bY.rewind();
-        if(bVU != null) {
-            buf.put(bVU);
-            bVU.rewind();
-        }
-        BitmapOutputStream bos = new BitmapOutputStream(1024);
-        YuvImage im = new YuvImage(buf.array(), ImageFormat.NV21,
-                mWidth, mHeight, new int[]{mStrideY, mStrideVU});
-        im.compressToJpeg(roi, 50, bos);
-        byte[] bytes = bos.getArray();
-        bytes = PostProcessor.addExifTags(bytes, orientation);
+    private byte[] nv21ToJpeg(YuvFrame frame, Rect roi, int orientation) {
+        int stride = frame.getYStride();
+        ByteBuffer buf = ImageBufferPool.getInstance().acquire(stride*mHeight*3/2);
+        frame.copyToNv21(buf.array());
+        byte[] bytes = TiledJpegEncoder.getInstance().encode(buf.array(), mWidth, mHeight,
+                stride, stride, roi.left, roi.top, roi.right, roi.bottom, 50,
+                PostProcessor.getExifSegment(orientation));
+        ImageBufferPool.getInstance().release(buf);
         return bytes;
     }
 
-    private class BitmapOutputStream extends ByteArrayOutputStream {
-        public BitmapOutputStream(int size) {
-            super(size);
-        }
-
-        public byte[] getArray() {
-            return buf;
-        }
+    private File getPrivateFile(int index) {
+        return new File(mActivity.getFilesDir()+"/Ubifocus", NAMES[index]);
     }
 
-    private void saveToPrivateFile(final int index, final byte[] bytes) {
-        new Thread() {
-            public void run() {
-                String filesPath = mActivity.getFilesDir()+"/Ubifocus";
-                File file = new File(filesPath);
-                if(!file.exists()) {
-                    file.mkdir();
-                }
-                file = new File(filesPath+"/"+NAMES[index]);
-                try {
-                    FileOutputStream out = new FileOutputStream(file);
-                    out.write(bytes, 0, bytes.length);
-                    out.close();
-                } catch (Exception e) {
-                }
-            }
-        }.start();
+    /* The refocus viewer reads these back, so they are never dropped. */
+    private void saveToPrivateFile(int index, byte[] bytes) {
+        FrameDumpService.getInstance().dump(getPrivateFile(index), bytes, false, null);
     }
 
     private native int nativeInit(int width, int height, int yStride, int vuStride, int numImages);
@@ -270,13 +249,4 @@ public class UbifocusFilter implements ImageFilter {
     private native int nativeAddImage(ByteBuffer yB, ByteBuffer vuB, int ySize, int vuSize, int imageNum);
     private native int nativeGetDepthMap(byte[] depthMapBuf, int depthMapWidth, int depthMapHeight);
     private native int nativeProcessImage(byte[] buffer, int[] roi, int[] depthMapSize);
-
-    static {
-        try {
-            System.loadLibrary("jni_ubifocus");
-            mIsSupported = true;
-        }catch(UnsatisfiedLinkError e) {
-            mIsSupported = false;
-        }
-    }
 }
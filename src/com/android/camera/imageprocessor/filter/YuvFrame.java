@@ -0,0 +1,331 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.imageprocessor.filter;
+
+import android.graphics.Rect;
+import android.media.Image;
+
+import com.android.camera.imageprocessor.ImageBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* Describes one YUV_420_888 frame handed to an ImageFilter without repacking it.
+ * The frame starts with one reference owned by its creator. A filter that keeps
+ * using the planes after addImage returns has to retain() it and release() it later. */
+public class YuvFrame {
+    public static final int PLANE_Y = 0;
+    public static final int PLANE_U = 1;
+    public static final int PLANE_V = 2;
+
+    public interface Releaser {
+        /* Called once the last holder released the frame */
+        void onReleased(YuvFrame frame);
+    }
+
+    public static class Plane {
+        public final ByteBuffer buffer;
+        public final int rowStride;
+        public final int pixelStride;
+
+        public Plane(ByteBuffer buffer, int rowStride, int pixelStride) {
+            this.buffer = buffer;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+    }
+
+    private final Plane[] mPlanes;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mTimestamp;
+    private final Rect mCrop;
+    private final int mOrientation;
+    private final Releaser mReleaser;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+    //Backing array when the frame is a packed NV21 buffer on the heap.
+    private final byte[] mNv21Array;
+    private ByteBuffer mPackedVU;
+    //Downscaled luma planes, pooled buffers given back when the frame is released.
+    private ArrayList<ScaledLuma> mScaledLuma;
+
+    private static class ScaledLuma {
+        final int width;
+        final int height;
+        final ByteBuffer buffer;
+
+        ScaledLuma(int width, int height, ByteBuffer buffer) {
+            this.width = width;
+            this.height = height;
+            this.buffer = buffer;
+        }
+    }
+
+    public YuvFrame(Plane[] planes, int width, int height, long timestamp, Rect crop,
+                    int orientation, Releaser releaser) {
+        this(planes, width, height, timestamp, crop, orientation, releaser, null);
+    }
+
+    private YuvFrame(Plane[] planes, int width, int height, long timestamp, Rect crop,
+                     int orientation, Releaser releaser, byte[] nv21Array) {
+        if (planes.length != 3) {
+            throw new IllegalArgumentException("YUV frame needs 3 planes, got " + planes.length);
+        }
+        mPlanes = planes;
+        mWidth = width;
+        mHeight = height;
+        mTimestamp = timestamp;
+        mCrop = crop;
+        mOrientation = orientation;
+        mReleaser = releaser;
+        mNv21Array = nv21Array;
+    }
+
+    /* Wraps the planes of the image. The releaser is in charge of closing the image. */
+    public static YuvFrame wrap(Image image, int orientation, Releaser releaser) {
+        Image.Plane[] planes = image.getPlanes();
+        Plane[] wrapped = new Plane[planes.length];
+        for (int i = 0; i < planes.length; i++) {
+            wrapped[i] = new Plane(planes[i].getBuffer(), planes[i].getRowStride(),
+                    planes[i].getPixelStride());
+        }
+        return new YuvFrame(wrapped, image.getWidth(), image.getHeight(), image.getTimestamp(),
+                image.getCropRect(), orientation, releaser, null);
+    }
+
+    /* Wraps the planes of the image and closes it once the frame is released. */
+    public static YuvFrame wrap(final Image image, int orientation) {
+        return wrap(image, orientation, new Releaser() {
+            @Override
+            public void onReleased(YuvFrame frame) {
+                image.close();
+            }
+        });
+    }
+
+    /* Wraps a packed NV21 buffer with the chroma rows right after stride*height luma bytes */
+    public static YuvFrame wrapNv21(ByteBuffer nv21, int width, int height, int stride,
+                                    long timestamp, int orientation, Releaser releaser) {
+        int ySize = stride * height;
+        ByteBuffer v = nv21.duplicate();
+        v.position(ySize);
+        v = v.slice();
+        ByteBuffer u = nv21.duplicate();
+        u.position(ySize + 1);
+        u = u.slice();
+        Plane[] planes = new Plane[] {
+                new Plane(nv21, stride, 1),
+                new Plane(u, stride, 2),
+                new Plane(v, stride, 2)};
+        byte[] array = (nv21.hasArray() && nv21.arrayOffset() == 0) ? nv21.array() : null;
+        return new YuvFrame(planes, width, height, timestamp, new Rect(0, 0, width, height),
+                orientation, releaser, array);
+    }
+
+    public Plane getPlane(int index) {
+        return mPlanes[index];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /* Sensor timestamp in nanoseconds, 0 if unknown */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    public Rect getCropRect() {
+        return mCrop;
+    }
+
+    /* Clockwise rotation in degrees to show the frame upright, 0 if unknown */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    /* Whether U and V are interleaved in VU order, which is what NV21 libraries expect */
+    public boolean isSemiPlanarVU() {
+        return mPlanes[PLANE_U].pixelStride == 2 && mPlanes[PLANE_V].pixelStride == 2
+                && mPlanes[PLANE_U].rowStride == mPlanes[PLANE_V].rowStride;
+    }
+
+    /* The frame is shared between threads. The plane buffers are returned as views of their
+       own, rewound, so readers never move each other's position. */
+    public ByteBuffer getYBuffer() {
+        ByteBuffer buf = mPlanes[PLANE_Y].buffer.duplicate();
+        buf.rewind();
+        return buf;
+    }
+
+    public int getYStride() {
+        return mPlanes[PLANE_Y].rowStride;
+    }
+
+    /* Returns the interleaved VU plane. Planar frames get repacked once, on first use. */
+    public synchronized ByteBuffer getVUBuffer() {
+        if (isSemiPlanarVU()) {
+            ByteBuffer buf = mPlanes[PLANE_V].buffer.duplicate();
+            buf.rewind();
+            return buf;
+        }
+        if (mPackedVU == null) {
+            int stride = getYStride();
+            mPackedVU = ByteBuffer.allocateDirect(stride * ((mHeight + 1) / 2));
+            byte[] row = new byte[stride];
+            for (int y = 0; y < (mHeight + 1) / 2; y++) {
+                packVURow(y, row, 0);
+                mPackedVU.put(row);
+            }
+        }
+        ByteBuffer buf = mPackedVU.duplicate();
+        buf.rewind();
+        return buf;
+    }
+
+    public int getVUStride() {
+        return isSemiPlanarVU() ? mPlanes[PLANE_V].rowStride : getYStride();
+    }
+
+    /* Returns the backing array if the frame already is a packed NV21 array, null otherwise */
+    public byte[] getNv21Array() {
+        return mNv21Array;
+    }
+
+    /* Packs the frame into dst as NV21, with both luma and chroma rows getYStride() apart */
+    public void copyToNv21(byte[] dst) {
+        int stride = getYStride();
+        int ySize = stride * mHeight;
+        ByteBuffer bY = getYBuffer();
+        bY.get(dst, 0, Math.min(bY.remaining(), ySize));
+        if (isSemiPlanarVU() && getVUStride() == stride) {
+            ByteBuffer bVU = getVUBuffer();
+            bVU.get(dst, ySize, Math.min(bVU.remaining(), dst.length - ySize));
+            return;
+        }
+        for (int y = 0; y < (mHeight + 1) / 2; y++) {
+            packVURow(y, dst, ySize + y * stride);
+        }
+    }
+
+    private void packVURow(int y, byte[] dst, int offset) {
+        Plane u = mPlanes[PLANE_U];
+        Plane v = mPlanes[PLANE_V];
+        int uRow = y * u.rowStride;
+        int vRow = y * v.rowStride;
+        for (int x = 0; x < (mWidth + 1) / 2; x++) {
+            dst[offset + 2 * x] = v.buffer.get(vRow + x * v.pixelStride);
+            dst[offset + 2 * x + 1] = u.buffer.get(uRow + x * u.pixelStride);
+        }
+    }
+
+    /* Returns the luma plane box-filtered down to width x height and packed without padding.
+       It is computed once per size and shared by all holders of the frame, so it must not
+       be modified. */
+    public synchronized byte[] getScaledLuma(int width, int height) {
+        if (width <= 0 || height <= 0 || width > mWidth || height > mHeight) {
+            throw new IllegalArgumentException("Can't scale " + mWidth + "x" + mHeight
+                    + " to " + width + "x" + height);
+        }
+        if (mScaledLuma == null) {
+            mScaledLuma = new ArrayList<ScaledLuma>();
+        }
+        for (ScaledLuma luma : mScaledLuma) {
+            if (luma.width == width && luma.height == height) {
+                return luma.buffer.array();
+            }
+        }
+        ByteBuffer buf = ImageBufferPool.getInstance().acquire(width * height);
+        scaleLuma(buf.array(), width, height);
+        mScaledLuma.add(new ScaledLuma(width, height, buf));
+        return buf.array();
+    }
+
+    private void scaleLuma(byte[] dst, int width, int height) {
+        //Every output pixel averages the source pixels its area covers.
+        int[] left = new int[width + 1];
+        for (int x = 0; x <= width; x++) {
+            left[x] = x * mWidth / width;
+        }
+        ByteBuffer src = mPlanes[PLANE_Y].buffer.duplicate();
+        int stride = mPlanes[PLANE_Y].rowStride;
+        byte[] row = new byte[mWidth];
+        int[] sums = new int[width];
+        for (int y = 0; y < height; y++) {
+            int top = y * mHeight / height;
+            int bottom = Math.max(top + 1, (y + 1) * mHeight / height);
+            Arrays.fill(sums, 0);
+            for (int sy = top; sy < bottom; sy++) {
+                src.position(sy * stride);
+                src.get(row, 0, mWidth);
+                for (int x = 0; x < width; x++) {
+                    int end = Math.max(left[x] + 1, left[x + 1]);
+                    int sum = 0;
+                    for (int sx = left[x]; sx < end; sx++) {
+                        sum += row[sx] & 0xFF;
+                    }
+                    sums[x] += sum;
+                }
+            }
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int count = (bottom - top) * Math.max(1, left[x + 1] - left[x]);
+                dst[offset + x] = (byte) ((sums[x] + count / 2) / count);
+            }
+        }
+    }
+
+    public YuvFrame retain() {
+        mRefCount.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        if (mRefCount.decrementAndGet() != 0) {
+            return;
+        }
+        synchronized (this) {
+            if (mScaledLuma != null) {
+                for (ScaledLuma luma : mScaledLuma) {
+                    ImageBufferPool.getInstance().release(luma.buffer);
+                }
+                mScaledLuma = null;
+            }
+        }
+        if (mReleaser != null) {
+            mReleaser.onReleased(this);
+        }
+    }
+}
@@ -118,6 +118,40 @@ public class PersistUtil {
             SystemProperties.get("persist.vendor.camera.display.umax", "");
     private static final String PERSIST_DISPLAY_LMAX =
             SystemProperties.get("persist.vendor.camera.display.lmax", "");
+    private static final int PERSIST_POSTPROC_PIPELINE_DEPTH =
+            SystemProperties.getInt("persist.vendor.camera.postproc.pipeline", 2);
+    private static final int PERSIST_POSTPROC_ACQUIRE_TIMEOUT =
+            SystemProperties.getInt("persist.vendor.camera.postproc.timeout.acquire", 4000);
+    private static final int PERSIST_POSTPROC_ADD_TIMEOUT =
+            SystemProperties.getInt("persist.vendor.camera.postproc.timeout.add", 2000);
+    private static final int PERSIST_POSTPROC_PROCESS_TIMEOUT =
+            SystemProperties.getInt("persist.vendor.camera.postproc.timeout.process", 4000);
+    private static final int PERSIST_POSTPROC_ENCODE_TIMEOUT =
+            SystemProperties.getInt("persist.vendor.camera.postproc.timeout.encode", 3000);
+    private static final int PERSIST_POSTPROC_SAVE_TIMEOUT =
+            SystemProperties.getInt("persist.vendor.camera.postproc.timeout.save", 2000);
+    private static final int PERSIST_DUMP_BUDGET_KB =
+            SystemProperties.getInt("persist.vendor.camera.dump.budget", 64 * 1024);
+    private static final int PERSIST_PREVIEW_RING_SIZE =
+            SystemProperties.getInt("persist.vendor.camera.preview.ring", 3);
+    private static final boolean PERSIST_PREVIEW_CPU_CONVERTER =
+            SystemProperties.getBoolean("persist.vendor.camera.preview.cpu", false);
+    private static final int PERSIST_TRACKING_FOCUS_FPS =
+            SystemProperties.getInt("persist.vendor.camera.trackingfocus.fps", 15);
+    private static final boolean PERSIST_FRAMEPROC_WARM_RESTART =
+            SystemProperties.getBoolean("persist.vendor.camera.frameproc.warm", true);
+    private static final boolean PERSIST_PREVIEW_STATS_DUMP =
+            SystemProperties.getBoolean("persist.vendor.camera.preview.stats.dump", false);
+    private static final int PERSIST_BEAUTIFICATION_BUDGET_MS =
+            SystemProperties.getInt("persist.vendor.camera.beauty.budget_ms", 20);
+    private static final int PERSIST_SAVE_WORKERS =
+            SystemProperties.getInt("persist.vendor.camera.save.workers", 2);
+    private static final int PERSIST_SAVE_SYNC_EVERY =
+            SystemProperties.getInt("persist.vendor.camera.save.sync_every", 8);
+    private static final boolean PERSIST_SAVE_SYNC_SINGLE =
+            SystemProperties.getBoolean("persist.vendor.camera.save.sync_single", false);
+    private static final boolean PERSIST_SAVE_STAGING =
+            SystemProperties.getBoolean("persist.vendor.camera.save.staging", true);
 
     public static int getMemoryLimit() {
         return PERSIST_MEMORY_LIMIT;
@@ -163,4 +197,72 @@ public class PersistUtil {
         return PERSIST_DISPLAY_LMAX;
     }
 
+    public static int getPostProcPipelineDepth() {
+        return PERSIST_POSTPROC_PIPELINE_DEPTH;
+    }
+
+    public static int getPostProcAcquireTimeout() {
+        return PERSIST_POSTPROC_ACQUIRE_TIMEOUT;
+    }
+
+    public static int getPostProcAddTimeout() {
+        return PERSIST_POSTPROC_ADD_TIMEOUT;
+    }
+
+    public static int getPostProcProcessTimeout() {
+        return PERSIST_POSTPROC_PROCESS_TIMEOUT;
+    }
+
+    public static int getPostProcEncodeTimeout() {
+        return PERSIST_POSTPROC_ENCODE_TIMEOUT;
+    }
+
+    public static int getPostProcSaveTimeout() {
+        return PERSIST_POSTPROC_SAVE_TIMEOUT;
+    }
+
+    public static int getFrameDumpBudgetKB() {
+        return PERSIST_DUMP_BUDGET_KB;
+    }
+
+    public static int getPreviewRingSize() {
+        return PERSIST_PREVIEW_RING_SIZE;
+    }
+
+    public static boolean isPreviewCpuConverterEnabled() {
+        return PERSIST_PREVIEW_CPU_CONVERTER;
+    }
+
+    public static int getTrackingFocusFps() {
+        return PERSIST_TRACKING_FOCUS_FPS;
+    }
+
+    public static boolean isFrameProcWarmRestartEnabled() {
+        return PERSIST_FRAMEPROC_WARM_RESTART;
+    }
+
+    public static boolean isPreviewStatsDumpEnabled() {
+        return PERSIST_PREVIEW_STATS_DUMP;
+    }
+
+    public static int getBeautificationBudgetMs() {
+        return PERSIST_BEAUTIFICATION_BUDGET_MS;
+    }
+
+    public static int getSaveWorkerCount() {
+        return Math.max(1, PERSIST_SAVE_WORKERS);
+    }
+
+    public static int getSaveSyncEvery() {
+        return Math.max(1, PERSIST_SAVE_SYNC_EVERY);
+    }
+
+    public static boolean isSaveSyncSingleEnabled() {
+        return PERSIST_SAVE_SYNC_SINGLE;
+    }
+
+    public static boolean isSaveStagingEnabled() {
+        return PERSIST_SAVE_STAGING;
+    }
+
 }
@@ -29,7 +29,7 @@
 
 package org.codeaurora.snapcam.filter;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -76,6 +76,8 @@ import android.view.Surface;
 import com.android.camera.CaptureModule;
 import com.android.camera.Exif;
 import com.android.camera.exif.ExifInterface;
+import com.android.camera.imageprocessor.FrameDumpService;
+import com.android.camera.imageprocessor.TiledJpegEncoder;
 import com.android.camera.MediaSaveService;
 import com.android.camera.MediaSaveService.OnMediaSavedListener;
 import com.android.camera.PhotoModule.NamedImages;
@@ -1296,11 +1298,12 @@ public class ClearSightImageProcessor {
 
     public void saveDebugImageAsJpeg(MediaSaveService service, YuvImage image, boolean isBayer,
             NamedEntity namedEntity, int count, long ts) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        image.compressToJpeg(
-                new Rect(0, 0, image.getWidth(), image.getHeight()), 100, baos);
+        int[] strides = image.getStrides();
+        byte[] jpeg = TiledJpegEncoder.getInstance().encode(image.getYuvData(),
+                image.getWidth(), image.getHeight(), strides[0], strides[1],
+                0, 0, image.getWidth(), image.getHeight(), 100);
 
-        saveDebugImageAsJpeg(service, baos.toByteArray(), image.getWidth(), image.getHeight(),
+        saveDebugImageAsJpeg(service, jpeg, image.getWidth(), image.getHeight(),
                 isBayer, namedEntity, count, ts);
     }
 
@@ -1325,7 +1328,7 @@ public class ClearSightImageProcessor {
 
         YuvImage yuv = createYuvImage(image);
         String path = Storage.generateFilepath(title, "yuv");
-        Storage.writeFile(path, yuv.getYuvData(), null, "yuv");
+        FrameDumpService.getInstance().dump(new File(path), yuv.getYuvData(), true, null);
     }
 
     public YuvImage createYuvImage(Image image) {
@@ -33,6 +33,7 @@ import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.hardware.Camera.Size;
+import android.os.Environment;
 import android.util.Base64;
 import android.util.Log;
 
@@ -41,14 +42,12 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 
-import java.io.OutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.BufferedOutputStream;
 
 import com.adobe.xmp.XMPException;
 import com.adobe.xmp.XMPMeta;
 import com.adobe.xmp.XMPMetaFactory;
+import com.android.camera.imageprocessor.FrameDumpService;
 
 import static android.graphics.Color.rgb;
 
@@ -182,45 +181,16 @@ public class GDepth{
     }
 
     private  void saveAsFile(String str, String name){
-        Log.d(TAG, "saveAsFile " + "sdcard/DDM/"+ TAG + name + ".log");
-        File file = new File("sdcard/DDM/"+ TAG + name + ".log");
-
-        OutputStream out = null;
-        byte[] bytes = str.getBytes();
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(file));
-            out.write(bytes, 0, bytes.length);
-        }catch(Exception e) {
-            Log.d(TAG, e.toString());
-        }finally {
-            if (out != null) {
-                try {
-                    out.close();
-                }catch(Exception e){
-                    Log.d(TAG, e.toString());
-                }
-            }
-        }
+        File file = new File(Environment.getExternalStorageDirectory(), "DDM/" + TAG + name + ".log");
+        Log.d(TAG, "saveAsFile " + file);
+        FrameDumpService.getInstance().dump(file, str.getBytes(), true, null);
     }
 
     private void saveAsJPEG(byte[] bytes){
         Log.d(TAG, "saveAsJPEG");
-        File file = new File("sdcard/"+ System.currentTimeMillis() + "_depth.JPEG");
-        OutputStream out = null;
-        try {
-            out = new BufferedOutputStream(new FileOutputStream(file));
-            out.write(bytes, 0, bytes.length);
-        }catch(Exception e) {
-            Log.d(TAG, e.toString());
-        }finally {
-            if (out != null) {
-                try {
-                    out.close();
-                }catch(Exception e){
-                    Log.d(TAG, e.toString());
-                }
-            }
-        }
+        File file = new File(Environment.getExternalStorageDirectory(),
+                System.currentTimeMillis() + "_depth.JPEG");
+        FrameDumpService.getInstance().dump(file, bytes, true, null);
     }
 
     public static class DepthMap{
@@ -0,0 +1,121 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import com.android.camera.imageprocessor.AdaptiveQualityPolicy;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class AdaptiveQualityPolicyTest extends TestCase {
+    private static final long MS = 1000000L;
+    private static final long BUDGET = 20 * MS;
+
+    /* Synthetic effect whose cost follows the processed pixels, with optional noise. */
+    private static class CostModel {
+        long fullCostNs;
+        final double noise;
+        final Random random = new Random(42);
+
+        CostModel(long fullCostNs, double noise) {
+            this.fullCostNs = fullCostNs;
+            this.noise = noise;
+        }
+
+        long cost(AdaptiveQualityPolicy.Level level) {
+            double cost = (double) fullCostNs / (level.scale * level.scale);
+            return (long) (cost * (1 + noise * (2 * random.nextDouble() - 1)));
+        }
+    }
+
+    private static void run(AdaptiveQualityPolicy policy, CostModel model, int frames) {
+        for (int i = 0; i < frames; i++) {
+            AdaptiveQualityPolicy.Level level = policy.getLevel();
+            if (policy.shouldProcess()) {
+                policy.onProcessed(model.cost(level));
+            }
+        }
+    }
+
+    public void testStaysAtFullQualityWithinBudget() {
+        AdaptiveQualityPolicy policy = new AdaptiveQualityPolicy(BUDGET);
+        run(policy, new CostModel(12 * MS, 0.2), 300);
+        assertEquals(0, policy.getLevelIndex());
+        assertEquals(0, policy.getChangeCount());
+    }
+
+    public void testStepsDownOnceUnderLoad() {
+        AdaptiveQualityPolicy policy = new AdaptiveQualityPolicy(BUDGET);
+        //Half resolution costs 7.5ms, full resolution can't come back within 75% of budget.
+        run(policy, new CostModel(30 * MS, 0), 300);
+        assertEquals(1, policy.getLevelIndex());
+        assertEquals(1, policy.getChangeCount());
+    }
+
+    public void testFallsBackToCheapestLevel() {
+        AdaptiveQualityPolicy policy = new AdaptiveQualityPolicy(BUDGET);
+        run(policy, new CostModel(400 * MS, 0), 300);
+        assertEquals(AdaptiveQualityPolicy.DEFAULT_LEVELS.length - 1, policy.getLevelIndex());
+    }
+
+    public void testAlternateFramesAtReducedRate() {
+        AdaptiveQualityPolicy policy = new AdaptiveQualityPolicy(BUDGET);
+        //Half resolution still takes 25ms, every other frame averages 12.5ms.
+        run(policy, new CostModel(100 * MS, 0), 300);
+        assertEquals(2, policy.getLevelIndex());
+        int processed = 0;
+        for (int i = 0; i < 100; i++) {
+            if (policy.shouldProcess()) {
+                processed++;
+            }
+        }
+        assertEquals(50, processed);
+    }
+
+    public void testRecoversWhenLoadDrops() {
+        AdaptiveQualityPolicy policy = new AdaptiveQualityPolicy(BUDGET);
+        CostModel model = new CostModel(100 * MS, 0.1);
+        run(policy, model, 300);
+        assertTrue(policy.getLevelIndex() > 0);
+        model.fullCostNs = 10 * MS;
+        run(policy, model, 1000);
+        assertEquals(0, policy.getLevelIndex());
+    }
+
+    public void testNoFlappingNearTheBudget() {
+        AdaptiveQualityPolicy policy = new AdaptiveQualityPolicy(BUDGET);
+        //Full quality hovers around the budget, half resolution has plenty of headroom.
+        run(policy, new CostModel(21 * MS, 0.15), 3000);
+        assertTrue("changes " + policy.getChangeCount(), policy.getChangeCount() <= 2);
+    }
+}
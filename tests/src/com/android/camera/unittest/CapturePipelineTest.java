@@ -0,0 +1,252 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import com.android.camera.imageprocessor.CapturePipeline;
+import com.android.camera.imageprocessor.filter.YuvFrame;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CapturePipelineTest extends TestCase {
+
+    private static class FakeImage {
+        final AtomicInteger closeCount = new AtomicInteger();
+    }
+
+    private static class TestSlot extends CapturePipeline.Slot<FakeImage> {
+        TestSlot(int numImages) {
+            super(numImages);
+        }
+    }
+
+    private static class Pipeline extends CapturePipeline<FakeImage, TestSlot> {
+        volatile int numRequired = 1;
+
+        @Override
+        protected TestSlot createSlot() {
+            return new TestSlot(numRequired);
+        }
+
+        @Override
+        protected void close(FakeImage image) {
+            image.closeCount.incrementAndGet();
+        }
+    }
+
+    public void testFillsSlotsInOrder() {
+        Pipeline pipeline = new Pipeline();
+        pipeline.numRequired = 3;
+        FakeImage[] images = new FakeImage[4];
+        List<CapturePipeline.Added<TestSlot>> added = new ArrayList<CapturePipeline.Added<TestSlot>>();
+        for (int i = 0; i < images.length; i++) {
+            images[i] = new FakeImage();
+            added.add(pipeline.add(images[i]));
+        }
+        TestSlot first = added.get(0).slot;
+        for (int i = 0; i < 3; i++) {
+            assertSame(first, added.get(i).slot);
+            assertEquals(i, added.get(i).index);
+            assertEquals(i == 2, added.get(i).isLast);
+            assertSame(images[i], first.getImage(i));
+        }
+        assertNotSame(first, added.get(3).slot);
+        assertEquals(2, pipeline.getActiveSlotNum());
+        assertEquals(6, pipeline.getReservedImageNum());
+
+        pipeline.closeImages(first);
+        assertTrue(pipeline.complete(first));
+        assertFalse(pipeline.complete(first));
+        assertEquals(1, pipeline.getActiveSlotNum());
+        assertEquals(3, pipeline.getReservedImageNum());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, images[i].closeCount.get());
+        }
+    }
+
+    public void testClearClosesImagesOnce() {
+        Pipeline pipeline = new Pipeline();
+        pipeline.numRequired = 2;
+        FakeImage image = new FakeImage();
+        TestSlot slot = pipeline.add(image).slot;
+        pipeline.clear();
+        assertTrue(slot.isCancelled());
+        assertFalse(pipeline.isActive(slot));
+        assertEquals(1, image.closeCount.get());
+        pipeline.closeImage(slot, 0);
+        assertEquals(1, image.closeCount.get());
+
+        //The next image opens a new capture instead of finishing the dropped one.
+        CapturePipeline.Added<TestSlot> next = pipeline.add(new FakeImage());
+        assertNotSame(slot, next.slot);
+        assertEquals(0, next.index);
+        assertEquals(2, pipeline.getReservedImageNum());
+    }
+
+    /* A frame still retained by another thread, like a pending dump, keeps its image open
+       across clear() until its last holder releases it. */
+    public void testClearKeepsRetainedFrames() {
+        final Pipeline pipeline = new Pipeline();
+        pipeline.numRequired = 3;
+        FakeImage first = new FakeImage();
+        FakeImage second = new FakeImage();
+        final TestSlot slot = pipeline.add(first).slot;
+        pipeline.add(second);
+        YuvFrame[] frames = new YuvFrame[2];
+        for (int i = 0; i < frames.length; i++) {
+            final int index = i;
+            frames[i] = YuvFrame.wrapNv21(ByteBuffer.allocate(6), 2, 2, 2, 0, 0,
+                    new YuvFrame.Releaser() {
+                        @Override
+                        public void onReleased(YuvFrame frame) {
+                            pipeline.closeImage(slot, index);
+                        }
+                    });
+            slot.setFrame(i, frames[i]);
+        }
+        YuvFrame dumping = frames[0].retain();
+
+        pipeline.clear();
+        assertEquals(0, first.closeCount.get());
+        assertEquals(1, second.closeCount.get());
+        //The third image never arrived and is still counted.
+        assertEquals(2, slot.getReservedImageNum());
+
+        dumping.release();
+        assertEquals(1, first.closeCount.get());
+        assertEquals(1, slot.getReservedImageNum());
+    }
+
+    /* Camera threads add images, processing threads finish captures and a switcher keeps
+       dropping everything in flight and changing the burst size, like setFilter does. */
+    public void testConcurrentCapturesAndFilterSwitches() throws Exception {
+        final Pipeline pipeline = new Pipeline();
+        final int numProducers = 2;
+        final int imagesPerProducer = 20000;
+        final List<FakeImage> allImages = new ArrayList<FakeImage>();
+        final BlockingQueue<TestSlot> ready = new LinkedBlockingQueue<TestSlot>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch producersDone = new CountDownLatch(numProducers);
+        final AtomicInteger dropped = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int p = 0; p < numProducers; p++) {
+            final List<FakeImage> images = new ArrayList<FakeImage>();
+            for (int i = 0; i < imagesPerProducer; i++) {
+                images.add(new FakeImage());
+            }
+            allImages.addAll(images);
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (FakeImage image : images) {
+                            CapturePipeline.Added<TestSlot> added = pipeline.add(image);
+                            if (added == null) {
+                                dropped.incrementAndGet();
+                                continue;
+                            }
+                            assertTrue(added.index < added.slot.size());
+                            if (added.isLast) {
+                                ready.add(added.slot);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        producersDone.countDown();
+                    }
+                }
+            });
+        }
+        for (int c = 0; c < 2; c++) {
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        while (producersDone.getCount() > 0 || !ready.isEmpty()) {
+                            TestSlot slot = ready.poll(1, TimeUnit.MILLISECONDS);
+                            if (slot == null || !pipeline.isActive(slot)) {
+                                continue;
+                            }
+                            pipeline.closeImages(slot);
+                            pipeline.complete(slot);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        threads.add(new Thread() {
+            public void run() {
+                try {
+                    int numRequired = 1;
+                    while (producersDone.getCount() > 0) {
+                        numRequired = numRequired % 10 + 1;
+                        pipeline.numRequired = numRequired;
+                        pipeline.clear();
+                        Thread.sleep(1);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        });
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+            assertFalse("Stuck thread", thread.isAlive());
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        pipeline.clear();
+        assertEquals(0, pipeline.getActiveSlotNum());
+        assertEquals(0, pipeline.getReservedImageNum());
+        for (FakeImage image : allImages) {
+            assertEquals(1, image.closeCount.get());
+        }
+        assertTrue(dropped.get() < allImages.size());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import com.android.camera.imageprocessor.CpuPreviewConverter;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class CpuPreviewConverterTest extends TestCase {
+    private static final String TAG = "CpuPreviewConverterTest";
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int STRIDE = 704;
+
+    private static byte[] createFrame() {
+        byte[] nv21 = new byte[STRIDE * HEIGHT * 3 / 2];
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < nv21.length; i++) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            nv21[i] = (byte) (seed >>> 56);
+        }
+        return nv21;
+    }
+
+    /* rotator.rs rotate90andMerge followed by YuvToRgb.rs nv21ToRgb, one kernel
+       invocation per loop iteration. */
+    private static byte[] convertWithKernels(byte[] in, int w, int h, int stride, boolean flip) {
+        int width = stride;
+        int height = h;
+        int pad = stride - w;
+        byte[] process = new byte[stride * h * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                byte yValue = in[x + y * width];
+                if (flip) {
+                    if (x >= width - pad) {
+                        continue;
+                    }
+                    process[(width - 1 - x - pad) * height + height - 1 - y] = yValue;
+                } else {
+                    process[x * height + height - 1 - y] = yValue;
+                }
+                if (x % 2 == 0 && y % 2 == 0) {
+                    int ySize = width * height;
+                    int index = ySize + x + (y / 2) * width;
+                    byte vValue = in[index];
+                    byte uValue = in[index + 1];
+                    if (flip) {
+                        int o = ySize + (width - 2 - x - pad) / 2 * height + height - 1 - y;
+                        process[o] = uValue;
+                        process[o - 1] = vValue;
+                    } else {
+                        int o = ySize + x / 2 * height + height - 1 - y;
+                        process[o] = uValue;
+                        process[o - 1] = vValue;
+                    }
+                }
+            }
+        }
+
+        width = h;
+        height = stride;
+        byte[] rgba = new byte[w * h * 4];
+        for (int y = 0; y < w; y++) {
+            for (int x = 0; x < h; x++) {
+                int ySize = width * height;
+                int index = ySize + (x / 2 * 2) + ((y / 2) * width);
+                int yV = process[x + y * width] & 0xFF;
+                int vV = (process[index] & 0xFF) - 128;
+                int uV = (process[index + 1] & 0xFF) - 128;
+                int r = (int) (yV + 1.370705f * vV);
+                int g = (int) (yV - 0.698001f * vV - 0.337633f * uV);
+                int b = (int) (yV + 1.732446 * uV);
+                r = r > 255 ? 255 : r < 0 ? 0 : r;
+                g = g > 255 ? 255 : g < 0 ? 0 : g;
+                b = b > 255 ? 255 : b < 0 ? 0 : b;
+                int o = (x + y * width) * 4;
+                rgba[o] = (byte) r;
+                rgba[o + 1] = (byte) g;
+                rgba[o + 2] = (byte) b;
+                rgba[o + 3] = (byte) 0xFF;
+            }
+        }
+        return rgba;
+    }
+
+    private static byte[] convert(CpuPreviewConverter converter, byte[] nv21, boolean flip) {
+        converter.configure(WIDTH, HEIGHT, STRIDE, flip);
+        byte[] rgba = new byte[WIDTH * HEIGHT * 4];
+        converter.convert(nv21, rgba);
+        return rgba;
+    }
+
+    public void testMatchesKernels() {
+        byte[] nv21 = createFrame();
+        CpuPreviewConverter converter = new CpuPreviewConverter();
+        assertTrue(Arrays.equals(convertWithKernels(nv21, WIDTH, HEIGHT, STRIDE, false),
+                convert(converter, nv21, false)));
+    }
+
+    public void testMatchesKernelsFlipped() {
+        byte[] nv21 = createFrame();
+        CpuPreviewConverter converter = new CpuPreviewConverter();
+        assertTrue(Arrays.equals(convertWithKernels(nv21, WIDTH, HEIGHT, STRIDE, true),
+                convert(converter, nv21, true)));
+    }
+
+    public void testTileSizesAgree() {
+        byte[] nv21 = createFrame();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        byte[] expected = convertWithKernels(nv21, WIDTH, HEIGHT, STRIDE, true);
+        //Sizes that don't divide the frame leave partial tiles on the edges.
+        for (int tileSize : new int[] {1, 7, 48, 100, 1024}) {
+            CpuPreviewConverter converter = new CpuPreviewConverter(pool, tileSize);
+            assertTrue("tile " + tileSize, Arrays.equals(expected, convert(converter, nv21, true)));
+        }
+        pool.shutdown();
+    }
+
+    /* Timing harness for picking the tile size, prints the median time per frame. */
+    @LargeTest
+    public void testTileSizeTimings() {
+        final int warmup = 20;
+        final int runs = 50;
+        byte[] nv21 = createFrame();
+        byte[] rgba = new byte[WIDTH * HEIGHT * 4];
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        for (int tileSize : new int[] {16, 32, 64, 128, 256}) {
+            CpuPreviewConverter converter = new CpuPreviewConverter(pool, tileSize);
+            converter.configure(WIDTH, HEIGHT, STRIDE, false);
+            long[] times = new long[runs];
+            for (int i = 0; i < warmup + runs; i++) {
+                long start = System.nanoTime();
+                converter.convert(nv21, rgba);
+                if (i >= warmup) {
+                    times[i - warmup] = System.nanoTime() - start;
+                }
+            }
+            Arrays.sort(times);
+            Log.d(TAG, "tile " + tileSize + ": " + (times[runs / 2] / 1000) + " us/frame");
+        }
+        pool.shutdown();
+    }
+}
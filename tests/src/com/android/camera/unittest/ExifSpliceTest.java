@@ -0,0 +1,165 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import com.android.camera.exif.ExifInterface;
+import com.android.camera.imageprocessor.ReferenceJpegEncoder;
+import com.android.camera.imageprocessor.TiledJpegEncoder;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/* The in-memory exif splices have to match what ExifOutputStream writes, which drops the
+   first APP1 segment before the frame header wherever it is. */
+@SmallTest
+public class ExifSpliceTest extends TestCase {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int MARKER_APP0 = 0xE0;
+    private static final int MARKER_APP1 = 0xE1;
+    private static final int MARKER_DRI = 0xDD;
+
+    private static byte[] createFrame() {
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        for (int i = 0; i < nv21.length; i++) {
+            nv21[i] = (byte) (i * 7 % 251);
+        }
+        return nv21;
+    }
+
+    /* Adds an old exif APP1 segment after the JFIF APP0 segment of the encoder output. */
+    private static byte[] withOldExif(byte[] jpeg) {
+        assertEquals(MARKER_APP0, jpeg[3] & 0xFF);
+        int app0End = 4 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF));
+        byte[] old = new byte[] {
+                (byte) 0xFF, (byte) MARKER_APP1, 0, 10, 'E', 'x', 'i', 'f', 0, 0, 1, 2
+        };
+        byte[] out = new byte[jpeg.length + old.length];
+        System.arraycopy(jpeg, 0, out, 0, app0End);
+        System.arraycopy(old, 0, out, app0End, old.length);
+        System.arraycopy(jpeg, app0End, out, app0End + old.length, jpeg.length - app0End);
+        return out;
+    }
+
+    private static int countSegments(byte[] jpeg, int marker) {
+        int count = 0;
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos + 1] & 0xFF) != 0xDA) {
+            if ((jpeg[pos + 1] & 0xFF) == marker) {
+                count++;
+            }
+            pos += 2 + (((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF));
+        }
+        return count;
+    }
+
+    private static ExifInterface createExif() {
+        ExifInterface exif = new ExifInterface();
+        exif.setTag(exif.buildTag(ExifInterface.TAG_ORIENTATION,
+                ExifInterface.getOrientationValueForRotation(90)));
+        return exif;
+    }
+
+    private static byte[] writeThroughStream(ExifInterface exif, byte[] jpeg)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exif.writeExif(new ByteArrayInputStream(jpeg), out);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(ByteBuffer[] buffers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (ByteBuffer buffer : buffers) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining());
+        }
+        return out.toByteArray();
+    }
+
+    public void testInsertExifAfterApp0() throws IOException {
+        byte[] jpeg = withOldExif(new ReferenceJpegEncoder().encode(createFrame(),
+                WIDTH, HEIGHT, WIDTH, WIDTH, 0, 0, WIDTH, HEIGHT, 90));
+        ExifInterface exif = createExif();
+        byte[] expected = writeThroughStream(exif, jpeg);
+
+        byte[] spliced = exif.insertExif(jpeg);
+        assertTrue(Arrays.equals(expected, spliced));
+        assertEquals(1, countSegments(spliced, MARKER_APP1));
+        assertEquals(1, countSegments(spliced, MARKER_APP0));
+        assertTrue(Arrays.equals(expected, concat(exif.getExifBuffers(jpeg))));
+    }
+
+    public void testInsertExifWithoutOldExif() throws IOException {
+        byte[] jpeg = new ReferenceJpegEncoder().encode(createFrame(),
+                WIDTH, HEIGHT, WIDTH, WIDTH, 0, 0, WIDTH, HEIGHT, 90);
+        ExifInterface exif = createExif();
+        byte[] expected = writeThroughStream(exif, jpeg);
+
+        assertTrue(Arrays.equals(expected, exif.insertExif(jpeg)));
+        assertTrue(Arrays.equals(expected, concat(exif.getExifBuffers(jpeg))));
+    }
+
+    public void testEncoderReplacesExifAfterApp0() throws IOException {
+        final ReferenceJpegEncoder reference = new ReferenceJpegEncoder();
+        TiledJpegEncoder.StripeEncoder withExif = new TiledJpegEncoder.StripeEncoder() {
+            @Override
+            public byte[] encode(byte[] nv21, int width, int height, int strideY, int strideVU,
+                                 int left, int top, int right, int bottom, int quality) {
+                return withOldExif(reference.encode(nv21, width, height, strideY, strideVU,
+                        left, top, right, bottom, quality));
+            }
+        };
+        byte[] nv21 = createFrame();
+        ExifInterface exif = createExif();
+        byte[] app1 = exif.getExifSegment();
+
+        //Small enough for one pass
+        byte[] single = new TiledJpegEncoder(withExif, 2).encode(nv21, WIDTH, HEIGHT,
+                WIDTH, WIDTH, 0, 0, WIDTH, 32, 90, app1);
+        byte[] plain = reference.encode(nv21, WIDTH, HEIGHT, WIDTH, WIDTH,
+                0, 0, WIDTH, 32, 90);
+        assertTrue(Arrays.equals(writeThroughStream(exif, withOldExif(plain)), single));
+
+        //Stitched, the old APP1 segment of the first stripe must not survive either.
+        byte[] stitched = new TiledJpegEncoder(withExif, 2).encode(nv21, WIDTH, HEIGHT,
+                WIDTH, WIDTH, 0, 0, WIDTH, HEIGHT, 90, app1);
+        byte[] expected = new TiledJpegEncoder(reference, 2).encode(nv21, WIDTH, HEIGHT,
+                WIDTH, WIDTH, 0, 0, WIDTH, HEIGHT, 90, app1);
+        assertEquals(1, countSegments(stitched, MARKER_DRI));
+        assertEquals(1, countSegments(stitched, MARKER_APP1));
+        assertTrue(Arrays.equals(expected, stitched));
+    }
+}
@@ -0,0 +1,193 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import com.android.camera.MediaStoreBatcher;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images.ImageColumns;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class MediaStoreBatcherTest extends TestCase {
+    private static final long LONG_WINDOW_MS = 10000;
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /* Counts provider round trips and hands out increasing row ids. */
+    private static class CountingProvider extends MockContentProvider {
+        int inserts;
+        int batches;
+        long nextId = 1;
+
+        @Override
+        public synchronized Uri insert(Uri uri, ContentValues values) {
+            inserts++;
+            return ContentUris.withAppendedId(uri, nextId++);
+        }
+
+        @Override
+        public synchronized ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations) {
+            batches++;
+            ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                results[i] = new ContentProviderResult(ContentUris.withAppendedId(
+                        operations.get(i).getUri(), nextId++));
+            }
+            return results;
+        }
+    }
+
+    private static class RecordingCallback implements MediaStoreBatcher.Callback {
+        final List<String> events;
+        final String name;
+        final CountDownLatch latch;
+
+        RecordingCallback(String name, List<String> events, CountDownLatch latch) {
+            this.name = name;
+            this.events = events;
+            this.latch = latch;
+        }
+
+        @Override
+        public void onInserted(Uri uri) {
+            events.add(name + ":" + (uri == null ? "null" : uri.getLastPathSegment()));
+            latch.countDown();
+        }
+    }
+
+    private CountingProvider mProvider;
+    private MockContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new CountingProvider();
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(MediaStore.AUTHORITY, mProvider);
+    }
+
+    private static ContentValues values(int i) {
+        ContentValues values = new ContentValues();
+        values.put(ImageColumns.TITLE, "IMG_" + i);
+        return values;
+    }
+
+    public void testBurstIsOneRoundTrip() throws Exception {
+        MediaStoreBatcher batcher = new MediaStoreBatcher(LONG_WINDOW_MS, 16, DIRECT);
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            batcher.add(mResolver, values(i), new RecordingCallback("s" + i, events, latch));
+        }
+        batcher.flush();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mProvider.batches);
+        assertEquals(0, mProvider.inserts);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("s" + i + ":" + (i + 1), events.get(i));
+        }
+    }
+
+    public void testFullBatchGoesOutWithoutWaiting() throws Exception {
+        MediaStoreBatcher batcher = new MediaStoreBatcher(LONG_WINDOW_MS, 4, DIRECT);
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(8);
+        for (int i = 0; i < 8; i++) {
+            batcher.add(mResolver, values(i), new RecordingCallback("s" + i, events, latch));
+        }
+        //Two full batches, no flush and no window needed.
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(2, mProvider.batches);
+        assertEquals(2, batcher.getBatchCount());
+        for (int i = 0; i < 8; i++) {
+            assertEquals("s" + i + ":" + (i + 1), events.get(i));
+        }
+    }
+
+    public void testWindowPublishes() throws Exception {
+        MediaStoreBatcher batcher = new MediaStoreBatcher(50, 16, DIRECT);
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            batcher.add(mResolver, values(i), new RecordingCallback("s" + i, events, latch));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mProvider.batches);
+        assertEquals(3, events.size());
+    }
+
+    public void testSingleImageIsPlainInsert() throws Exception {
+        MediaStoreBatcher batcher = new MediaStoreBatcher(LONG_WINDOW_MS, 16, DIRECT);
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+        batcher.add(mResolver, values(0), new RecordingCallback("s0", events, latch));
+        batcher.flush();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, mProvider.batches);
+        assertEquals(1, mProvider.inserts);
+        assertEquals("s0:1", events.get(0));
+    }
+
+    public void testFailedWriteKeepsCallbackOrder() throws Exception {
+        MediaStoreBatcher batcher = new MediaStoreBatcher(LONG_WINDOW_MS, 16, DIRECT);
+        List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(3);
+        batcher.add(mResolver, values(0), new RecordingCallback("s0", events, latch));
+        batcher.add(mResolver, null, new RecordingCallback("s1", events, latch));
+        batcher.add(mResolver, values(2), new RecordingCallback("s2", events, latch));
+        batcher.flush();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, mProvider.batches);
+        assertEquals("s0:1", events.get(0));
+        assertEquals("s1:null", events.get(1));
+        assertEquals("s2:2", events.get(2));
+    }
+}
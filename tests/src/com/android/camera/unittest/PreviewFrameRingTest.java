@@ -0,0 +1,175 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import com.android.camera.imageprocessor.PreviewFrameRing;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class PreviewFrameRingTest extends TestCase {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 8;
+
+    private static PreviewFrameRing createRing() {
+        return new PreviewFrameRing(3, WIDTH, HEIGHT, WIDTH);
+    }
+
+    private static int write(PreviewFrameRing ring, int value) {
+        int index = ring.acquireWrite();
+        assertTrue(index >= 0);
+        Arrays.fill(ring.getBuffer(index), (byte) value);
+        ring.publish(index, value, 0);
+        return index;
+    }
+
+    public void testConsumerTakesNewestAndDropsOlder() {
+        PreviewFrameRing ring = createRing();
+        assertEquals(-1, ring.acquireRead());
+        write(ring, 1);
+        int newest = write(ring, 2);
+
+        int index = ring.acquireRead();
+        assertEquals(newest, index);
+        assertEquals(2, ring.getSensorTimestamp(index));
+        assertEquals(2, ring.getBuffer(index)[0]);
+        assertEquals(1, ring.getDroppedCount());
+        //The older frame went back to FREE, nothing is left to read.
+        assertEquals(-1, ring.acquireRead());
+        ring.releaseRead(index);
+        assertEquals(0, ring.getTornCount());
+    }
+
+    public void testProducerReclaimsOldestReady() {
+        PreviewFrameRing ring = createRing();
+        int oldest = write(ring, 1);
+        write(ring, 2);
+        write(ring, 3);
+        assertEquals(0, ring.getDroppedCount());
+
+        //No FREE buffer left, the oldest READY one is written over.
+        assertEquals(oldest, write(ring, 4));
+        assertEquals(1, ring.getDroppedCount());
+
+        int index = ring.acquireRead();
+        assertEquals(oldest, index);
+        assertEquals(4, ring.getSensorTimestamp(index));
+        assertEquals(3, ring.getDroppedCount());
+        ring.releaseRead(index);
+    }
+
+    public void testBufferBeingReadIsNeverReclaimed() {
+        PreviewFrameRing ring = createRing();
+        write(ring, 1);
+        int reading = ring.acquireRead();
+        int a = write(ring, 2);
+        int b = write(ring, 3);
+        assertTrue(a != reading && b != reading);
+        //Only the other READY frame can be taken.
+        assertEquals(a, write(ring, 4));
+        assertEquals(b, write(ring, 5));
+        assertEquals(1, ring.getBuffer(reading)[0]);
+        ring.releaseRead(reading);
+    }
+
+    public void testNoBufferWhenAllAreTaken() {
+        PreviewFrameRing ring = createRing();
+        int first = ring.acquireWrite();
+        ring.acquireWrite();
+        ring.acquireWrite();
+        assertEquals(-1, ring.acquireWrite());
+        assertEquals(1, ring.getDroppedCount());
+
+        ring.cancelWrite(first);
+        assertEquals(first, ring.acquireWrite());
+    }
+
+    /* Every frame is shown or counted as dropped, and the consumer never sees a buffer the
+       producer is writing. */
+    public void testConcurrentProducerAndConsumer() throws Exception {
+        final PreviewFrameRing ring = new PreviewFrameRing(4, 64, 48, 64);
+        final int numFrames = 200000;
+        final AtomicBoolean producing = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final int[] shown = new int[1];
+
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                long last = -1;
+                while (true) {
+                    boolean done = !producing.get();
+                    int index = ring.acquireRead();
+                    if (index < 0) {
+                        if (done) {
+                            return;
+                        }
+                        Thread.yield();
+                        continue;
+                    }
+                    byte[] buf = ring.getBuffer(index);
+                    long frame = ring.getSensorTimestamp(index);
+                    for (byte b : buf) {
+                        if (b != (byte) frame) {
+                            failure.compareAndSet(null, "Frame " + frame + " mixed up");
+                        }
+                    }
+                    if (frame <= last) {
+                        failure.compareAndSet(null, "Frame " + frame + " after " + last);
+                    }
+                    last = frame;
+                    shown[0]++;
+                    ring.releaseRead(index);
+                }
+            }
+        };
+        consumer.start();
+        for (int i = 0; i < numFrames; i++) {
+            int index = ring.acquireWrite();
+            if (index < 0) {
+                continue;
+            }
+            Arrays.fill(ring.getBuffer(index), (byte) i);
+            ring.publish(index, i, 0);
+        }
+        producing.set(false);
+        consumer.join(30000);
+        assertFalse(consumer.isAlive());
+
+        assertNull(failure.get());
+        assertEquals(0, ring.getTornCount());
+        assertEquals(numFrames, shown[0] + ring.getDroppedCount());
+    }
+}
@@ -0,0 +1,197 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import com.android.camera.SaveScheduler;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class SaveSchedulerTest extends TestCase {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static class RecordingJob implements SaveScheduler.Job {
+        final String name;
+        final List<String> ran;
+        final List<String> done;
+        final CountDownLatch latch;
+        final CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch gate;
+
+        RecordingJob(String name, List<String> ran, List<String> done, CountDownLatch latch) {
+            this.name = name;
+            this.ran = ran;
+            this.done = done;
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            if (gate != null) {
+                try {
+                    gate.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    // fall through
+                }
+            }
+            ran.add(name);
+        }
+
+        @Override
+        public void onDone() {
+            done.add(name);
+            latch.countDown();
+        }
+    }
+
+    public void testSessionRunsInSubmissionOrder() throws Exception {
+        SaveScheduler scheduler = new SaveScheduler(4, Long.MAX_VALUE, DIRECT);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(40);
+        Object session = new Object();
+        for (int i = 0; i < 20; i++) {
+            //Lanes change within the session, the order must not.
+            scheduler.submit((i % 2 == 0) ? SaveScheduler.Lane.BURST : SaveScheduler.Lane.DEBUG,
+                    session, 1, new RecordingJob("s" + i, ran, done, latch));
+            scheduler.submit(SaveScheduler.Lane.SINGLE, null, 1,
+                    new RecordingJob("n" + i, ran, done, latch));
+        }
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        int next = 0;
+        synchronized (done) {
+            for (String name : done) {
+                if (name.startsWith("s")) {
+                    assertEquals("s" + next, name);
+                    next++;
+                }
+            }
+        }
+        assertEquals(20, next);
+        scheduler.shutdown();
+    }
+
+    public void testHigherLaneRunsFirst() throws Exception {
+        SaveScheduler scheduler = new SaveScheduler(1, Long.MAX_VALUE, DIRECT);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(4);
+        //Holds the only worker while the others queue up.
+        RecordingJob blocker = new RecordingJob("blocker", ran, done, latch);
+        blocker.gate = new CountDownLatch(1);
+        scheduler.submit(SaveScheduler.Lane.VIDEO, null, 0, blocker);
+        assertTrue(blocker.started.await(5, TimeUnit.SECONDS));
+        scheduler.submit(SaveScheduler.Lane.DEBUG, null, 0,
+                new RecordingJob("debug", ran, done, latch));
+        scheduler.submit(SaveScheduler.Lane.VIDEO, null, 0,
+                new RecordingJob("video", ran, done, latch));
+        scheduler.submit(SaveScheduler.Lane.BURST, null, 0,
+                new RecordingJob("burst", ran, done, latch));
+        blocker.gate.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("blocker", ran.get(0));
+        assertEquals("burst", ran.get(1));
+        assertEquals("video", ran.get(2));
+        assertEquals("debug", ran.get(3));
+        scheduler.shutdown();
+    }
+
+    public void testQueueFullAccounting() throws Exception {
+        SaveScheduler scheduler = new SaveScheduler(1, 100, DIRECT);
+        final List<Boolean> status = Collections.synchronizedList(new ArrayList<Boolean>());
+        final CountDownLatch available = new CountDownLatch(1);
+        scheduler.setQueueListener(new SaveScheduler.QueueListener() {
+            @Override
+            public void onQueueStatus(boolean full) {
+                status.add(full);
+                if (!full) {
+                    available.countDown();
+                }
+            }
+        });
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(2);
+        RecordingJob first = new RecordingJob("first", ran, done, latch);
+        first.gate = new CountDownLatch(1);
+        scheduler.submit(SaveScheduler.Lane.SINGLE, null, 60, first);
+        assertFalse(scheduler.isQueueFull());
+        scheduler.submit(SaveScheduler.Lane.SINGLE, null, 60,
+                new RecordingJob("second", ran, done, latch));
+        assertTrue(scheduler.isQueueFull());
+        assertEquals(120, scheduler.getMemoryUse());
+        first.gate.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(available.await(5, TimeUnit.SECONDS));
+        //Memory is released before the completion callback.
+        assertEquals(0, scheduler.getMemoryUse());
+        assertEquals(120, scheduler.getPeakMemoryUse());
+        assertFalse(scheduler.isQueueFull());
+        assertEquals(2, status.size());
+        assertTrue(status.get(0));
+        assertFalse(status.get(1));
+        scheduler.shutdown();
+    }
+
+    public void testAdmissionKeepsHeadroom() throws Exception {
+        SaveScheduler scheduler = new SaveScheduler(1, 1000, DIRECT);
+        List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+        List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch latch = new CountDownLatch(1);
+        RecordingJob job = new RecordingJob("job", ran, done, latch);
+        job.gate = new CountDownLatch(1);
+        assertEquals(0, scheduler.getAdmissionDelayMs(500));
+        scheduler.submit(SaveScheduler.Lane.BURST, null, 700, job);
+        //800 bytes of headroom, 100 left.
+        assertEquals(2, scheduler.getAdmissibleCount(50, 10));
+        assertEquals(0, scheduler.getAdmissionDelayMs(100));
+        assertTrue(scheduler.getAdmissionDelayMs(200) > 0);
+        assertFalse(scheduler.isQueueFull());
+        job.gate.countDown();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, scheduler.getAdmissionDelayMs(200));
+        assertEquals(10, scheduler.getAdmissibleCount(50, 10));
+        scheduler.shutdown();
+    }
+}
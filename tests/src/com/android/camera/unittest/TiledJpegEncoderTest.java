@@ -0,0 +1,201 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import com.android.camera.imageprocessor.ReferenceJpegEncoder;
+import com.android.camera.imageprocessor.TiledJpegEncoder;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/* Runs off-device as well, the reference encoder doesn't use the framework. A stitched image
+   is the single pass encoding with one restart interval per stripe, so both are compared
+   byte for byte. */
+@SmallTest
+public class TiledJpegEncoderTest extends TestCase {
+    private static final String TAG = "TiledJpegEncoderTest";
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int STRIDE = 704;
+    private static final int MARKER_DRI = 0xDD;
+    private static final int MARKER_SOS = 0xDA;
+
+    private static byte[] createFrame(int width, int height, int stride) {
+        byte[] nv21 = new byte[stride * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[y * stride + x] = (byte) (x * 255 / width + (y % 32));
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[stride * height + y * stride + x] = (byte) (96 + (x + y) % 64);
+            }
+        }
+        return nv21;
+    }
+
+    private static byte[] createFrame() {
+        return createFrame(WIDTH, HEIGHT, STRIDE);
+    }
+
+    /* Restart interval of the DRI segment, 0 if there is none. */
+    private static int getRestartInterval(byte[] jpeg) {
+        int pos = 2;
+        while (pos + 4 <= jpeg.length) {
+            int marker = jpeg[pos + 1] & 0xFF;
+            int length = ((jpeg[pos + 2] & 0xFF) << 8) | (jpeg[pos + 3] & 0xFF);
+            if (marker == MARKER_SOS) {
+                break;
+            }
+            if (marker == MARKER_DRI) {
+                return ((jpeg[pos + 4] & 0xFF) << 8) | (jpeg[pos + 5] & 0xFF);
+            }
+            pos += 2 + length;
+        }
+        return 0;
+    }
+
+    private static void assertStitched(byte[] nv21, TiledJpegEncoder tiled, int left, int top,
+                                       int right, int bottom, int quality) {
+        byte[] stitched = tiled.encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE,
+                left, top, right, bottom, quality);
+        int restartInterval = getRestartInterval(stitched);
+        assertTrue(restartInterval > 0);
+        byte[] expected = new ReferenceJpegEncoder().encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE,
+                left, top, right, bottom, quality, restartInterval);
+        assertTrue(Arrays.equals(expected, stitched));
+    }
+
+    public void testTiledMatchesSinglePass() {
+        byte[] nv21 = createFrame();
+        ReferenceJpegEncoder reference = new ReferenceJpegEncoder();
+        TiledJpegEncoder tiled = new TiledJpegEncoder(reference, 4);
+
+        byte[] single = reference.encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE,
+                0, 0, WIDTH, HEIGHT, 90);
+        assertEquals(0, getRestartInterval(single));
+        assertStitched(nv21, tiled, 0, 0, WIDTH, HEIGHT, 90);
+    }
+
+    public void testTiledRoi() {
+        byte[] nv21 = createFrame();
+        TiledJpegEncoder tiled = new TiledJpegEncoder(new ReferenceJpegEncoder(), 3);
+        assertStitched(nv21, tiled, 10, 6, WIDTH - 4, HEIGHT - 2, 75);
+    }
+
+    public void testTiledOddRoi() {
+        byte[] nv21 = createFrame();
+        TiledJpegEncoder tiled = new TiledJpegEncoder(new ReferenceJpegEncoder(), 3);
+        assertStitched(nv21, tiled, 11, 7, WIDTH - 5, HEIGHT - 3, 75);
+        assertStitched(nv21, tiled, 1, 1, WIDTH - 2, HEIGHT, 90);
+        assertStitched(nv21, tiled, 0, 3, 333, 401, 90);
+    }
+
+    public void testReferenceAlignsOddRoi() {
+        byte[] nv21 = createFrame();
+        ReferenceJpegEncoder reference = new ReferenceJpegEncoder();
+        //Offsets round down, sizes round down to even before the offsets are moved.
+        byte[] odd = reference.encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE,
+                11, 7, WIDTH - 5, HEIGHT - 3, 75);
+        byte[] aligned = reference.encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE,
+                10, 6, 10 + ((WIDTH - 16) & ~1), 6 + ((HEIGHT - 10) & ~1), 75);
+        assertTrue(Arrays.equals(aligned, odd));
+    }
+
+    public void testSmallFrameIsSinglePass() {
+        byte[] nv21 = createFrame();
+        ReferenceJpegEncoder reference = new ReferenceJpegEncoder();
+        TiledJpegEncoder tiled = new TiledJpegEncoder(reference, 4);
+
+        byte[] single = reference.encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE,
+                0, 0, WIDTH, 48, 90);
+        byte[] tiledBytes = tiled.encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE,
+                0, 0, WIDTH, 48, 90);
+        assertTrue(Arrays.equals(single, tiledBytes));
+    }
+
+    public void testMismatchedStripesFallBack() {
+        byte[] nv21 = createFrame();
+        final ReferenceJpegEncoder reference = new ReferenceJpegEncoder();
+        //Stripes other than the first one use different tables and can't be joined.
+        TiledJpegEncoder tiled = new TiledJpegEncoder(new TiledJpegEncoder.StripeEncoder() {
+            @Override
+            public byte[] encode(byte[] nv21, int width, int height, int strideY, int strideVU,
+                                 int left, int top, int right, int bottom, int quality) {
+                boolean whole = (top == 0 && bottom == HEIGHT);
+                return reference.encode(nv21, width, height, strideY, strideVU,
+                        left, top, right, bottom, (top == 0 || whole) ? quality : quality / 2);
+            }
+        }, 4);
+
+        byte[] single = reference.encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE,
+                0, 0, WIDTH, HEIGHT, 90);
+        byte[] result = tiled.encode(nv21, WIDTH, HEIGHT, STRIDE, STRIDE,
+                0, 0, WIDTH, HEIGHT, 90);
+        assertTrue(Arrays.equals(single, result));
+    }
+
+    /* Timing harness, single pass against stripes on every core. Not a pass/fail check
+       apart from the output being the same. */
+    @LargeTest
+    public void testBenchmark() {
+        final int width = 4000;
+        final int height = 3000;
+        final int runs = 3;
+        byte[] nv21 = createFrame(width, height, width);
+        ReferenceJpegEncoder reference = new ReferenceJpegEncoder();
+        TiledJpegEncoder tiled = new TiledJpegEncoder(reference,
+                Runtime.getRuntime().availableProcessors());
+
+        byte[] stitched = null;
+        long single = Long.MAX_VALUE;
+        long parallel = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            reference.encode(nv21, width, height, width, width, 0, 0, width, height, 90);
+            long mid = System.nanoTime();
+            stitched = tiled.encode(nv21, width, height, width, width, 0, 0, width, height, 90);
+            long end = System.nanoTime();
+            single = Math.min(single, mid - start);
+            parallel = Math.min(parallel, end - mid);
+        }
+        byte[] expected = reference.encode(nv21, width, height, width, width,
+                0, 0, width, height, 90, getRestartInterval(stitched));
+        assertTrue(Arrays.equals(expected, stitched));
+        Log.d(TAG, "TiledJpegEncoder " + width + "x" + height + " with "
+                + tiled.getNumWorkers() + " workers: single pass " + single / 1000000
+                + " ms, tiled " + parallel / 1000000 + " ms");
+    }
+}
@@ -0,0 +1,162 @@
+/*
+Copyright (c) 2016, The Linux Foundation. All rights reserved.
+
+Redistribution and use in source and binary forms, with or without
+modification, are permitted provided that the following conditions are
+met:
+    * Redistributions of source code must retain the above copyright
+      notice, this list of conditions and the following disclaimer.
+    * Redistributions in binary form must reproduce the above
+      copyright notice, this list of conditions and the following
+      disclaimer in the documentation and/or other materials provided
+      with the distribution.
+    * Neither the name of The Linux Foundation nor the names of its
+      contributors may be used to endorse or promote products derived
+      from this software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED "AS IS" AND ANY EXPRESS OR IMPLIED
+WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF
+MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NON-INFRINGEMENT
+ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS
+BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR
+BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY,
+WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN
+IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package com.android.camera.unittest;
+
+import com.android.camera.imageprocessor.ImageBufferPool;
+import com.android.camera.imageprocessor.filter.YuvFrame;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/* Downscaled luma for the analysis listeners, checked against a plain area average. */
+@SmallTest
+public class YuvFrameTest extends TestCase {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int STRIDE = 704;
+
+    /* Random luma, padding bytes set to 0xFF so reading them shows up in the result. */
+    private static byte[] createFrame(int stride) {
+        byte[] nv21 = new byte[stride * HEIGHT * 3 / 2];
+        Arrays.fill(nv21, (byte) 0xFF);
+        long seed = 0x5DEECE66DL;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                seed = seed * 6364136223846793005L + 1442695040888963407L;
+                nv21[y * stride + x] = (byte) (seed >>> 56);
+            }
+        }
+        return nv21;
+    }
+
+    private static YuvFrame wrap(byte[] nv21, int stride) {
+        return YuvFrame.wrapNv21(ByteBuffer.wrap(nv21), WIDTH, HEIGHT, stride, 0, 0, null);
+    }
+
+    /* Output pixel (x, y) is the rounded mean of the source pixels from x * WIDTH / width
+       up to (x + 1) * WIDTH / width, and the same vertically, at least one pixel each. */
+    private static byte[] scaleReference(byte[] nv21, int stride, int width, int height) {
+        byte[] out = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            int top = y * HEIGHT / height;
+            int bottom = Math.max(top + 1, (y + 1) * HEIGHT / height);
+            for (int x = 0; x < width; x++) {
+                int left = x * WIDTH / width;
+                int right = Math.max(left + 1, (x + 1) * WIDTH / width);
+                int sum = 0;
+                for (int sy = top; sy < bottom; sy++) {
+                    for (int sx = left; sx < right; sx++) {
+                        sum += nv21[sy * stride + sx] & 0xFF;
+                    }
+                }
+                int count = (bottom - top) * (right - left);
+                out[y * width + x] = (byte) ((sum + count / 2) / count);
+            }
+        }
+        return out;
+    }
+
+    public void testIntegerRatio() {
+        byte[] nv21 = createFrame(WIDTH);
+        YuvFrame frame = wrap(nv21, WIDTH);
+        assertTrue(Arrays.equals(scaleReference(nv21, WIDTH, 160, 120),
+                frame.getScaledLuma(160, 120)));
+        frame.release();
+    }
+
+    public void testNonIntegerRatio() {
+        byte[] nv21 = createFrame(WIDTH);
+        YuvFrame frame = wrap(nv21, WIDTH);
+        assertTrue(Arrays.equals(scaleReference(nv21, WIDTH, 300, 227),
+                frame.getScaledLuma(300, 227)));
+        assertTrue(Arrays.equals(scaleReference(nv21, WIDTH, WIDTH, HEIGHT),
+                frame.getScaledLuma(WIDTH, HEIGHT)));
+        frame.release();
+    }
+
+    public void testStridePaddingIsSkipped() {
+        byte[] padded = createFrame(STRIDE);
+        byte[] packed = createFrame(WIDTH);
+        YuvFrame paddedFrame = wrap(padded, STRIDE);
+        YuvFrame packedFrame = wrap(packed, WIDTH);
+        byte[] expected = packedFrame.getScaledLuma(213, 161);
+        assertTrue(Arrays.equals(expected, paddedFrame.getScaledLuma(213, 161)));
+        assertTrue(Arrays.equals(scaleReference(padded, STRIDE, 213, 161), expected));
+        paddedFrame.release();
+        packedFrame.release();
+    }
+
+    public void testScaledLumaIsCachedPerSize() {
+        YuvFrame frame = wrap(createFrame(WIDTH), WIDTH);
+        byte[] small = frame.getScaledLuma(160, 120);
+        byte[] other = frame.getScaledLuma(320, 240);
+        assertSame(small, frame.getScaledLuma(160, 120));
+        assertSame(other, frame.getScaledLuma(320, 240));
+        assertNotSame(small, other);
+        frame.release();
+    }
+
+    public void testScaledLumaGoesBackToPoolOnRelease() {
+        ImageBufferPool pool = ImageBufferPool.getInstance();
+        //An odd size no other test uses, so the pooled buffer can be told apart.
+        final int width = 161;
+        final int height = 119;
+        YuvFrame frame = wrap(createFrame(WIDTH), WIDTH);
+        frame.retain();
+        long outstanding = pool.getOutstandingBytes();
+        byte[] luma = frame.getScaledLuma(width, height);
+        assertEquals(outstanding + width * height, pool.getOutstandingBytes());
+
+        //Still held by the second reference.
+        frame.release();
+        assertEquals(outstanding + width * height, pool.getOutstandingBytes());
+        frame.release();
+        assertEquals(outstanding, pool.getOutstandingBytes());
+
+        int hits = pool.getHitCount();
+        ByteBuffer reused = pool.acquire(width * height);
+        assertEquals(hits + 1, pool.getHitCount());
+        assertSame(luma, reused.array());
+        pool.release(reused);
+    }
+
+    public void testInvalidSize() {
+        YuvFrame frame = wrap(createFrame(WIDTH), WIDTH);
+        try {
+            frame.getScaledLuma(WIDTH + 1, HEIGHT);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        frame.release();
+    }
+}